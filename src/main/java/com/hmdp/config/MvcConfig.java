@@ -1,13 +1,17 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * User: hzy
@@ -21,6 +25,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 可以访问运维接口的用户id
+     */
+    @Value("${hmdp.admin.user-ids:}")
+    private List<Long> adminIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
@@ -33,5 +43,9 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop-type/**",
                         "/voucher/**",
                         "/shop/**").order(1);
+        registry.addInterceptor(new AdminInterceptor(new HashSet<>(adminIds)))
+                .addPathPatterns(
+                        "/voucher-order/seckill/admission",
+                        "/voucher-order/seckill/reconcile").order(2);
     }
 }
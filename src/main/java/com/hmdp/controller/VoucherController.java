@@ -4,9 +4,14 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillPushHub;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
 
 /**
  * <p>
@@ -23,6 +28,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private SeckillPushHub seckillPushHub;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -30,7 +38,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -54,4 +62,13 @@ public class VoucherController {
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
        return voucherService.queryVoucherOfShop(shopId);
     }
+
+    /**
+     * 建立SSE连接，推送秒杀券的库存变化（stock事件），不需要登录，按IP限制连接数
+     * @param voucherIds 订阅库存的优惠券id，逗号分隔，只接受正在进行的秒杀券
+     */
+    @GetMapping(value = "/seckill/stock/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeStock(@RequestParam("voucherIds") List<Long> voucherIds, HttpServletRequest request) {
+        return seckillPushHub.subscribe(null, "ip:" + request.getRemoteAddr(), voucherIds);
+    }
 }
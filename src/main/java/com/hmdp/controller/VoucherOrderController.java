@@ -3,12 +3,16 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillPushHub;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -25,8 +29,54 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private SeckillPushHub seckillPushHub;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 建立SSE连接，推送当前用户的秒杀结果（order事件）和所订阅优惠券的库存（stock事件），代替轮询
+     * @param voucherIds 订阅库存的优惠券id，逗号分隔
+     */
+    @GetMapping(value = "seckill/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeSeckillEvents(@RequestParam(value = "voucherIds", required = false) List<Long> voucherIds) {
+        Long userId = UserHolder.getUser().getId();
+        return seckillPushHub.subscribe(userId, "user:" + userId, voucherIds);
+    }
+
+    /**
+     * 查询秒杀订单的落库状态，只访问redis
+     * @return PENDING / CREATED / FAILED / CANCELLED
+     */
+    @GetMapping("seckill/{id}/status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("id") Long voucherId, @PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderStatus(voucherId, orderId);
+    }
+
+    /**
+     * 查询本节点各优惠券的准入放行与拒绝次数，只允许管理员访问
+     * @return voucherId -> {admitted, shed, permitsPerSecond}
+     */
+    @GetMapping("seckill/admission")
+    public Result queryAdmissionStats() {
+        return Result.ok(seckillAdmission.stats());
+    }
+
+    /**
+     * 查询最近一次redis与数据库的秒杀库存对账结果，只允许管理员访问
+     * @return voucherId -> {redisStock, redisSold, dbStock, dbOrders, unpersisted, drift}
+     */
+    @GetMapping("seckill/reconcile")
+    public Result queryReconcileReport() {
+        return Result.ok(seckillReconciler.report());
+    }
 }
@@ -78,6 +78,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分桶数，秒杀券库存拆分到多个key，分散单个热点key的压力
+     */
+    @TableField(exist = false)
+    private Integer stockBuckets;
+
     /**
      * 生效时间
      */
@@ -3,6 +3,7 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
@@ -23,4 +24,6 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result countSignDays();
+
+    UserDTO queryUserById(Long id);
 }
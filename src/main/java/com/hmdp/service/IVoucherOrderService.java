@@ -4,6 +4,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * <p>
  *  服务类
@@ -15,5 +18,11 @@ import com.hmdp.entity.VoucherOrder;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder order);
+    boolean createVoucherOrder(VoucherOrder order);
+
+    Set<Long> createVoucherOrderBatch(List<VoucherOrder> orders);
+
+    boolean cancelUnpaidOrder(Long orderId, Long voucherId);
+
+    Result queryOrderStatus(Long voucherId, Long orderId);
 }
@@ -17,4 +17,8 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    void addVoucher(Voucher voucher);
+
+    void evictVoucherOfShop(Long shopId);
 }
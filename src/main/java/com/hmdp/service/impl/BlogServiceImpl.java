@@ -9,11 +9,12 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -26,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -48,6 +50,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -67,7 +75,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Override
     public Result queryBlogById(Long id) {
-        Blog blog = getById(id);
+        // 布隆过滤器判断不存在的笔记直接返回，不访问缓存和数据库
+        if (!idBloomFilter.mightContain(IdBloomFilter.BLOG, id)) {
+            return Result.fail("笔记不存在！");
+        }
+        Blog blog = cacheClient.query(RedisConstants.CACHE_BLOG_KEY, id, Blog.class, this::getById,
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
@@ -89,12 +102,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean success = update().setSql("liked = liked - 1").eq("id", id).update();
             if (success) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.evict(RedisConstants.CACHE_BLOG_KEY + id);
             }
         } else {
             // 点赞，数据库总点赞量+1
             boolean success = update().setSql("liked = liked + 1").eq("id", id).update();
             if (success) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.evict(RedisConstants.CACHE_BLOG_KEY + id);
             }
         }
         return Result.ok();
@@ -130,6 +145,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!success) {
             return Result.fail("新增笔记失败！");
         }
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
         // 如果保存成功，推送到粉丝的收件箱
         //查询笔记作者的所有粉丝
         List<Follow> follows = followService.lambdaQuery()
@@ -185,7 +201,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     private void addUserInfo(Blog blog) {
         Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        UserDTO user = userService.queryUserById(userId);
+        if (user == null) {
+            return;
+        }
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
@@ -1,18 +1,17 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -26,20 +25,12 @@ import java.util.List;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Override
     public Result queryList() {
-        String key = RedisConstants.CACHE_SHOP_LIST_KEY;
-        String listString = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(listString)) {
-            List<ShopType> typeList = JSONUtil.toList(listString, ShopType.class);
-            return Result.ok(typeList);
-        }
-
-        List<ShopType> typeList = query().orderByAsc("sort").list();
-        listString = JSONUtil.toJsonStr(typeList);
-        stringRedisTemplate.opsForValue().set(key, listString);
+        List<ShopType> typeList = cacheClient.queryList(RedisConstants.CACHE_SHOP_LIST_KEY, "", ShopType.class,
+                id -> query().orderByAsc("sort").list(), RedisConstants.CACHE_SHOP_LIST_TTL, TimeUnit.MINUTES);
         return Result.ok(typeList);
     }
 }
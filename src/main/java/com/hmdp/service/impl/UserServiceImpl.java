@@ -12,6 +12,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
@@ -44,6 +45,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1. Check if the phone number is valid
@@ -154,11 +158,24 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(days);
     }
 
+    @Override
+    public UserDTO queryUserById(Long id) {
+        // 只缓存UserDTO，不把手机号、密码写入缓存
+        return cacheClient.query(RedisConstants.CACHE_USER_KEY, id, UserDTO.class,
+                userId -> {
+                    User user = getById(userId);
+                    return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+                },
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         save(user);
+        // 清除该id可能缓存的空值
+        cacheClient.evict(RedisConstants.CACHE_USER_KEY + user.getId());
         return user;
     }
 }
@@ -1,34 +1,41 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderGroupCommitter;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.OrderTimeoutCanceller;
 import com.hmdp.utils.RedisIdGenerator;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillBuyers;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillPushHub;
+import com.hmdp.utils.SeckillWarmer;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -48,144 +55,247 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdGenerator redisIdGenerator;
 
+    @Resource
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private SeckillBuyers seckillBuyers;
+
+    @Resource
+    private SeckillWarmer seckillWarmer;
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    @Resource
+    private OrderGroupCommitter orderGroupCommitter;
+
+    @Resource
+    private OrderTimeoutCanceller orderTimeoutCanceller;
+
+    @Resource
+    private OrderStatusCache orderStatusCache;
+
+    @Resource
+    private SeckillPushHub seckillPushHub;
 
-//    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    /**
+     * 每批落库的订单数，小于等于1时逐条下单
+     */
+    @Value("${hmdp.seckill.batch-size:50}")
+    private int batchSize;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    /**
+     * 是否把多个消费者的订单合并为一个事务提交
+     */
+    @Value("${hmdp.seckill.group-commit.enabled:true}")
+    private boolean groupCommit;
 
-    private static final ExecutorService seckillExecutorService = Executors.newSingleThreadExecutor();
+    /**
+     * 未支付订单的超时时间（分钟），超时后取消订单并归还库存，0表示不自动取消
+     */
+    @Value("${hmdp.seckill.pay-timeout.minutes:15}")
+    private long payTimeoutMinutes;
+
+    /**
+     * 是否在秒杀脚本内生成订单id：只有下单成功才占用序列号，并省去一次INCR往返
+     */
+    @Value("${hmdp.seckill.script-order-id:true}")
+    private boolean scriptOrderId;
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
     }
 
     @PostConstruct
     private void init() {
-        seckillExecutorService.submit(new voucherHandler());
+        if (groupCommit) {
+            orderGroupCommitter.start(proxy::createVoucherOrderBatch);
+        }
+        orderQueue.start(this::handleOrders);
     }
 
-    private class voucherHandler implements Runnable {
-
-        String queueName = "stream.orders";
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1. 获取消息队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-//                    VoucherOrder order = orderTasks.take();
-//                    handlerVoucherOrder(order);
-                    // 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        // 获取失败，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 获取成功，可以下单
-                    handlerVoucherOrder(voucherOrder);
-                    // ACK确认 XACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();
-                }
-            }
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // 先停止消费者，再停止提交线程
+        orderQueue.stop();
+        if (groupCommit) {
+            orderGroupCommitter.stop();
         }
+    }
 
-        private void handlePendingList() {
-            while (true) {
+    private void handleOrders(List<VoucherOrder> orders) {
+        List<VoucherOrder> created = new ArrayList<>(orders.size());
+        List<VoucherOrder> failed = new ArrayList<>();
+        if (batchSize <= 1 || orders.size() == 1) {
+            // 逐条下单
+            for (VoucherOrder voucherOrder : orders) {
+                (proxy.createVoucherOrder(voucherOrder) ? created : failed).add(voucherOrder);
+            }
+        } else {
+            Set<Long> persisted;
+            if (!groupCommit) {
+                // 批量下单：一个事务内落库
+                persisted = proxy.createVoucherOrderBatch(orders);
+            } else {
+                // 组提交：与其他消费者的订单合并为一个事务，提交完成后才返回，由队列确认消息
                 try {
-                    // 1. 获取消息队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        // 获取失败，说明pending-list没有消息，结束下一次循环
-                        break;
-                    }
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 获取成功，可以下单
-                    handlerVoucherOrder(voucherOrder);
-                    // ACK确认 XACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
+                    persisted = orderGroupCommitter.commit(orders);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("等待订单提交被中断", e);
                 }
             }
+            // 批内去重淘汰的、被唯一索引忽略的订单没有落库
+            for (VoucherOrder voucherOrder : orders) {
+                (persisted.contains(voucherOrder.getId()) ? created : failed).add(voucherOrder);
+            }
         }
-    }
-
-    // 已经做了阻塞队列，其实没有必要加锁，只是以防万一做了兜底
-    private void handlerVoucherOrder(VoucherOrder order) {
-        Long userId = UserHolder.getUser().getId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId + ":");
-        // 有多个参数，可以指定在一段时间内尝试获取锁，不指定的话，获取失败直接返回
-        boolean success = lock.tryLock();
-
-        // 如果获取锁失败
-        if (!success) {
-            log.error("不允许重复下单！");
-            return;
-        }
-
-        try {
-            // 获取代理对象（事务） 因为目前的是线程池对象，不是主线程，获取不到
-            proxy.createVoucherOrder(order);
-        } finally {
-            lock.unlock();
+        orderStatusCache.update(created, OrderStatusCache.CREATED);
+        if (!failed.isEmpty()) {
+            orderStatusCache.update(failed, OrderStatusCache.FAILED);
         }
     }
 
+    // 代理对象（事务），消费者线程中无法通过AopContext获取，注入延迟代理
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
+
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0. 本地已标记售罄，直接返回，不访问redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足！");
+        }
+        // 0.1 本地缓存的秒杀时间窗口
+        int windowState = seckillWarmer.windowState(voucherId);
+        if (windowState == SeckillWarmer.WINDOW_NOT_BEGUN) {
+            return Result.fail("秒杀尚未开始！");
+        } else if (windowState == SeckillWarmer.WINDOW_ENDED) {
+            return Result.fail("秒杀已经结束！");
+        }
+        // 0.2 准入控制，超出本节点配额的请求直接拒绝
+        if (!seckillAdmission.tryAcquire(voucherId)) {
+            return Result.fail("抢购人数过多，请稍后再试！");
+        }
         // 1. 执行lua脚本
         Long userId = UserHolder.getUser().getId();
-        long voucherOrderId = redisIdGenerator.nextId("order");
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(voucherOrderId));
+        Instant now = Instant.now();
+        // 脚本内生成订单id时只传时间戳部分，由脚本在下单成功后拼接序列号；开启本地id生成时不访问redis生成id
+        String voucherOrderId;
+        if (snowflakeIdGenerator.enabled()) {
+            voucherOrderId = String.valueOf(snowflakeIdGenerator.nextId());
+        } else {
+            voucherOrderId = scriptOrderId ? "" : String.valueOf(redisIdGenerator.nextId("order"));
+        }
+        // 分桶的优惠券先在优惠券级别的已购用户集合中占位，先判重再扣库存，用户不能从不同的桶各下一单
+        int buckets = seckillKeys.bucketsOf(voucherId);
+        boolean claimed = buckets > 1;
+        if (claimed && !seckillBuyers.claim(voucherId, userId)) {
+            return Result.fail("用户重复下单！");
+        }
+        // 按用户哈希选择库存桶，桶内库存不足时依次尝试相邻的桶
+        int home = Math.floorMod(Long.hashCode(userId), buckets);
+        List<?> reply = null;
+        int bucket = home;
+        try {
+            for (int i = 0; i < buckets; i++) {
+                bucket = (home + i) % buckets;
+                reply = executeSeckillScript(voucherId, userId, bucket, voucherOrderId, now);
+                if ((Long) reply.get(0) != 1L) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            // 释放失败时由占位对账任务处理
+            if (claimed) {
+                seckillBuyers.release(voucherId, userId);
+            }
+            throw e;
+        }
+        // 返回 {结果, 订单id, 超时队列成员}
+        long result = (Long) reply.get(0);
+        if (claimed) {
+            if (result == 0L || result == 2L) {
+                // 下单成功或已在某个桶下过单，确认占位
+                seckillBuyers.confirm(voucherId, userId);
+            } else {
+                // 没有下单成功，释放占位
+                seckillBuyers.release(voucherId, userId);
+            }
+        }
         // 2. 判断结果是否为0
         // 2.1 不为0，没有购买资格
         if (result == 1L) {
+            // 标记售罄并通知其他节点
+            soldOutRegistry.markSoldOut(voucherId);
             return Result.fail("库存不足！");
         } else if (result == 2L) {
             return Result.fail("用户重复下单！");
+        } else if (result == 3L) {
+            return Result.fail("秒杀尚未开始！");
+        } else if (result == 4L) {
+            return Result.fail("秒杀已经结束！");
         }
-//        // 2.2 为0，有购买资格，把下单信息保存到阻塞队列
-//        VoucherOrder voucherOrder = new VoucherOrder();
-//        voucherOrder.setId(voucherOrderId);
-//        voucherOrder.setUserId(userId);
-//        voucherOrder.setVoucherId(voucherId);
-
-//        orderTasks.add(voucherOrder);
+        long orderId = Long.parseLong((String) reply.get(1));
+        seckillPushHub.markStockChanged(voucherId);
+        // 2.2 为0，有购买资格，订单未由脚本写入stream时加入订单队列
+        if (!orderQueue.enqueuedByScript()) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderId);
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(voucherId);
+            voucherOrder.setBucket(bucket);
+            if (!orderQueue.offer(voucherOrder)) {
+                // 队列已满，归还redis中的库存和购买资格
+                orderTimeoutCanceller.returnStock(voucherId, userId, orderId, bucket, (String) reply.get(2), true);
+                return Result.fail("系统繁忙，请稍后再试！");
+            }
+        }
+        return Result.ok(orderId);
+    }
 
-        // 获取代理对象（事务）
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+    private List<?> executeSeckillScript(Long voucherId, Long userId, int bucket, String voucherOrderId, Instant now) {
+        // 库存、已购用户、订单stream、订单序列号、时间窗口、超时队列、订单状态属于同一分片，通过KEYS传入，保证在集群中落在同一个slot
+        List<String> keys = Arrays.asList(seckillKeys.stockKey(voucherId, bucket), seckillKeys.orderKey(voucherId, bucket),
+                seckillKeys.streamKeyOf(voucherId, bucket), seckillKeys.orderIdKey(voucherId, bucket, now),
+                seckillKeys.windowKey(voucherId, bucket), seckillKeys.timeoutKey(voucherId, bucket),
+                seckillKeys.statusKey(voucherId, bucket), seckillKeys.statusExpireKey(voucherId, bucket),
+                seckillKeys.queuedKey(voucherId, bucket));
+        return stringRedisTemplate.execute(SECKILL_SCRIPT, keys,
+                voucherId.toString(), userId.toString(), voucherOrderId,
+                String.valueOf(redisIdGenerator.timestampPart(now)),
+                String.valueOf(seckillKeys.partitions()), String.valueOf(seckillKeys.partitionOf(voucherId, bucket)),
+                String.valueOf(bucket), orderQueue.enqueuedByScript() ? "1" : "0",
+                String.valueOf(TimeUnit.MINUTES.toMillis(payTimeoutMinutes)),
+                String.valueOf(orderStatusCache.expireAt()));
+    }
 
-        return Result.ok(voucherOrderId);
+    @Override
+    public Result queryOrderStatus(Long voucherId, Long orderId) {
+        Map<Object, Object> status = orderStatusCache.get(voucherId, orderId);
+        // 只能查询自己的订单
+        if (status.isEmpty() || !UserHolder.getUser().getId().toString().equals(status.get("userId"))) {
+            return Result.fail("订单不存在或已过期！");
+        }
+        return Result.ok(status.get("state"));
     }
 
 
@@ -255,25 +365,97 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        return Result.ok(voucherOrderId);
 //    }
 
-    public void createVoucherOrder(VoucherOrder order) {
-        Long userId = UserHolder.getUser().getId();
-        // 4.5 一人一单
-        long count = query().eq("user_id", userId).eq("voucher_id", order.getVoucherId()).count();
-        if (count > 0) {
-            return;
+    /**
+     * 创建订单：一人一单由 tb_voucher_order 的 (user_id, voucher_id) 唯一索引保证，
+     * INSERT IGNORE 插入成功才扣减库存，重复消息直接忽略，不需要分布式锁和count查询
+     * @param order 消息队列中的订单
+     * @return false 订单未创建（数据库库存不足，或同一用户已有其他订单）
+     */
+    @Override
+    @Transactional
+    public boolean createVoucherOrder(VoucherOrder order) {
+        // 1. 插入订单，已存在（重复下单或重复投递）时影响行数为0
+        int inserted = getBaseMapper().insertIgnore(order);
+        if (inserted == 0) {
+            // 重复投递时订单已存在
+            return getById(order.getId()) != null;
         }
 
-        // 5. 扣减库存，在扣减库存时，判断stock要大于0，从而防止超卖
+        // 2. 扣减库存，在扣减库存时，判断stock要大于0，从而防止超卖
         boolean success = seckillVoucherService.update().setSql("stock = stock - 1").eq("voucher_id", order.getVoucherId()).gt("stock", 0).update();
         if (!success) {
-            return;
+            // 数据库库存不足（redis与数据库库存不一致），回滚订单
+            log.error("优惠券{}数据库库存不足，订单{}未创建", order.getVoucherId(), order.getId());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 批量创建订单：同一批消息在一个事务内落库
+     * 1. 内存去重（同一用户同一优惠券只保留第一条）
+     * 2. 按优惠券分组，多行 INSERT IGNORE 写入 tb_voucher_order，已存在的订单由唯一索引忽略
+     * 3. 按实际插入的行数，每个优惠券扣减一次库存
+     * 4. 查询这批订单中已落库的id
+     * 数据库库存不足时整批回滚，由pending-list恢复线程逐条重试
+     * @param orders 消息队列中的一批订单
+     * @return 已落库的订单id，包括本次插入的和重复投递时已存在的；批内去重淘汰的、同一用户已有其他订单的不在其中
+     */
+    @Override
+    @Transactional
+    public Set<Long> createVoucherOrderBatch(List<VoucherOrder> orders) {
+        // 1. 内存去重，key为userId:voucherId
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(orders.size() * 2);
+        for (VoucherOrder order : orders) {
+            unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
         }
 
-        // 6. 创建订单
-        save(order);
+        // 2. 按优惠券分组
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new LinkedHashMap<>();
+        for (VoucherOrder order : unique.values()) {
+            ordersOfVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+        }
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            // 3. 多行INSERT IGNORE创建订单，影响行数即为新订单数
+            int inserted = getBaseMapper().insertIgnoreBatch(entry.getValue());
+            if (inserted == 0) {
+                continue;
+            }
+            // 4. 扣减库存时，判断stock要大于等于新订单数，从而防止超卖
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId).ge("stock", inserted).update();
+            if (!success) {
+                throw new IllegalStateException("优惠券" + voucherId + "数据库库存不足" + inserted);
+            }
+        }
 
-        // 7. 返回
-        return;
+        // 5. 按主键查询已落库的订单，同一事务内可以读到刚插入的行
+        List<Long> ids = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        return new HashSet<>(listObjs(new QueryWrapper<VoucherOrder>().select("id").in("id", ids),
+                o -> ((Number) o).longValue()));
     }
 
+
+    /**
+     * 取消未支付的订单，归还数据库库存
+     * @return false 订单不存在或不是未支付状态
+     */
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(Long orderId, Long voucherId) {
+        // 1. 未支付(1) -> 已取消(4)，与支付互斥
+        boolean cancelled = update().set("status", 4).eq("id", orderId).eq("status", 1).update();
+        if (!cancelled) {
+            return false;
+        }
+        // 2. 归还数据库库存
+        seckillVoucherService.update().setSql("stock = stock + 1").eq("voucher_id", voucherId).update();
+        return true;
+    }
 }
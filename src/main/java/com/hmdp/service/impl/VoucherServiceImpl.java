@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
@@ -7,13 +8,19 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillWarmer;
+import com.hmdp.utils.SoldOutRegistry;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -32,12 +39,79 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillWarmer seckillWarmer;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
-        // 返回结果
-        return Result.ok(vouchers);
+        // 1. 查询店铺的优惠券列表，整个列表作为一个缓存项，空列表也写入缓存
+        List<Voucher> vouchers = cacheClient.queryList(RedisConstants.CACHE_VOUCHER_LIST_KEY, shopId, Voucher.class,
+                getBaseMapper()::queryVoucherOfShop, RedisConstants.CACHE_VOUCHER_LIST_TTL, TimeUnit.MINUTES);
+        if (vouchers == null) {
+            return Result.ok(new ArrayList<>());
+        }
+        // 2. 秒杀券的库存以redis为准，一次MGET读取所有秒杀券所有桶的库存，写入秒杀券的副本，不修改缓存返回的对象
+        return Result.ok(overlaySeckillStock(vouchers));
+    }
+
+    private List<Voucher> overlaySeckillStock(List<Voucher> vouchers) {
+        List<Voucher> result = new ArrayList<>(vouchers.size());
+        List<Voucher> seckillVouchers = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (Voucher voucher : vouchers) {
+            // 普通券LEFT JOIN不到秒杀信息，库存为空
+            if (voucher.getStock() != null) {
+                voucher = BeanUtil.copyProperties(voucher, Voucher.class);
+                seckillVouchers.add(voucher);
+                keys.addAll(seckillKeys.stockKeys(voucher.getId()));
+            }
+            result.add(voucher);
+        }
+        if (keys.isEmpty()) {
+            return result;
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return result;
+        }
+        int index = 0;
+        for (Voucher voucher : seckillVouchers) {
+            int buckets = seckillKeys.bucketsOf(voucher.getId());
+            int stock = 0;
+            boolean warmed = false;
+            for (int i = 0; i < buckets; i++) {
+                String value = values.get(index++);
+                if (value != null) {
+                    warmed = true;
+                    stock += Math.max(0, Integer.parseInt(value));
+                }
+            }
+            // 未预热或已清理的秒杀券保留数据库库存
+            if (warmed) {
+                voucher.setStock(stock);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        evictVoucherOfShop(voucher.getShopId());
+    }
+
+    @Override
+    public void evictVoucherOfShop(Long shopId) {
+        cacheClient.evict(RedisConstants.CACHE_VOUCHER_LIST_KEY + shopId);
     }
 
     @Override
@@ -53,7 +127,14 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存秒杀信息到redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀信息到redis中，库存按桶拆分，并写入秒杀时间窗口
+        int buckets = voucher.getStockBuckets() == null ? 1 : voucher.getStockBuckets();
+        buckets = Math.max(1, Math.min(buckets, Math.max(voucher.getStock(), 1)));
+        seckillKeys.setBuckets(voucher.getId(), buckets);
+        seckillWarmer.warm(seckillVoucher, true);
+        // 补充了库存，清除各节点的售罄标记
+        soldOutRegistry.reset(voucher.getId());
+        // 删除店铺优惠券列表缓存
+        evictVoucherOfShop(voucher.getShopId());
     }
 }
@@ -0,0 +1,587 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.ArrayUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Description: 通用的两级缓存查询
+ * 按key前缀、类型、数据库查询函数和过期时间缓存任意实体，redis（二级缓存）三种策略：
+ * PASS_THROUGH 缓存空值解决缓存穿透；
+ * MUTEX 缓存空值 + 互斥锁重建解决缓存击穿；
+ * LOGICAL_EXPIRE 不设置物理过期时间，过期后由拿到锁的线程异步重建，其他线程返回旧数据；
+ * 策略可以在调用时指定，也可以按缓存名配置 hmdp.cache.strategies.<name>，缓存名为 cache:<name>: 前缀中的name；
+ * hmdp.cache.local.names 中的缓存在redis之前加一级进程内缓存，过期时间不超过redis中的过期时间，
+ * 一级缓存返回的是共享的对象，调用方不能修改；evict删除redis后通过 cache:invalidate 通知所有节点删除一级缓存；
+ * 同一节点同一个key的并发未命中合并为一次查询（single-flight），只有一个线程获取分布式锁、查询数据库，其他线程等待结果；
+ * 其他节点持有重建锁时，等待它通过 cache:rebuilt 发布的重建结果（CacheRebuildLock）；
+ * 等待本节点其他线程或其他节点重建都不超过 hmdp.cache.lock.max-wait-millis，超时后直接查询一次数据库
+ */
+@Slf4j
+@Component
+public class CacheClient {
+
+    public enum Strategy {
+        PASS_THROUGH, MUTEX, LOGICAL_EXPIRE
+    }
+
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+
+    /**
+     * 未配置策略的缓存使用的默认策略
+     */
+    @Value("${hmdp.cache.default-strategy:mutex}")
+    private String defaultStrategy;
+
+    /**
+     * 使用一级缓存的缓存名
+     */
+    @Value("${hmdp.cache.local.names:}")
+    private String[] localNames;
+
+    /**
+     * 每个一级缓存的最大条目数
+     */
+    @Value("${hmdp.cache.local.max-size:10000}")
+    private int localMaxSize;
+
+    /**
+     * 一级缓存的最长过期时间（秒），跨节点失效消息丢失时最多读到这么久的旧数据
+     */
+    @Value("${hmdp.cache.local.ttl-seconds:60}")
+    private long localTtlSeconds;
+
+    /**
+     * 等待重建的最长时间（毫秒），重建锁持有期间会续期，持有者查询很慢时不能一直等下去
+     */
+    @Value("${hmdp.cache.lock.max-wait-millis:10000}")
+    private long maxWaitMillis;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private Environment environment;
+
+    @Resource
+    private CacheRebuildLock rebuildLock;
+
+    // 缓存名 -> 策略
+    private final Map<String, Strategy> strategies = new ConcurrentHashMap<>();
+
+    // 缓存名 -> 一级缓存
+    private final Map<String, LocalCache> localCaches = new ConcurrentHashMap<>();
+
+    // 缓存名 -> 命中统计
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    // key -> 本节点正在进行的查询
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    // 本节点正在异步重建的逻辑过期key
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    private RTopic invalidateTopic;
+
+    @PostConstruct
+    private void init() {
+        for (String name : ArrayUtil.nullToEmpty(localNames)) {
+            if (StrUtil.isNotBlank(name)) {
+                localCaches.put(name.trim(), new LocalCache(localMaxSize));
+            }
+        }
+        invalidateTopic = redissonClient.getTopic(RedisConstants.CACHE_INVALIDATE_TOPIC, StringCodec.INSTANCE);
+        invalidateTopic.addListener(String.class, (channel, key) -> removeLocal(key));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        CACHE_REBUILD_EXECUTOR.shutdownNow();
+    }
+
+    public void set(String key, Object value, Long time, TimeUnit unit) {
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+    }
+
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        // 不设置redis的物理过期时间
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    }
+
+    /**
+     * 删除redis缓存，并通知所有节点删除一级缓存
+     */
+    public void evict(String key) {
+        stringRedisTemplate.delete(key);
+        removeLocal(key);
+        try {
+            invalidateTopic.publish(key);
+        } catch (Exception e) {
+            log.error("广播缓存失效失败 {}", key, e);
+        }
+    }
+
+    /**
+     * 按缓存名配置的策略查询
+     */
+    public <R, ID> R query(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        return query(keyPrefix, id, type, dbFallback, time, unit, strategyOf(keyPrefix));
+    }
+
+    public <R, ID> R query(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                           Strategy strategy) {
+        return query(keyPrefix, id, json -> JSONUtil.parse(json).toBean(type), dbFallback, time, unit, strategy);
+    }
+
+    /**
+     * 缓存列表，按缓存名配置的策略查询
+     */
+    public <R, ID> List<R> queryList(String keyPrefix, ID id, Class<R> type, Function<ID, List<R>> dbFallback,
+                                     Long time, TimeUnit unit) {
+        return query(keyPrefix, id, json -> JSONUtil.parseArray(json).toList(type), dbFallback, time, unit,
+                strategyOf(keyPrefix));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R, ID> R query(String keyPrefix, ID id, Function<Object, R> decoder, Function<ID, R> dbFallback,
+                            Long time, TimeUnit unit, Strategy strategy) {
+        String name = cacheName(keyPrefix);
+        Lookup<R, ID> lookup = new Lookup<>(keyPrefix + id, id, decoder, dbFallback, time, unit,
+                localCaches.get(name), stats.computeIfAbsent(name, this::registerStats), strategy == Strategy.LOGICAL_EXPIRE);
+        // 1. 查询一级缓存
+        if (lookup.local != null) {
+            Object value = lookup.local.get(lookup.key);
+            if (value != null) {
+                lookup.stats.l1Hits.incrementAndGet();
+                return value == LocalCache.NULL ? null : (R) value;
+            }
+            lookup.stats.l1Misses.incrementAndGet();
+            lookup.version = lookup.local.version(lookup.key);
+        }
+        // 2. 查询redis
+        switch (strategy) {
+            case PASS_THROUGH:
+                return queryWithPassThrough(lookup);
+            case LOGICAL_EXPIRE:
+                return queryWithLogicalExpire(lookup);
+            default:
+                return queryWithMutex(lookup);
+        }
+    }
+
+    // 使用缓存空值解决缓存穿透
+    private <R, ID> R queryWithPassThrough(Lookup<R, ID> lookup) {
+        // 1. 从redis查询缓存
+        String json = get(lookup);
+        // 2. 缓存中存在，直接返回
+        if (json != null) {
+            return lookup.hit(json);
+        }
+        // 3. 不存在，查数据库并写回缓存，本节点同一个key只有一个线程查询
+        return singleFlight(lookup, () -> load(lookup));
+    }
+
+    // 使用互斥锁解决缓存击穿
+    private <R, ID> R queryWithMutex(Lookup<R, ID> lookup) {
+        // 1. 从redis查询缓存
+        String json = get(lookup);
+        // 2. 缓存中存在，直接返回
+        if (json != null) {
+            return lookup.hit(json);
+        }
+        // 3. 本节点同一个key只有一个线程获取分布式锁重建，其他线程等待它的结果
+        return singleFlight(lookup, () -> rebuildWithLock(lookup, () -> load(lookup)));
+    }
+
+    /**
+     * 获取分布式锁重建缓存，锁被其他节点持有时等待它发布的重建完成通知，超过maxWaitMillis直接查询数据库
+     */
+    private <R, ID> R rebuildWithLock(Lookup<R, ID> lookup, Supplier<R> loader) {
+        String lockKey = lockKey(lookup.key);
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            // 1. 获取锁，所有节点只有一个线程重建缓存
+            String token = rebuildLock.tryLock(lockKey);
+            if (token != null) {
+                try {
+                    // 1.1 获取锁后再次检查，其他节点可能已经重建完成
+                    String json = get(lookup);
+                    if (json != null) {
+                        return lookup.cached(json);
+                    }
+                    // 1.2 查数据库并写回缓存，通知等待的节点
+                    R r = loader.get();
+                    rebuildLock.publishRebuilt(lookup.key, r == null ? "" : JSONUtil.toJsonStr(r));
+                    return r;
+                } finally {
+                    rebuildLock.unlock(lockKey, token);
+                }
+            }
+            // 2. 其他节点正在重建，等待重建完成的通知
+            CompletableFuture<String> rebuilt = rebuildLock.watch(lookup.key);
+            try {
+                // 2.1 开始等待后再检查一次，通知可能在获取锁失败之后、开始等待之前发布
+                String json = get(lookup);
+                if (json != null) {
+                    return lookup.cached(json);
+                }
+                // 2.2 最多等待一个锁的过期时间，重建的节点宕机后锁很快过期，重新获取锁
+                long wait = Math.min(rebuildLock.ttlMillis(), remaining);
+                return lookup.rebuilt(rebuilt.get(wait, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                log.debug("等待缓存{}重建超时，重新获取锁", lookup.key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                rebuildLock.unwatch(lookup.key, rebuilt);
+            }
+        }
+        // 3. 持有锁的节点一直没有完成重建，直接查询数据库
+        log.warn("等待缓存{}重建超过{}毫秒，直接查询数据库", lookup.key, maxWaitMillis);
+        return loadDirectly(lookup);
+    }
+
+    // 使用逻辑过期解决缓存击穿
+    private <R, ID> R queryWithLogicalExpire(Lookup<R, ID> lookup) {
+        // 1. 从redis查询缓存
+        String json = get(lookup);
+        // 2. 未预热，按互斥锁方式加载一次，写入逻辑过期的缓存
+        if (json == null) {
+            return singleFlight(lookup, () -> rebuildWithLock(lookup, () -> loadWithLogicalExpire(lookup)));
+        }
+        // 3. 命中，将json反序列化为对象
+        if (StrUtil.isBlank(json)) {
+            return lookup.hit(json);
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        R r = lookup.hitLogical(redisData);
+        // 4. 未过期，直接返回
+        if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+            return r;
+        }
+        // 5. 已过期，获取锁成功的线程异步重建，所有线程先返回过期的数据；本节点已在重建时不再获取锁
+        String lockKey = lockKey(lookup.key);
+        if (!rebuilding.add(lookup.key)) {
+            return r;
+        }
+        String token = rebuildLock.tryLock(lockKey);
+        if (token == null) {
+            rebuilding.remove(lookup.key);
+            return r;
+        }
+        // 6. 获取锁后再次检查，读到旧数据之后其他线程可能已经重建完成并释放了锁
+        String latest = stringRedisTemplate.opsForValue().get(lookup.key);
+        if (StrUtil.isNotBlank(latest)) {
+            RedisData latestData = JSONUtil.toBean(latest, RedisData.class);
+            if (latestData.getExpireTime().isAfter(LocalDateTime.now())) {
+                rebuildLock.unlock(lockKey, token);
+                rebuilding.remove(lookup.key);
+                return lookup.decoder.apply(latestData.getData());
+            }
+        }
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                setWithLogicalExpire(lookup.key, lookup.dbFallback.apply(lookup.id), lookup.time, lookup.unit);
+                // 通知各节点丢弃一级缓存中的旧数据
+                removeLocal(lookup.key);
+                invalidateTopic.publish(lookup.key);
+            } catch (Exception e) {
+                log.error("重建缓存{}失败", lookup.key, e);
+            } finally {
+                rebuildLock.unlock(lockKey, token);
+                rebuilding.remove(lookup.key);
+            }
+        });
+        return r;
+    }
+
+    /**
+     * 读取redis缓存，使用一级缓存时在同一管道中读取剩余过期时间，一级缓存不超过redis中的剩余时间
+     */
+    private String get(Lookup<?, ?> lookup) {
+        if (lookup.local == null) {
+            return stringRedisTemplate.opsForValue().get(lookup.key);
+        }
+        byte[] key = lookup.key.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.stringCommands().get(key);
+            connection.keyCommands().pTtl(key);
+            return null;
+        });
+        // PTTL：-1 没有过期时间（逻辑过期），-2 不存在
+        lookup.redisTtlMillis = results.get(1) instanceof Long ? (Long) results.get(1) : -1;
+        return (String) results.get(0);
+    }
+
+    private <R, ID> R loadWithLogicalExpire(Lookup<R, ID> lookup) {
+        lookup.stats.l2Misses.incrementAndGet();
+        R r = lookup.dbFallback.apply(lookup.id);
+        if (r == null) {
+            stringRedisTemplate.opsForValue().set(lookup.key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            lookup.putLocal(null, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+            return null;
+        }
+        setWithLogicalExpire(lookup.key, r, lookup.time, lookup.unit);
+        lookup.putLocal(r, lookup.unit.toMillis(lookup.time));
+        return r;
+    }
+
+    /**
+     * 同一个key同时只有一个线程执行loader，其他线程等待它完成后解析它的结果，不再访问redis
+     */
+    private <R, ID> R singleFlight(Lookup<R, ID> lookup, Supplier<R> loader) {
+        CompletableFuture<String> flight = new CompletableFuture<>();
+        CompletableFuture<String> leader = inFlight.putIfAbsent(lookup.key, flight);
+        if (leader != null) {
+            lookup.stats.coalesced.incrementAndGet();
+            try {
+                // 等待结果时不需要休眠重试，重建完成后立即唤醒
+                return lookup.decode(leader.get(maxWaitMillis, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                // 本节点查询的线程一直没有返回，直接查询数据库
+                log.warn("等待本节点查询缓存{}超过{}毫秒，直接查询数据库", lookup.key, maxWaitMillis);
+                return loadDirectly(lookup);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+            }
+        }
+        try {
+            R r = loader.get();
+            // 等待的线程各自反序列化，不共享对象
+            flight.complete(r == null ? "" : JSONUtil.toJsonStr(r));
+            return r;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(lookup.key, flight);
+        }
+    }
+
+    private <R, ID> R load(Lookup<R, ID> lookup) {
+        lookup.stats.l2Misses.incrementAndGet();
+        R r = lookup.dbFallback.apply(lookup.id);
+        if (r == null) {
+            // 数据库不存在，缓存空值防止缓存穿透
+            stringRedisTemplate.opsForValue().set(lookup.key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            lookup.putLocal(null, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+            return null;
+        }
+        set(lookup.key, r, lookup.time, lookup.unit);
+        lookup.putLocal(r, lookup.unit.toMillis(lookup.time));
+        return r;
+    }
+
+    /**
+     * 等待重建超时后查询一次数据库，不写缓存，缓存由正在重建的线程写入
+     */
+    private <R, ID> R loadDirectly(Lookup<R, ID> lookup) {
+        lookup.stats.l2Misses.incrementAndGet();
+        return lookup.dbFallback.apply(lookup.id);
+    }
+
+    private void removeLocal(String key) {
+        LocalCache local = localCaches.get(cacheName(key));
+        if (local != null) {
+            local.remove(key);
+        }
+    }
+
+    private Strategy strategyOf(String keyPrefix) {
+        return strategies.computeIfAbsent(cacheName(keyPrefix), n -> {
+            String value = environment.getProperty("hmdp.cache.strategies." + n, defaultStrategy);
+            return Strategy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        });
+    }
+
+    private Stats registerStats(String name) {
+        Stats s = new Stats();
+        if (localCaches.containsKey(name)) {
+            registerLevel(name, "l1", s.l1Hits, s.l1Misses);
+        }
+        registerLevel(name, "l2", s.l2Hits, s.l2Misses);
+        FunctionCounter.builder("cache.coalesced", s.coalesced, AtomicLong::get)
+                .description("等待同一节点其他线程查询结果的请求数").tag("cache", name).register(meterRegistry);
+        return s;
+    }
+
+    private void registerLevel(String name, String level, AtomicLong hits, AtomicLong misses) {
+        FunctionCounter.builder("cache.gets", hits, AtomicLong::get)
+                .tag("cache", name).tag("level", level).tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("cache.gets", misses, AtomicLong::get)
+                .tag("cache", name).tag("level", level).tag("result", "miss").register(meterRegistry);
+        Gauge.builder("cache.hit.ratio", () -> ratio(hits, misses))
+                .description("缓存命中率，二级缓存只统计一级缓存未命中的请求")
+                .tag("cache", name).tag("level", level).register(meterRegistry);
+    }
+
+    private static double ratio(AtomicLong hits, AtomicLong misses) {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * cache:shop: / cache:shop:1 -> shop
+     */
+    private static String cacheName(String key) {
+        String name = StrUtil.removePrefix(key, RedisConstants.CACHE_KEY_PREFIX);
+        int end = name.indexOf(':');
+        return end < 0 ? name : name.substring(0, end);
+    }
+
+    private static String lockKey(String key) {
+        // cache:shop:1 -> lock:shop:1
+        return RedisConstants.LOCK_KEY_PREFIX + StrUtil.removePrefix(key, RedisConstants.CACHE_KEY_PREFIX);
+    }
+
+    private static class Stats {
+        final AtomicLong l1Hits = new AtomicLong();
+        final AtomicLong l1Misses = new AtomicLong();
+        final AtomicLong l2Hits = new AtomicLong();
+        final AtomicLong l2Misses = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+    }
+
+    /**
+     * 一次查询的参数，以及命中redis后写入一级缓存
+     */
+    private class Lookup<R, ID> {
+        final String key;
+        final ID id;
+        final Function<Object, R> decoder;
+        final Function<ID, R> dbFallback;
+        final Long time;
+        final TimeUnit unit;
+        final LocalCache local;
+        final Stats stats;
+        // redis中的值是否为逻辑过期格式
+        final boolean logical;
+        // 读取redis之前一级缓存中该key的版本号
+        long version;
+        // 读取时redis中该key的剩余过期时间（毫秒），没有过期时间或未读取时为-1
+        long redisTtlMillis = -1;
+
+        Lookup(String key, ID id, Function<Object, R> decoder, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+               LocalCache local, Stats stats, boolean logical) {
+            this.key = key;
+            this.id = id;
+            this.decoder = decoder;
+            this.dbFallback = dbFallback;
+            this.time = time;
+            this.unit = unit;
+            this.local = local;
+            this.stats = stats;
+            this.logical = logical;
+        }
+
+        /**
+         * 命中redis，按缓存格式解析
+         */
+        R cached(String json) {
+            return logical && StrUtil.isNotBlank(json) ? hitLogical(JSONUtil.toBean(json, RedisData.class)) : hit(json);
+        }
+
+        /**
+         * 其他节点重建完成后通知的结果
+         */
+        R rebuilt(String json) {
+            stats.l2Hits.incrementAndGet();
+            R r = decode(json);
+            putLocal(r, json.isEmpty() ? TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL) : unit.toMillis(time));
+            return r;
+        }
+
+        /**
+         * 命中redis中的普通缓存或空值
+         */
+        R hit(String json) {
+            stats.l2Hits.incrementAndGet();
+            if (StrUtil.isBlank(json)) {
+                putLocal(null, remaining(TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL)));
+                return null;
+            }
+            R r = decoder.apply(json);
+            putLocal(r, remaining(unit.toMillis(time)));
+            return r;
+        }
+
+        /**
+         * 命中时一级缓存的过期时间不超过redis中的剩余时间，快过期的缓存不会在一级缓存中多保留一个完整的过期时间
+         */
+        long remaining(long ttlMillis) {
+            return redisTtlMillis >= 0 ? Math.min(ttlMillis, redisTtlMillis) : ttlMillis;
+        }
+
+        /**
+         * 解析同一节点其他线程查询到的结果
+         */
+        R decode(String json) {
+            return StrUtil.isBlank(json) ? null : decoder.apply(json);
+        }
+
+        /**
+         * 命中redis中逻辑过期的缓存，一级缓存不超过逻辑过期时间
+         */
+        R hitLogical(RedisData redisData) {
+            stats.l2Hits.incrementAndGet();
+            R r = decoder.apply(redisData.getData());
+            putLocal(r, Duration.between(LocalDateTime.now(), redisData.getExpireTime()).toMillis());
+            return r;
+        }
+
+        void putLocal(R value, long ttlMillis) {
+            if (local != null) {
+                local.put(key, value, Math.min(ttlMillis, TimeUnit.SECONDS.toMillis(localTtlSeconds)), version);
+            }
+        }
+    }
+}
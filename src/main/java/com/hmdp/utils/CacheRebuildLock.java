@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: 缓存重建锁与重建完成通知
+ * 锁的过期时间很短（ttl-millis），持有期间每隔三分之一个过期时间续期一次，持有者宕机后锁很快过期；
+ * 锁的值为持有者的token，续期和释放都校验token，可以在其他线程释放（逻辑过期的异步重建）；
+ * 重建完成后在 cache:rebuilt 上发布 key和重建结果，等待的节点收到后直接使用结果，不再轮询缓存
+ */
+@Slf4j
+@Component
+public class CacheRebuildLock {
+
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
+
+    static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("cache_lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 锁的过期时间（毫秒），也是等待重建通知的最长时间
+     */
+    @Value("${hmdp.cache.lock.ttl-millis:3000}")
+    private long ttlMillis;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 本节点持有的锁，lockKey -> token
+    private final Map<String, String> held = new ConcurrentHashMap<>();
+
+    // 本节点等待重建完成的key
+    private final Map<String, CompletableFuture<String>> waiters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService renewal = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-lock-renewal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RTopic rebuiltTopic;
+
+    @PostConstruct
+    private void init() {
+        rebuiltTopic = redissonClient.getTopic(RedisConstants.CACHE_REBUILT_TOPIC, StringCodec.INSTANCE);
+        rebuiltTopic.addListener(String.class, (channel, msg) -> onRebuilt(msg));
+        long period = Math.max(1, ttlMillis / 3);
+        renewal.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        renewal.shutdownNow();
+    }
+
+    public long ttlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @return 获取成功时返回token，用于释放锁；失败返回空
+     */
+    public String tryLock(String lockKey) {
+        String token = UUID.fastUUID().toString(true);
+        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, ttlMillis, TimeUnit.MILLISECONDS);
+        if (!Boolean.TRUE.equals(success)) {
+            return null;
+        }
+        held.put(lockKey, token);
+        return token;
+    }
+
+    public void unlock(String lockKey, String token) {
+        held.remove(lockKey, token);
+        stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(lockKey), token, "0");
+    }
+
+    /**
+     * 通知所有节点重建完成
+     * @param json 重建后的数据，数据库不存在时为空串
+     */
+    public void publishRebuilt(String key, String json) {
+        try {
+            rebuiltTopic.publish(key + "\n" + json);
+        } catch (Exception e) {
+            log.error("广播缓存重建完成失败 {}", key, e);
+        }
+    }
+
+    /**
+     * 等待key重建完成，需要在再次检查缓存之前调用，避免错过检查之后、等待之前发布的通知
+     */
+    public CompletableFuture<String> watch(String key) {
+        return waiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+    }
+
+    public void unwatch(String key, CompletableFuture<String> rebuilt) {
+        waiters.remove(key, rebuilt);
+    }
+
+    private void onRebuilt(String msg) {
+        int sep = msg.indexOf('\n');
+        CompletableFuture<String> rebuilt = waiters.remove(msg.substring(0, sep));
+        if (rebuilt != null) {
+            rebuilt.complete(msg.substring(sep + 1));
+        }
+    }
+
+    private void renew() {
+        held.forEach((lockKey, token) -> {
+            try {
+                Long result = stringRedisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(lockKey), token,
+                        String.valueOf(ttlMillis));
+                if (result == null || result != 1L) {
+                    // 续期不及时，锁已过期
+                    held.remove(lockKey, token);
+                    log.warn("缓存重建锁{}已过期", lockKey);
+                }
+            } catch (Exception e) {
+                log.error("缓存重建锁{}续期异常", lockKey, e);
+            }
+        });
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description: 店铺、笔记id的布隆过滤器，防止缓存穿透
+ * 过滤器保存在redis中（Redisson RBloomFilter，bitmap实现），所有节点共享；
+ * 第一个拿到锁的节点在临时key bloom:<name>:building 中创建过滤器，按id分页扫描全表写入，完成后RENAME为正式的过滤器，
+ * 再写入 bloom:<name>:ready，构建期间旧的过滤器继续使用；新增店铺、笔记时写入过滤器，正在构建时同时写入临时过滤器；
+ * 每次定时检查都重新读取 bloom:<name>:ready，标记丢失（例如redis数据被清空）时本节点停止使用过滤器并重新构建；
+ * 查询前先判断id是否可能存在，不存在的id直接返回，不写空值缓存，也不查询数据库；
+ * 过滤器构建完成之前以及访问redis出错时一律放行，退化为缓存空值的方式
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+
+    // 扫描全表时每页的id数
+    private static final int SCAN_BATCH = 1000;
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每个过滤器预计的元素数，超出后误判率上升
+     */
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.false-probability:0.01}")
+    private double falseProbability;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Lazy
+    @Resource
+    private IShopService shopService;
+
+    @Lazy
+    @Resource
+    private IBlogService blogService;
+
+    // 已构建完成的过滤器
+    private final Map<String, Boolean> ready = new ConcurrentHashMap<>();
+
+    /**
+     * @return false 表示id一定不存在
+     */
+    public boolean mightContain(String name, Long id) {
+        if (!enabled || id == null || !ready.containsKey(name)) {
+            return true;
+        }
+        try {
+            return filter(name).contains(id);
+        } catch (Exception e) {
+            log.error("查询布隆过滤器{}异常", name, e);
+            return true;
+        }
+    }
+
+    /**
+     * 新增数据后写入过滤器，过滤器正在构建时由扫描补上
+     */
+    public void add(String name, Long id) {
+        if (!enabled || id == null) {
+            return;
+        }
+        try {
+            // 正在构建的过滤器也写入，扫描开始之前提交的数据由扫描写入；
+            // 先写临时过滤器再写正式的，期间发生RENAME时也至少有一次写入替换后的过滤器
+            RBloomFilter<Long> building = building(name);
+            if (building.isExists()) {
+                building.add(id);
+            }
+        } catch (Exception e) {
+            log.debug("写入构建中的布隆过滤器{}失败", name, e);
+        }
+        try {
+            filter(name).add(id);
+        } catch (Exception e) {
+            // 过滤器还未创建，之后的全表扫描会包含这条数据
+            log.debug("写入布隆过滤器{}失败", name, e);
+        }
+    }
+
+    /**
+     * 启动后以及之后定时检查过滤器是否可用，不可用时尝试构建
+     */
+    @Scheduled(initialDelay = 1000L, fixedDelay = 10000L)
+    public void ensureBuilt() {
+        if (!enabled) {
+            return;
+        }
+        ensureBuilt(SHOP, shopService);
+        ensureBuilt(BLOG, blogService);
+    }
+
+    private <T> void ensureBuilt(String name, IService<T> service) {
+        String key = RedisConstants.BLOOM_KEY_PREFIX + name;
+        if ("1".equals(stringRedisTemplate.opsForValue().get(key + ":ready"))) {
+            ready.put(name, true);
+            return;
+        }
+        // 标记不存在，过滤器可能已丢失，停止使用
+        if (ready.remove(name) != null) {
+            log.warn("布隆过滤器{}的就绪标记丢失，重新构建", name);
+        }
+        // 其他节点正在构建时等下一次检查
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_KEY_PREFIX + key);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            // 在临时key中构建，上次构建中途失败的临时过滤器删除重建
+            RBloomFilter<Long> filter = building(name);
+            filter.delete();
+            filter.tryInit(expectedInsertions, falseProbability);
+            // 先创建过滤器再扫描，扫描开始后新增的数据由add写入
+            long count = 0;
+            long last = 0;
+            while (true) {
+                List<Long> ids = service.listObjs(new QueryWrapper<T>()
+                        .select("id").gt("id", last).orderByAsc("id").last("limit " + SCAN_BATCH),
+                        o -> ((Number) o).longValue());
+                if (ids.isEmpty()) {
+                    break;
+                }
+                filter.add(ids);
+                count += ids.size();
+                last = ids.get(ids.size() - 1);
+            }
+            // 替换正式的过滤器（位图和配置一起），构建期间一直使用旧的过滤器
+            filter.rename(key);
+            stringRedisTemplate.opsForValue().set(key + ":ready", "1");
+            ready.put(name, true);
+            log.info("布隆过滤器{}构建完成，{}个id，耗时{}ms", name, count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("构建布隆过滤器{}失败", name, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private RBloomFilter<Long> filter(String name) {
+        return redissonClient.getBloomFilter(RedisConstants.BLOOM_KEY_PREFIX + name, LongCodec.INSTANCE);
+    }
+
+    private RBloomFilter<Long> building(String name) {
+        return redissonClient.getBloomFilter(RedisConstants.BLOOM_KEY_PREFIX + name + ":building", LongCodec.INSTANCE);
+    }
+}
@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description: 进程内缓存，CacheClient的一级缓存
+ * 每个条目有各自的过期时间，读取时发现过期即删除；条目数超过maxSize时由一个线程清理：
+ * 先删除已过期的条目，仍超出时按最近访问时间删除最久未访问的条目，直到降到maxSize的90%；
+ * 每个key有各自的版本号：失效时写入一个带新版本号的墓碑条目，读取二级缓存前取得该key的版本号，写入时版本号已变化则放弃，
+ * 避免把失效前读到的旧值放回一级缓存，一个key的失效不影响其他key的写入；
+ * 墓碑保留TOMBSTONE_MILLIS，与普通条目一起计入maxSize、按写入时间参与淘汰，大量未缓存的key失效时条目数仍有上限；
+ * 耗时更长的读取、或墓碑已被淘汰时仍可能写回旧值，最多保留到一级缓存过期
+ */
+public class LocalCache {
+
+    /**
+     * 缓存的空值，区分“未缓存”和“数据库不存在”
+     */
+    public static final Object NULL = new Object();
+
+    // 失效墓碑的保留时间，需要大于一次读取二级缓存和数据库的耗时
+    static final long TOMBSTONE_MILLIS = 60000L;
+
+    // 墓碑的值
+    private static final Object TOMBSTONE = new Object();
+
+    private final int maxSize;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    // 版本号的来源，每次失效和写入递增
+    private final AtomicLong clock = new AtomicLong();
+
+    public LocalCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return 缓存的值，数据库不存在时为NULL，未缓存或已过期时为空
+     */
+    public Object get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.expireAt <= now) {
+            entries.remove(key, entry);
+            return null;
+        }
+        if (entry.value == TOMBSTONE) {
+            return null;
+        }
+        entry.lastAccess = now;
+        return entry.value;
+    }
+
+    /**
+     * key当前的版本号，在读取二级缓存之前获取，未缓存时为0
+     */
+    public long version(String key) {
+        Entry entry = entries.get(key);
+        return entry == null || entry.expireAt <= System.currentTimeMillis() ? 0 : entry.version;
+    }
+
+    /**
+     * 写入缓存，期间该key失效或已被其他线程写入时放弃
+     * @param version 读取二级缓存之前获取的该key的版本号
+     */
+    public void put(String key, Object value, long ttlMillis, long version) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(value == null ? NULL : value, now + ttlMillis, now, clock.incrementAndGet());
+        Entry current = entries.compute(key, (k, old) -> {
+            long oldVersion = old == null || old.expireAt <= now ? 0 : old.version;
+            return oldVersion == version ? entry : old;
+        });
+        if (current == entry && entries.size() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * 失效，写入墓碑使正在读取二级缓存的线程放弃写入
+     */
+    public void remove(String key) {
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry(TOMBSTONE, now + TOMBSTONE_MILLIS, now, clock.incrementAndGet()));
+        if (entries.size() > maxSize) {
+            evict();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            entries.entrySet().removeIf(e -> e.getValue().expireAt <= now);
+            int target = maxSize * 9 / 10;
+            if (entries.size() <= target) {
+                return;
+            }
+            // 墓碑的访问时间即写入时间，与普通条目一起按时间淘汰，同一毫秒内按版本号先淘汰先写入的
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+            snapshot.sort(Comparator.<Map.Entry<String, Entry>>comparingLong(e -> e.getValue().lastAccess)
+                    .thenComparingLong(e -> e.getValue().version));
+            int overflow = Math.min(snapshot.size(), entries.size() - target);
+            for (int i = 0; i < overflow; i++) {
+                Map.Entry<String, Entry> e = snapshot.get(i);
+                entries.remove(e.getKey(), e.getValue());
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class Entry {
+        final Object value;
+        final long expireAt;
+        final long version;
+        volatile long lastAccess;
+
+        Entry(Object value, long expireAt, long lastAccess, long version) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.lastAccess = lastAccess;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Description: 订单组提交（write-behind）
+ * 各个订单消费者把读到的一批订单交给提交线程后等待结果，提交线程最多等待maxWaitMillis、凑够maxRows个订单，
+ * 合并成一个事务写入tb_voucher_order（一次提交，一次fsync），提交成功后各消费者再ACK自己的消息；
+ * 合并提交失败时退回到按消费者的批次分别提交，一个批次的失败不影响其他消费者；
+ * 消费者最多等待timeout-millis，超时后放弃这次提交，在自己的线程里直接写入（INSERT IGNORE，与提交线程重复写入也不会重复下单）；
+ * 提交线程意外退出时，下一次提交会重新启动它
+ */
+@Slf4j
+@Component
+public class OrderGroupCommitter {
+
+    /**
+     * 每组最多合并的订单数
+     */
+    @Value("${hmdp.seckill.group-commit.max-rows:500}")
+    private int maxRows;
+
+    /**
+     * 每组从第一批订单到达起最多等待的时间（毫秒）
+     */
+    @Value("${hmdp.seckill.group-commit.max-wait-millis:5}")
+    private long maxWaitMillis;
+
+    /**
+     * 消费者等待组提交的最长时间（毫秒），超时后直接写入
+     */
+    @Value("${hmdp.seckill.group-commit.timeout-millis:5000}")
+    private long timeoutMillis;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final LinkedBlockingQueue<Submission> submissions = new LinkedBlockingQueue<>();
+
+    private Function<List<VoucherOrder>, Set<Long>> writer;
+
+    private volatile Thread committer;
+
+    private DistributionSummary commitSize;
+
+    private Timer commitLatency;
+
+    private Timer commitWait;
+
+    private volatile boolean running = true;
+
+    /**
+     * 启动提交线程
+     * @param writer 在一个事务内写入一组订单，返回已落库的订单id
+     */
+    public void start(Function<List<VoucherOrder>, Set<Long>> writer) {
+        this.writer = writer;
+        commitSize = DistributionSummary.builder("seckill.order.commit.size")
+                .description("每次提交写入的订单数").publishPercentileHistogram().register(meterRegistry);
+        commitLatency = Timer.builder("seckill.order.commit.latency")
+                .description("每次提交的事务耗时").publishPercentileHistogram().register(meterRegistry);
+        commitWait = Timer.builder("seckill.order.commit.wait")
+                .description("订单从交给提交线程到提交完成的耗时").publishPercentileHistogram().register(meterRegistry);
+        startCommitter();
+    }
+
+    private synchronized void startCommitter() {
+        if (committer != null && committer.isAlive()) {
+            return;
+        }
+        if (committer != null) {
+            log.error("订单提交线程已退出，重新启动");
+        }
+        committer = new Thread(this::run, "order-group-committer");
+        committer.start();
+    }
+
+    /**
+     * 停止提交线程，已提交的订单处理完后退出
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        committer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+
+    /**
+     * 提交一批订单并等待所在的组提交完成
+     * @return 所在的组中已落库的订单id
+     * @throws IllegalStateException 提交失败，调用方不应确认这批消息
+     */
+    public Set<Long> commit(List<VoucherOrder> orders) throws InterruptedException {
+        if (!running) {
+            throw new IllegalStateException("订单提交线程已停止");
+        }
+        if (!committer.isAlive()) {
+            startCommitter();
+        }
+        Submission submission = new Submission(orders);
+        submissions.add(submission);
+        try {
+            return submission.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("订单提交失败", e.getCause());
+        } catch (TimeoutException e) {
+            // 提交线程阻塞或过慢，放弃这次提交，直接写入
+            submission.abandoned = true;
+            log.warn("等待组提交超过{}ms，直接写入{}个订单", timeoutMillis, orders.size());
+            return write(orders);
+        } finally {
+            commitWait.record(System.nanoTime() - submission.submitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void run() {
+        List<Submission> group = new ArrayList<>();
+        while (running || !submissions.isEmpty()) {
+            try {
+                // 1. 等待第一批订单
+                Submission first = submissions.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                int rows = first.orders.size();
+                // 2. 凑够maxRows或等待超时
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while (rows < maxRows) {
+                    long remaining = deadline - System.nanoTime();
+                    Submission next = remaining > 0 ? submissions.poll(remaining, TimeUnit.NANOSECONDS) : submissions.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                    rows += next.orders.size();
+                }
+                // 3. 一个事务提交整组，已超时放弃的批次由消费者自己写入
+                group.removeIf(submission -> submission.abandoned);
+                if (!group.isEmpty()) {
+                    flush(group, rows);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                // 未完成的批次由消费者超时后直接写入
+                log.error("组提交异常", e);
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void flush(List<Submission> group, int rows) {
+        List<VoucherOrder> orders = new ArrayList<>(rows);
+        for (Submission submission : group) {
+            orders.addAll(submission.orders);
+        }
+        try {
+            Set<Long> persisted = write(orders);
+            group.forEach(submission -> submission.future.complete(persisted));
+            return;
+        } catch (Exception e) {
+            if (group.size() == 1) {
+                group.get(0).future.completeExceptionally(e);
+                return;
+            }
+            log.warn("组提交{}个订单失败，按批次分别提交", rows, e);
+        }
+        for (Submission submission : group) {
+            try {
+                submission.future.complete(write(submission.orders));
+            } catch (Exception e) {
+                submission.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private Set<Long> write(List<VoucherOrder> orders) {
+        long start = System.nanoTime();
+        Set<Long> persisted = writer.apply(orders);
+        commitLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        commitSize.record(orders.size());
+        return persisted == null ? new HashSet<>() : persisted;
+    }
+
+    private static class Submission {
+        final List<VoucherOrder> orders;
+        final CompletableFuture<Set<Long>> future = new CompletableFuture<>();
+        final long submitNanos = System.nanoTime();
+        // 消费者等待超时后已自行写入
+        volatile boolean abandoned;
+
+        Submission(List<VoucherOrder> orders) {
+            this.orders = orders;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.List;
+
+/**
+ * Description: 秒杀订单队列
+ * 秒杀脚本扣减redis库存成功后，订单进入队列，由消费者异步落库；
+ * 通过 hmdp.seckill.queue 选择实现：redis-stream（默认，多节点、可恢复）或 ring-buffer（单节点、进程内、低延迟）
+ */
+public interface OrderQueue {
+
+    String REDIS_STREAM = "redis-stream";
+
+    String RING_BUFFER = "ring-buffer";
+
+    /**
+     * 秒杀脚本是否直接把订单写入队列（XADD），为true时不会调用offer
+     */
+    boolean enqueuedByScript();
+
+    /**
+     * 订单加入队列
+     * @return false 表示队列已满，调用方需要回滚redis中的库存和已购用户
+     */
+    boolean offer(VoucherOrder order);
+
+    /**
+     * 启动消费者，每批订单交给handler落库
+     */
+    void start(OrderHandler handler);
+
+    /**
+     * 停止消费者
+     */
+    void stop() throws InterruptedException;
+
+    /**
+     * 下单速度的比例，订单积压超过阈值时小于1，用于秒杀准入控制
+     */
+    double intakeRatio();
+
+    /**
+     * 本节点是否负责该分区，超时取消等按分区执行的任务只在负责的节点上执行
+     */
+    default boolean ownsPartition(int partition) {
+        return true;
+    }
+
+    /**
+     * 订单消息是否仍可能被消费：未投递、未确认或已转入死信，这类订单不能视为丢失
+     * @param createdMillis 秒杀脚本下单的时间
+     */
+    default boolean isQueued(VoucherOrder order, long createdMillis) {
+        return false;
+    }
+
+    interface OrderHandler {
+        /**
+         * 处理一批订单，抛出异常表示这批订单处理失败，由队列负责重试
+         */
+        void handle(List<VoucherOrder> orders);
+    }
+}
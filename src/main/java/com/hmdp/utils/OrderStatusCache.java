@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: 秒杀订单状态
+ * 每个分片一个hash seckill:status:{p}，field为订单id，值为 "state,userId"，秒杀脚本写入PENDING，
+ * 订单落库后由消费者改为CREATED，最终落库失败为FAILED，超时取消为CANCELLED；
+ * 过期时间记录在同一分片的 seckill:status:expire:{p} 中，定时清理，key都通过KEYS传入脚本；
+ * 只更新仍存在的订单状态，已过期清理的不再写入；客户端轮询订单状态只访问redis，不查询数据库
+ */
+@Slf4j
+@Component
+public class OrderStatusCache {
+
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    // 每个分片每次最多清理的过期订单状态数
+    private static final int EXPIRE_BATCH = 1000;
+
+    private static final DefaultRedisScript<Long> STATUS_SCRIPT;
+
+    static {
+        STATUS_SCRIPT = new DefaultRedisScript<>();
+        STATUS_SCRIPT.setLocation(new ClassPathResource("order_status.lua"));
+        STATUS_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 订单状态的过期时间（分钟）
+     */
+    @Value("${hmdp.seckill.status-ttl-minutes:60}")
+    private long ttlMinutes;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SeckillPushHub seckillPushHub;
+
+    /**
+     * 从现在起订单状态的过期时间
+     */
+    public long expireAt() {
+        return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes);
+    }
+
+    /**
+     * 按分片更新一批订单的状态，每个分片执行一次脚本，并刷新过期时间，推送给下单的用户
+     */
+    public void update(List<VoucherOrder> orders, String state) {
+        Map<Integer, List<String>> partitions = new TreeMap<>();
+        for (VoucherOrder order : orders) {
+            int bucket = order.getBucket() == null ? 0 : order.getBucket();
+            partitions.computeIfAbsent(seckillKeys.partitionOf(order.getVoucherId(), bucket), p -> new ArrayList<>())
+                    .add(order.getId().toString());
+        }
+        String expireAt = String.valueOf(expireAt());
+        partitions.forEach((partition, orderIds) -> {
+            List<String> args = new ArrayList<>(orderIds.size() + 3);
+            args.add("update");
+            args.add(state);
+            args.add(expireAt);
+            args.addAll(orderIds);
+            stringRedisTemplate.execute(STATUS_SCRIPT, keys(partition), args.toArray());
+        });
+        seckillPushHub.publishOrderResults(orders, state);
+    }
+
+    /**
+     * 查询订单状态，订单的库存桶未知时一次管道查询优惠券所有桶所在分片
+     * @return {state, userId}，不存在或已过期时为空
+     */
+    public Map<Object, Object> get(Long voucherId, Long orderId) {
+        int buckets = seckillKeys.bucketsOf(voucherId);
+        byte[] field = orderId.toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < buckets; i++) {
+                connection.hashCommands().hGet(seckillKeys.statusKey(voucherId, i).getBytes(StandardCharsets.UTF_8), field);
+            }
+            return null;
+        });
+        for (Object result : results) {
+            if (result instanceof String) {
+                String value = (String) result;
+                int sep = value.indexOf(',');
+                Map<Object, Object> status = new HashMap<>(4);
+                status.put("state", value.substring(0, sep));
+                status.put("userId", value.substring(sep + 1));
+                return status;
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * 清理各分片过期的订单状态
+     */
+    @Scheduled(fixedDelay = 10000L)
+    public void expire() {
+        String now = String.valueOf(System.currentTimeMillis());
+        for (int i = 0; i < seckillKeys.partitions(); i++) {
+            try {
+                Long removed;
+                do {
+                    removed = stringRedisTemplate.execute(STATUS_SCRIPT, keys(i), "expire", now, String.valueOf(EXPIRE_BATCH));
+                } while (removed != null && removed >= EXPIRE_BATCH);
+            } catch (Exception e) {
+                log.error("清理分片{}过期的订单状态异常", i, e);
+            }
+        }
+    }
+
+    private List<String> keys(int partition) {
+        return Arrays.asList(seckillKeys.statusKey(partition), seckillKeys.statusExpireKey(partition));
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.XTrimArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description: 订单stream监控与裁剪
+ * 定时统计每个分片stream的长度、未确认数、消费者落后的消息数（lag）并导出为指标；
+ * 按消费者组已确认的进度用 XTRIM MINID ~ 裁剪已确认的消息；
+ * lag超过阈值时降低秒杀准入配额，减缓下单速度
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.queue", havingValue = OrderQueue.REDIS_STREAM, matchIfMissing = true)
+public class OrderStreamMonitor {
+
+    // redis 7 之前XINFO GROUPS没有lag字段，往后最多扫描的消息数
+    private static final long LAG_SCAN_LIMIT = 10000L;
+
+    /**
+     * 每个分片stream的最大长度，超过后按MAXLEN ~ 裁剪（可能裁掉未确认的消息），0表示不限制
+     */
+    @Value("${hmdp.seckill.stream.max-len:0}")
+    private long maxLen;
+
+    /**
+     * 所有分片lag之和超过该值时减缓下单，0表示不限制
+     */
+    @Value("${hmdp.seckill.stream.max-lag:100000}")
+    private long maxLag;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, StreamStat> stats = new ConcurrentHashMap<>();
+
+    private final AtomicLong totalLag = new AtomicLong();
+
+    /**
+     * 下单速度的比例，lag未超过阈值时为1
+     */
+    public double intakeRatio() {
+        long lag = totalLag.get();
+        if (maxLag <= 0 || lag <= maxLag) {
+            return 1.0;
+        }
+        return Math.max(0.1, (double) maxLag / lag);
+    }
+
+    @Scheduled(fixedDelay = 5000L)
+    public void refresh() {
+        long lag = 0;
+        for (int i = 0; i < seckillKeys.partitions(); i++) {
+            String streamKey = seckillKeys.streamKey(i);
+            try {
+                lag += refresh(streamKey);
+            } catch (Exception e) {
+                log.error("统计订单stream异常 {}", streamKey, e);
+            }
+        }
+        totalLag.set(lag);
+        if (maxLag > 0 && lag > maxLag) {
+            log.warn("订单消费落后{}条，超过阈值{}，减缓下单", lag, maxLag);
+        }
+    }
+
+    private long refresh(String streamKey) {
+        StreamStat stat = stats.computeIfAbsent(streamKey, this::register);
+        StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(streamKey).stream()
+                .filter(g -> RedisConstants.STREAM_ORDERS_GROUP.equals(g.groupName()))
+                .findFirst().orElse(null);
+        if (group == null) {
+            return 0;
+        }
+        // 1. 统计
+        long pending = group.pendingCount();
+        long lag = lagOf(streamKey, group);
+        stat.pending.set(pending);
+        stat.lag.set(lag);
+
+        // 2. 裁剪：比最早的未确认消息、最后投递的消息都早的消息一定已经确认
+        String minId = group.lastDeliveredId();
+        if (pending > 0) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, RedisConstants.STREAM_ORDERS_GROUP);
+            if (summary.minMessageId() != null && isBefore(summary.minMessageId(), minId)) {
+                minId = summary.minMessageId();
+            }
+        }
+        if (!"0-0".equals(minId)) {
+            trim(streamKey, new XTrimArgs().minId(minId).approximateTrimming());
+        }
+        if (maxLen > 0) {
+            trim(streamKey, new XTrimArgs().maxlen(maxLen).approximateTrimming());
+        }
+        Long size = stringRedisTemplate.opsForStream().size(streamKey);
+        stat.length.set(size == null ? 0 : size);
+        return lag;
+    }
+
+    private long lagOf(String streamKey, StreamInfo.XInfoGroup group) {
+        Object lag = group.getRaw().get("lag");
+        if (lag instanceof Number) {
+            return ((Number) lag).longValue();
+        }
+        // 最后投递的消息之后还有多少条
+        return stringRedisTemplate.opsForStream().range(streamKey,
+                Range.rightUnbounded(Range.Bound.exclusive(group.lastDeliveredId())),
+                Limit.limit().count((int) LAG_SCAN_LIMIT)).size();
+    }
+
+    private static boolean isBefore(String id, String other) {
+        String[] a = id.split("-");
+        String[] b = other.split("-");
+        long ms = Long.parseLong(a[0]) - Long.parseLong(b[0]);
+        return ms < 0 || ms == 0 && Long.parseLong(a[1]) < Long.parseLong(b[1]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void trim(String streamKey, XTrimArgs args) {
+        // spring-data-redis 2.7 只封装了XTRIM MAXLEN，使用lettuce原生命令
+        stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+            RedisClusterAsyncCommands<byte[], byte[]> commands =
+                    (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            try {
+                return commands.xtrim(streamKey.getBytes(StandardCharsets.UTF_8), args).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0L;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        });
+    }
+
+    private StreamStat register(String streamKey) {
+        StreamStat stat = new StreamStat();
+        Gauge.builder("seckill.stream.pending", stat.pending, AtomicLong::get)
+                .description("已投递未确认的订单消息数").tag("stream", streamKey).register(meterRegistry);
+        Gauge.builder("seckill.stream.lag", stat.lag, AtomicLong::get)
+                .description("尚未投递给消费者的订单消息数").tag("stream", streamKey).register(meterRegistry);
+        Gauge.builder("seckill.stream.length", stat.length, AtomicLong::get)
+                .description("stream长度").tag("stream", streamKey).register(meterRegistry);
+        return stat;
+    }
+
+    private static class StreamStat {
+        final AtomicLong pending = new AtomicLong();
+        final AtomicLong lag = new AtomicLong();
+        final AtomicLong length = new AtomicLong();
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: 未支付订单超时取消
+ * 秒杀脚本下单成功时把订单加入分片的超时队列 seckill:timeout:{p}（ZSET，score为支付截止时间），
+ * 每秒从每个分片取出最多batchSize个到期的订单：数据库中 未支付 -> 已取消 并归还库存，再由lua原子地归还redis库存、
+ * 移除已购用户和超时队列成员；每次扫描的成本只与分片数和batchSize有关，与未支付订单总数无关；
+ * 每个分片只由持有该分片分区锁（lock:stream.orders:p）、负责消费该分片订单的节点扫描；
+ * 超过截止时间LOST_GRACE_MILLIS仍未落库、且订单消息不在队列中（未投递、未确认或死信）的订单才视为丢失
+ */
+@Slf4j
+@Component
+public class OrderTimeoutCanceller {
+
+    // 订单超过截止时间仍未落库时，延后重试的间隔
+    private static final long RETRY_DELAY_MILLIS = 30000L;
+
+    // 订单超过截止时间该时长仍未落库，视为丢失，归还redis库存
+    private static final long LOST_GRACE_MILLIS = 3600000L;
+
+    private static final int STATUS_CANCELLED = 4;
+
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+
+    static {
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${hmdp.seckill.pay-timeout.minutes:15}")
+    private long payTimeoutMinutes;
+
+    /**
+     * 每个分片每次最多取消的订单数
+     */
+    @Value("${hmdp.seckill.pay-timeout.batch-size:100}")
+    private int batchSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillBuyers seckillBuyers;
+
+    @Resource
+    private SeckillPushHub seckillPushHub;
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 归还redis库存和购买资格，并移除超时队列成员
+     * @param member 超时队列成员，订单未加入超时队列时为空
+     * @param force true 即使成员不在超时队列中也归还（订单入队失败），订单状态改为FAILED，否则为CANCELLED
+     * @return 是否归还了库存，重复调用只会归还一次
+     */
+    public boolean returnStock(Long voucherId, Long userId, Long orderId, int bucket, String member, boolean force) {
+        List<String> keys = Arrays.asList(seckillKeys.stockKey(voucherId, bucket), seckillKeys.orderKey(voucherId, bucket),
+                seckillKeys.timeoutKey(voucherId, bucket), seckillKeys.statusKey(voucherId, bucket));
+        Long result = stringRedisTemplate.execute(CANCEL_SCRIPT, keys, userId.toString(), member, force ? "1" : "0",
+                orderId.toString(), force ? OrderStatusCache.FAILED : OrderStatusCache.CANCELLED);
+        if (result == null || result != 1L) {
+            return false;
+        }
+        // 分桶的优惠券再释放优惠券级别的占位，与库存不在同一个slot，先归还库存再释放
+        if (seckillKeys.bucketsOf(voucherId) > 1) {
+            seckillBuyers.release(voucherId, userId);
+        }
+        // 推送订单结果和库存变化
+        VoucherOrder order = new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId);
+        seckillPushHub.publishOrderResults(Collections.singletonList(order),
+                force ? OrderStatusCache.FAILED : OrderStatusCache.CANCELLED);
+        seckillPushHub.markStockChanged(voucherId);
+        return true;
+    }
+
+    private boolean isQueued(Long orderId, Long voucherId, Long userId, int bucket, long deadline) {
+        VoucherOrder order = new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId).setBucket(bucket);
+        // 秒杀脚本按下单时间 + 支付超时时间计算截止时间
+        return orderQueue.isQueued(order, deadline - TimeUnit.MINUTES.toMillis(payTimeoutMinutes));
+    }
+
+    @Scheduled(fixedDelay = 1000L)
+    public void cancelExpired() {
+        if (payTimeoutMinutes <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Set<Long> restocked = new HashSet<>();
+        for (int i = 0; i < seckillKeys.partitions(); i++) {
+            // 只扫描本节点负责消费的分片
+            if (!orderQueue.ownsPartition(i)) {
+                continue;
+            }
+            String timeoutKey = seckillKeys.timeoutKey(i);
+            try {
+                // ZRANGEBYSCORE seckill:timeout:{p} 0 now LIMIT 0 batchSize
+                Set<String> expired = stringRedisTemplate.opsForZSet().rangeByScore(timeoutKey, 0, now, 0, batchSize);
+                if (expired == null) {
+                    continue;
+                }
+                for (String member : expired) {
+                    cancel(timeoutKey, member, now, restocked);
+                }
+            } catch (Exception e) {
+                log.error("取消超时订单异常 {}", timeoutKey, e);
+            }
+        }
+        // 归还了库存的优惠券解除售罄标记
+        for (Long voucherId : restocked) {
+            soldOutRegistry.reset(voucherId);
+        }
+    }
+
+    private void cancel(String timeoutKey, String member, long now, Set<Long> restocked) {
+        // orderId:voucherId:userId:bucket:deadline
+        String[] parts = member.split(":");
+        Long orderId = Long.valueOf(parts[0]);
+        Long voucherId = Long.valueOf(parts[1]);
+        Long userId = Long.valueOf(parts[2]);
+        int bucket = Integer.parseInt(parts[3]);
+        long deadline = Long.parseLong(parts[4]);
+
+        // 1. 数据库取消订单并归还库存
+        if (!voucherOrderService.cancelUnpaidOrder(orderId, voucherId)) {
+            VoucherOrder order = voucherOrderService.getById(orderId);
+            if (order == null) {
+                if (now - deadline < LOST_GRACE_MILLIS || isQueued(orderId, voucherId, userId, bucket, deadline)) {
+                    // 订单还没有落库，或消息仍在队列、死信中，稍后重试
+                    stringRedisTemplate.opsForZSet().add(timeoutKey, member, now + RETRY_DELAY_MILLIS);
+                    return;
+                }
+                log.warn("订单{}超时{}毫秒仍未落库，视为丢失并归还redis库存", orderId, now - deadline);
+            } else if (order.getStatus() != STATUS_CANCELLED) {
+                // 已支付，不再需要取消
+                stringRedisTemplate.opsForZSet().remove(timeoutKey, member);
+                return;
+            }
+            // 已取消（上次归还redis库存失败），继续归还
+        }
+        // 2. 归还redis库存和购买资格
+        if (returnStock(voucherId, userId, orderId, bucket, member, false)) {
+            restocked.add(voucherId);
+            log.debug("订单{}超时未支付，已取消", orderId);
+        }
+    }
+}
@@ -6,16 +6,56 @@ public class RedisConstants {
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
 
+    public static final String CACHE_KEY_PREFIX = "cache:";
     public static final Long CACHE_NULL_TTL = 2L;
+    public static final String CACHE_INVALIDATE_TOPIC = "cache:invalidate";
+    public static final String CACHE_REBUILT_TOPIC = "cache:rebuilt";
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_LIST_KEY = "cache:shop_list:";
+    public static final Long CACHE_SHOP_LIST_TTL = 60L;
 
-    public static final String LOCK_SHOP_KEY = "lock:shop:";
-    public static final Long LOCK_SHOP_TTL = 10L;
+    public static final Long CACHE_VOUCHER_LIST_TTL = 30L;
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher_list:";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final Long CACHE_BLOG_TTL = 10L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final String BLOOM_KEY_PREFIX = "bloom:";
+
+    public static final String LOCK_KEY_PREFIX = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUYER_KEY = "seckill:buyer:";
+    public static final String SECKILL_BUYER_CLAIM_KEY = "seckill:buyer:claim:";
+    public static final String SECKILL_PARTITIONS_KEY = "seckill:partitions";
+    public static final String SECKILL_ORDER_ID_KEY = "icr:order:";
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_ACTIVE_KEY = "seckill:active";
+    public static final String SECKILL_TIMEOUT_KEY = "seckill:timeout:";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final String SECKILL_STATUS_EXPIRE_KEY = "seckill:status:expire:";
+    public static final String SECKILL_QUEUED_KEY = "seckill:queued:";
+    public static final String SECKILL_NODES_KEY = "seckill:nodes";
+    public static final String SECKILL_LIMITER_KEY = "seckill:limiter:";
+    public static final String SECKILL_SOLD_OUT_TOPIC = "seckill:sold-out";
+    public static final String SECKILL_RESTOCK_TOPIC = "seckill:restock";
+    public static final String SECKILL_ORDER_RESULT_TOPIC = "seckill:order-result";
+    public static final String SECKILL_STOCK_CHANGED_TOPIC = "seckill:stock-changed";
+    public static final String STREAM_ORDERS_KEY = "stream.orders:";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
+    public static final String STREAM_ORDERS_CONSUMERS_KEY = "stream.orders:consumers";
+    public static final String LOCK_STREAM_ORDERS_KEY = "lock:stream.orders:";
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_TIME_KEY = "id:worker:time:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOWER_KEY = "follower:";
     public static final String FEED_KEY = "feed:";
@@ -1,27 +1,88 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: hzy
  * Date: 2024/5/2
  * Time: 18:56
- * Description:
+ * Description: 全局唯一id = 时间戳(秒) << 32 | 当日序列号
+ * 时间戳为真实的epoch秒（与时区无关），当日序列号按UTC日期分key，与SnowflakeIdGenerator、秒杀脚本使用同一时间基准；
+ * 低32位按来源划分，三种来源的id不会重复：最高位为1的由秒杀脚本按分片的序列号分配，
+ * 次高位为1（最高位为0）的由SnowflakeIdGenerator在本地分配，两位都为0的由本类分配，当日序列号只用低30位；
+ * 号段模式下每次用 INCRBY step 预留一段序列号，在本地无锁分配，当前号段用掉一部分后异步预取下一段，
+ * 号段用完的速度快于目标时长时步长加倍，慢于目标时长两倍时步长减半
  */
+@Slf4j
 @Component
 public class RedisIdGenerator {
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
-    private static final int COUNT_BITS = 32;
+    static final long BEGIN_TIMESTAMP = 1640995200L;
+    static final int COUNT_BITS = 32;
+
+    // 序列号的最高位标记秒杀脚本分配的id，脚本与本类使用各自的序列号key，置位后两者的id不会重复
+    static final long SCRIPT_SOURCE_BIT = 1L << (COUNT_BITS - 1);
+
+    // 序列号的次高位标记SnowflakeIdGenerator在本地分配的id
+    static final long LOCAL_SOURCE_BIT = 1L << (COUNT_BITS - 2);
+
+    // 本类分配的当日序列号上限，不能占用两个来源位
+    static final long MAX_SERIAL = LOCAL_SOURCE_BIT - 1;
+
+    // 序列号key的日期按UTC计算，不随节点时区变化
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    // 当前号段剩余不足该比例时预取下一段
+    private static final double PREFETCH_RATIO = 0.8;
+
+    // 期望一个号段的使用时长
+    private static final long SEGMENT_TARGET_MILLIS = 15000L;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 是否使用号段模式
+     */
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+
+    @Value("${hmdp.id.segment.min-step:100}")
+    private long minStep;
+
+    @Value("${hmdp.id.segment.max-step:100000}")
+    private long maxStep;
+
+    // keyPrefix -> 号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
     /**
      *
      * @param keyPrefix 不同的业务，比如order，shop等
@@ -29,16 +90,176 @@ public class RedisIdGenerator {
      */
     public long nextId(String keyPrefix) {
         // 1. 获取时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowTimeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        Instant now = Instant.now();
+        long nowTimeStamp = now.getEpochSecond() - BEGIN_TIMESTAMP;
+        LocalDate date = utcDate(now);
         // 2. 获取序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        // 序列号定的32位，redis自增支持2^64，加上date，为当日id，当日生成<2^32即可
-        long serialNum = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date + ":");
+        long serialNum;
+        if (segmentEnabled) {
+            serialNum = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(date);
+        } else {
+            // 序列号定的32位，最高两位留给秒杀脚本和本地生成，redis自增支持2^64，加上date，为当日id，当日生成<2^30即可
+            serialNum = stringRedisTemplate.opsForValue().increment(dateKey(keyPrefix, date));
+        }
+        if (serialNum > MAX_SERIAL) {
+            // 继续分配会占用来源位，与其他来源的id重复
+            throw new IllegalStateException("当日序列号已用完 " + keyPrefix);
+        }
         long id = nowTimeStamp << COUNT_BITS | serialNum;
         return id;
     }
 
+    /**
+     * 秒杀脚本生成的id的时间戳部分（已左移，并置位来源位），由lua脚本加上序列号
+     * @param now 当前时间
+     * @return 时间戳 << 32 | 来源位
+     */
+    public long timestampPart(Instant now) {
+        long nowTimeStamp = now.getEpochSecond() - BEGIN_TIMESTAMP;
+        return nowTimeStamp << COUNT_BITS | SCRIPT_SOURCE_BIT;
+    }
+
+    /**
+     * 当前时间戳（秒），本地生成id时使用
+     */
+    static long currentSecond() {
+        return System.currentTimeMillis() / 1000 - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号key使用的日期（UTC）
+     */
+    static String dateOf(Instant now) {
+        return DATE_FORMATTER.format(now);
+    }
+
+    private static LocalDate utcDate(Instant now) {
+        return now.atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    private static String dateKey(String keyPrefix, LocalDate date) {
+        return "icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER) + ":";
+    }
+
+    /**
+     * 一段预留的序列号 [start, end]，cursor无锁递增分配
+     */
+    private static class Segment {
+        final LocalDate date;
+        final long start;
+        final long end;
+        final long step;
+        final long createdAt = System.currentTimeMillis();
+        final AtomicLong cursor;
+
+        Segment(LocalDate date, long end, long step) {
+            this.date = date;
+            this.start = end - step + 1;
+            this.end = end;
+            this.step = step;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 双号段缓冲：current用于分配，next为预取的下一段
+     */
+    private class SegmentBuffer {
+
+        private final String keyPrefix;
+
+        private volatile Segment current;
+
+        private volatile Segment next;
+
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(LocalDate date) {
+            while (true) {
+                Segment segment = current;
+                // 跨天后序列号重新从新的key分配，旧号段作废
+                if (segment == null || !segment.date.equals(date)) {
+                    switchTo(segment, date);
+                    continue;
+                }
+                long serialNum = segment.cursor.getAndIncrement();
+                if (serialNum <= segment.end) {
+                    if (serialNum - segment.start >= segment.step * (1 - PREFETCH_RATIO)) {
+                        prefetch(segment);
+                    }
+                    return serialNum;
+                }
+                // 当前号段用完，切换到下一段
+                switchTo(segment, date);
+            }
+        }
+
+        /**
+         * 切换号段，只有一个线程执行，其他线程切换完成后重试
+         */
+        private synchronized void switchTo(Segment exhausted, LocalDate date) {
+            if (current != exhausted) {
+                // 其他线程已经切换
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            if (prefetched != null && prefetched.date.equals(date)) {
+                current = prefetched;
+            } else {
+                current = allocate(date, exhausted == null ? minStep : exhausted.step);
+            }
+        }
+
+        private void prefetch(Segment segment) {
+            if (next != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        if (next == null && current == segment) {
+                            next = allocate(segment.date, adaptStep(segment));
+                        }
+                    } catch (Exception e) {
+                        log.error("预取号段失败 {}", keyPrefix, e);
+                    } finally {
+                        prefetching.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                prefetching.set(false);
+            }
+        }
+
+        /**
+         * 按当前号段的消耗速度调整下一段的步长
+         */
+        private long adaptStep(Segment segment) {
+            long used = Math.max(1, segment.cursor.get() - segment.start);
+            // 按目前的速度，用完整段需要的时间
+            long elapsed = System.currentTimeMillis() - segment.createdAt;
+            long estimated = elapsed * segment.step / used;
+            if (estimated < SEGMENT_TARGET_MILLIS) {
+                return Math.min(maxStep, segment.step * 2);
+            }
+            if (estimated > SEGMENT_TARGET_MILLIS * 2) {
+                return Math.max(minStep, segment.step / 2);
+            }
+            return segment.step;
+        }
+
+        private Segment allocate(LocalDate date, long step) {
+            // INCRBY icr:order:20240502: step，返回值为号段的最后一个序列号
+            Long end = stringRedisTemplate.opsForValue().increment(dateKey(keyPrefix, date), step);
+            return new Segment(date, end, step);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
         long l = time.toEpochSecond(ZoneOffset.UTC);
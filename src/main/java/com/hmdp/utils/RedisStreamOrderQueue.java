@@ -0,0 +1,509 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.models.stream.ClaimedMessages;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: 基于redis stream的订单队列
+ * 订单由秒杀脚本XADD到分片stream stream.orders:{p}，每个节点启动workers个消费者，通过分区锁均分分片，
+ * 按批读取订单交给handler，处理成功后整批ACK；处理失败的消息留在pending-list中，由恢复线程重试或转入死信；
+ * 未确认的订单id记录在同一分片的 seckill:queued:{p} 中，超时取消判断订单是否仍在队列时不需要扫描stream和死信
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.queue", havingValue = OrderQueue.REDIS_STREAM, matchIfMissing = true)
+public class RedisStreamOrderQueue implements OrderQueue {
+
+    /**
+     * 每次XREADGROUP读取的订单数
+     */
+    @Value("${hmdp.seckill.batch-size:50}")
+    private int batchSize;
+
+    /**
+     * 每次XREADGROUP的最长阻塞时间（毫秒）
+     */
+    @Value("${hmdp.seckill.batch-wait-millis:2000}")
+    private long batchWaitMillis;
+
+    /**
+     * 每个节点的订单消费者数量，每个消费者是消费者组中一个独立命名的consumer
+     */
+    @Value("${hmdp.seckill.workers:4}")
+    private int workers;
+
+    /**
+     * pending-list中的消息空闲超过该时间（毫秒）才会被恢复线程转移重试
+     */
+    @Value("${hmdp.seckill.recovery.idle-millis:30000}")
+    private long recoveryIdleMillis;
+
+    /**
+     * 最大投递次数，超过后转入死信stream
+     */
+    @Value("${hmdp.seckill.recovery.max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 恢复线程扫描间隔（毫秒）
+     */
+    @Value("${hmdp.seckill.recovery.interval-millis:5000}")
+    private long recoveryIntervalMillis;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SeckillNodes seckillNodes;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Resource
+    private OrderStatusCache orderStatusCache;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private static final String ORDER_GROUP = RedisConstants.STREAM_ORDERS_GROUP;
+
+    // 分区重新分配的间隔，消费者心跳超过CONSUMER_EXPIRE_MILLIS未刷新视为下线
+    private static final long REBALANCE_INTERVAL_MILLIS = 5000L;
+    private static final long CONSUMER_EXPIRE_MILLIS = 30000L;
+
+    // 本节点各消费者持有的分区，rebalance后更新
+    private final Map<String, Set<Integer>> nodePartitions = new ConcurrentHashMap<>();
+
+    private ExecutorService executorService;
+
+    private OrderHandler handler;
+
+    private volatile boolean running = true;
+
+    @Override
+    public boolean enqueuedByScript() {
+        return true;
+    }
+
+    @Override
+    public boolean offer(VoucherOrder order) {
+        throw new UnsupportedOperationException("订单由秒杀脚本写入stream");
+    }
+
+    @Override
+    public void start(OrderHandler handler) {
+        this.handler = handler;
+        // 确保每个分区的消费者组存在 XGROUP CREATE stream.orders:{0} g1 0 MKSTREAM
+        for (int i = 0; i < seckillKeys.partitions(); i++) {
+            createGroupIfAbsent(seckillKeys.streamKey(i));
+        }
+        executorService = Executors.newFixedThreadPool(workers + 1);
+        for (int i = 0; i < workers; i++) {
+            executorService.submit(new VoucherOrderWorker(seckillNodes.nodeId() + "-" + i));
+        }
+        executorService.submit(new PendingOrderRecovery(seckillNodes.nodeId() + "-recovery"));
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        // 通知消费者退出，消费者退出时释放分区并清理空闲的consumer
+        running = false;
+        executorService.shutdown();
+        executorService.awaitTermination(batchWaitMillis + 5000L, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public double intakeRatio() {
+        return orderStreamMonitor.intakeRatio();
+    }
+
+    @Override
+    public boolean ownsPartition(int partition) {
+        for (Set<Integer> partitions : nodePartitions.values()) {
+            if (partitions.contains(partition)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 秒杀脚本XADD时在分片的 seckill:queued:{p} 中记录订单id，ACK时删除，转入死信时标记为D，一次HGET即可判断
+     */
+    @Override
+    public boolean isQueued(VoucherOrder order, long createdMillis) {
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForHash().hasKey(queuedKey(order), order.getId().toString()));
+    }
+
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(streamKey.getBytes(StandardCharsets.UTF_8), ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP，消费者组已存在
+            log.debug("消费者组已存在 {} {}", streamKey, ORDER_GROUP);
+        }
+    }
+
+    /**
+     * 订单消费者：以独立的consumer名称加入消费者组，
+     * 通过分区锁独占若干个分区，同一优惠券的订单只会被一个消费者按顺序处理
+     */
+    private class VoucherOrderWorker implements Runnable {
+
+        private final String consumerName;
+
+        // 当前持有的分区及对应的分区锁
+        private final Map<Integer, RLock> ownedPartitions = new TreeMap<>();
+
+        private long lastRebalance;
+
+        // 空闲时轮流阻塞等待的分区下标
+        private int blockingIndex;
+
+        // 每个消费者处理的订单数，用于统计吞吐量
+        private final Counter processed;
+
+        VoucherOrderWorker(String consumerName) {
+            this.consumerName = consumerName;
+            this.processed = meterRegistry.counter("seckill.orders.processed", "consumer", consumerName);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        rebalance();
+                        if (ownedPartitions.isEmpty()) {
+                            // 没有分配到分区，等待下一次分配
+                            Thread.sleep(batchWaitMillis);
+                            continue;
+                        }
+                        // 1. 依次读取持有的每个分区 XREADGROUP GROUP g1 consumer COUNT batchSize STREAMS stream.orders:{p} >
+                        // 不同分区的stream在集群中属于不同的slot，不能在一条命令中读取多个分区
+                        boolean idle = true;
+                        for (Integer partition : new ArrayList<>(ownedPartitions.keySet())) {
+                            if (read(partition, 0L)) {
+                                idle = false;
+                            }
+                        }
+                        if (idle) {
+                            // 所有分区都没有消息，轮流在一个分区上阻塞等待，阻塞时间按分区数均分，其他分区的新消息最多延迟batchWaitMillis
+                            List<Integer> partitions = new ArrayList<>(ownedPartitions.keySet());
+                            int partition = partitions.get(Math.floorMod(blockingIndex++, partitions.size()));
+                            read(partition, Math.max(batchWaitMillis / partitions.size(), 1L));
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (Exception e) {
+                        // 处理失败的消息留在pending-list中，由PendingOrderRecovery重试，不阻塞新订单
+                        log.error("处理订单异常", e);
+                        Thread.sleep(1000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                quit();
+            }
+        }
+
+        /**
+         * 读取一个分区的一批订单并处理，blockMillis为0时不阻塞
+         * @return 是否读到了订单
+         */
+        private boolean read(Integer partition, long blockMillis) {
+            StreamReadOptions options = StreamReadOptions.empty().count(Math.max(batchSize, 1));
+            if (blockMillis > 0) {
+                options = options.block(Duration.ofMillis(blockMillis));
+            }
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(ORDER_GROUP, consumerName), options,
+                    StreamOffset.create(seckillKeys.streamKey(partition), ReadOffset.lastConsumed()));
+            // 判断消息获取是否成功
+            if (list == null || list.isEmpty()) {
+                // 获取失败，说明没有消息
+                return false;
+            }
+            // 获取成功，可以下单
+            handleRecords(list);
+            processed.increment(list.size());
+            return true;
+        }
+
+        /**
+         * 按在线消费者数量均分分区：多余的释放，不足的尝试认领空闲分区
+         */
+        private void rebalance() {
+            long now = System.currentTimeMillis();
+            if (now - lastRebalance < REBALANCE_INTERVAL_MILLIS) {
+                return;
+            }
+            lastRebalance = now;
+            // 1. 刷新心跳，剔除下线的消费者
+            String consumersKey = RedisConstants.STREAM_ORDERS_CONSUMERS_KEY;
+            stringRedisTemplate.opsForZSet().add(consumersKey, consumerName, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(consumersKey, 0, now - CONSUMER_EXPIRE_MILLIS);
+            Long size = stringRedisTemplate.opsForZSet().zCard(consumersKey);
+            int live = size == null || size < 1 ? 1 : size.intValue();
+            int partitions = seckillKeys.partitions();
+            int quota = (partitions + live - 1) / live;
+
+            // 2. 分区锁已过期（例如与redis断连）的分区不再持有
+            ownedPartitions.entrySet().removeIf(entry -> !entry.getValue().isHeldByCurrentThread());
+
+            // 3. 释放超出配额的分区
+            Iterator<Integer> iterator = ownedPartitions.keySet().iterator();
+            while (ownedPartitions.size() > quota && iterator.hasNext()) {
+                Integer partition = iterator.next();
+                RLock lock = ownedPartitions.get(partition);
+                iterator.remove();
+                release(partition, lock);
+            }
+
+            // 4. 认领空闲分区，从消费者名称的哈希位置开始，避免所有消费者争抢同一个分区
+            int start = Math.floorMod(consumerName.hashCode(), partitions);
+            for (int i = 0; i < partitions && ownedPartitions.size() < quota; i++) {
+                int partition = (start + i) % partitions;
+                if (ownedPartitions.containsKey(partition)) {
+                    continue;
+                }
+                RLock lock = redissonClient.getLock(RedisConstants.LOCK_STREAM_ORDERS_KEY + partition);
+                // 不指定leaseTime，由看门狗续期，节点宕机后锁自动过期
+                if (lock.tryLock()) {
+                    ownedPartitions.put(partition, lock);
+                }
+            }
+            nodePartitions.put(consumerName, new HashSet<>(ownedPartitions.keySet()));
+        }
+
+        /**
+         * 释放分区，没有未确认消息时从消费者组中删除自己
+         */
+        private void release(Integer partition, RLock lock) {
+            String streamKey = seckillKeys.streamKey(partition);
+            try {
+                removeIfIdle(streamKey, consumerName);
+            } finally {
+                if (lock.isHeldByCurrentThread()) {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * 节点关闭：释放全部分区，注销心跳
+         */
+        private void quit() {
+            try {
+                for (Map.Entry<Integer, RLock> entry : ownedPartitions.entrySet()) {
+                    release(entry.getKey(), entry.getValue());
+                }
+                ownedPartitions.clear();
+                nodePartitions.remove(consumerName);
+                stringRedisTemplate.opsForZSet().remove(RedisConstants.STREAM_ORDERS_CONSUMERS_KEY, consumerName);
+            } catch (Exception e) {
+                log.error("订单消费者{}退出清理异常", consumerName, e);
+            }
+        }
+    }
+
+    /**
+     * pending-list恢复：定时用XAUTOCLAIM把空闲超过idleMillis的消息（不论属于哪个consumer）转移给自己逐条重试，
+     * 投递次数超过maxDeliveries的消息转入死信stream，与订单消费者并行运行，单条毒消息不会阻塞新订单
+     */
+    private class PendingOrderRecovery implements Runnable {
+
+        private final String consumerName;
+
+        private final Counter processed;
+
+        PendingOrderRecovery(String consumerName) {
+            this.consumerName = consumerName;
+            this.processed = meterRegistry.counter("seckill.orders.processed", "consumer", consumerName);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    for (int i = 0; i < seckillKeys.partitions() && running; i++) {
+                        try {
+                            recover(seckillKeys.streamKey(i));
+                        } catch (Exception e) {
+                            log.error("恢复pending订单异常", e);
+                        }
+                    }
+                    Thread.sleep(recoveryIntervalMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (int i = 0; i < seckillKeys.partitions(); i++) {
+                    removeIfIdle(seckillKeys.streamKey(i), consumerName);
+                }
+            }
+        }
+
+        private void recover(String streamKey) {
+            String cursor = "0-0";
+            do {
+                // 1. XAUTOCLAIM stream.orders:{0} g1 consumer idleMillis cursor COUNT batchSize，转移的同时投递次数+1
+                ClaimedMessages<byte[], byte[]> claimed = autoClaim(streamKey, cursor);
+                if (claimed == null) {
+                    return;
+                }
+                cursor = claimed.getId();
+                List<StreamMessage<byte[], byte[]>> messages = claimed.getMessages();
+                if (messages.isEmpty()) {
+                    continue;
+                }
+                // 2. XPENDING 查询这批消息的投递次数
+                Map<RecordId, Long> deliveries = new HashMap<>();
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(streamKey,
+                        Consumer.from(ORDER_GROUP, consumerName),
+                        Range.closed(messages.get(0).getId(), messages.get(messages.size() - 1).getId()),
+                        messages.size());
+                for (PendingMessage message : pending) {
+                    deliveries.put(message.getId(), message.getTotalDeliveryCount());
+                }
+                // 3. 逐条重试，超过投递次数的转入死信
+                for (StreamMessage<byte[], byte[]> message : messages) {
+                    RecordId recordId = RecordId.of(message.getId());
+                    Map<String, String> values = new HashMap<>();
+                    if (message.getBody() != null) {
+                        message.getBody().forEach((k, v) ->
+                                values.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+                    }
+                    long count = deliveries.getOrDefault(recordId, 1L);
+                    if (count > maxDeliveries) {
+                        deadLetter(streamKey, recordId, values, count);
+                        continue;
+                    }
+                    try {
+                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                        handler.handle(Collections.singletonList(voucherOrder));
+                        stringRedisTemplate.opsForStream().acknowledge(streamKey, ORDER_GROUP, recordId);
+                        dequeue(Collections.singletonList(voucherOrder));
+                        processed.increment();
+                    } catch (Exception e) {
+                        log.warn("重试订单失败 {} {} 第{}次", streamKey, recordId, count, e);
+                    }
+                }
+            } while (running && !"0-0".equals(cursor));
+        }
+
+        @SuppressWarnings("unchecked")
+        private ClaimedMessages<byte[], byte[]> autoClaim(String streamKey, String cursor) {
+            // spring-data-redis 2.7 没有封装XAUTOCLAIM，使用lettuce原生命令
+            return stringRedisTemplate.execute((RedisCallback<ClaimedMessages<byte[], byte[]>>) connection -> {
+                RedisClusterAsyncCommands<byte[], byte[]> commands =
+                        (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+                XAutoClaimArgs<byte[]> args = new XAutoClaimArgs<byte[]>()
+                        .consumer(io.lettuce.core.Consumer.from(ORDER_GROUP.getBytes(StandardCharsets.UTF_8),
+                                consumerName.getBytes(StandardCharsets.UTF_8)))
+                        .minIdleTime(recoveryIdleMillis)
+                        .startId(cursor)
+                        .count(Math.max(batchSize, 1));
+                try {
+                    return commands.xautoclaim(streamKey.getBytes(StandardCharsets.UTF_8), args).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            });
+        }
+
+        /**
+         * 转入死信stream stream.orders.dlq，保留原消息内容、来源和投递次数，并确认原消息
+         */
+        private void deadLetter(String streamKey, RecordId recordId, Map<String, String> values, long count) {
+            Map<String, String> dead = new HashMap<>(values);
+            dead.put("sourceStream", streamKey);
+            dead.put("sourceId", recordId.getValue());
+            dead.put("deliveries", String.valueOf(count));
+            VoucherOrder order = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+            stringRedisTemplate.opsForStream().add(RedisConstants.STREAM_ORDERS_DLQ_KEY, dead);
+            // 死信等待人工处理，订单不能视为丢失
+            if (order.getId() != null && order.getVoucherId() != null) {
+                stringRedisTemplate.opsForHash().put(queuedKey(order), order.getId().toString(), "D");
+            }
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, ORDER_GROUP, recordId);
+            orderStatusCache.update(Collections.singletonList(order), OrderStatusCache.FAILED);
+            log.error("订单消息超过最大投递次数，转入死信 {} {} {}", streamKey, recordId, values);
+        }
+    }
+
+    private void removeIfIdle(String streamKey, String consumerName) {
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(streamKey, Consumer.from(ORDER_GROUP, consumerName), Range.unbounded(), 1L);
+        if (pending.isEmpty()) {
+            // XGROUP DELCONSUMER stream.orders:{0} g1 consumer
+            stringRedisTemplate.opsForStream().deleteConsumer(streamKey, Consumer.from(ORDER_GROUP, consumerName));
+        }
+    }
+
+    private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+        // 解析整批消息交给handler，一批消息来自同一个分区
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            orders.add(BeanUtil.fillBeanWithMap(records.get(i).getValue(), new VoucherOrder(), true));
+            recordIds[i] = records.get(i).getId();
+        }
+        handler.handle(orders);
+        // 整批ACK确认 XACK stream.orders:{0} g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(records.get(0).getStream(), ORDER_GROUP, recordIds);
+        dequeue(orders);
+    }
+
+    /**
+     * 确认后从分片的 seckill:queued:{p} 中删除，一批订单来自同一个分片
+     */
+    private void dequeue(List<VoucherOrder> orders) {
+        Object[] orderIds = new Object[orders.size()];
+        for (int i = 0; i < orders.size(); i++) {
+            orderIds[i] = orders.get(i).getId().toString();
+        }
+        stringRedisTemplate.opsForHash().delete(queuedKey(orders.get(0)), orderIds);
+    }
+
+    private String queuedKey(VoucherOrder order) {
+        return seckillKeys.queuedKey(order.getVoucherId(), order.getBucket() == null ? 0 : order.getBucket());
+    }
+}
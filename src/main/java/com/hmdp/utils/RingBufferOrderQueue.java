@@ -0,0 +1,279 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Description: 进程内环形缓冲区订单队列，适用于单节点部署和压测
+ * 每个消费者独占一个预分配的环形缓冲区（多生产者单消费者），订单按voucherId选择缓冲区，同一优惠券的订单按顺序落库；
+ * 槽位以 id/userId/voucherId/bucket 四个数组保存，入队不创建对象，消费者每次最多取batchSize个订单批量落库；
+ * 订单只保存在内存中，进程退出前会尽量处理完，宕机时未落库的订单会丢失
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.queue", havingValue = OrderQueue.RING_BUFFER)
+public class RingBufferOrderQueue implements OrderQueue {
+
+    // 积压超过容量的该比例后开始减缓下单
+    private static final double THROTTLE_FILL = 0.75;
+
+    @Value("${hmdp.seckill.batch-size:50}")
+    private int batchSize;
+
+    @Value("${hmdp.seckill.workers:4}")
+    private int workers;
+
+    /**
+     * 每个缓冲区的容量，向上取整为2的幂
+     */
+    @Value("${hmdp.seckill.ring.capacity:65536}")
+    private int capacity;
+
+    /**
+     * 缓冲区已满时入队的最长等待时间（毫秒）
+     */
+    @Value("${hmdp.seckill.ring.offer-timeout-millis:100}")
+    private long offerTimeoutMillis;
+
+    /**
+     * 落库失败的订单逐条重试的次数，超过后记录日志丢弃
+     */
+    @Value("${hmdp.seckill.recovery.max-deliveries:5}")
+    private int maxDeliveries;
+
+    @Resource
+    private OrderStatusCache orderStatusCache;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private Ring[] rings;
+
+    private ExecutorService executorService;
+
+    private Counter dropped;
+
+    private volatile boolean running = true;
+
+    @Override
+    public boolean enqueuedByScript() {
+        return false;
+    }
+
+    @Override
+    public boolean offer(VoucherOrder order) {
+        if (!running) {
+            // 已停止，消费者可能已经退出，由调用方归还库存
+            return false;
+        }
+        Ring ring = rings[(int) Math.floorMod(order.getVoucherId(), (long) rings.length)];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+        while (!ring.offer(order.getId(), order.getUserId(), order.getVoucherId(), order.getBucket() == null ? 0 : order.getBucket())) {
+            if (!running || System.nanoTime() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(50_000L);
+        }
+        return true;
+    }
+
+    @Override
+    public void start(OrderHandler handler) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        rings = new Ring[Math.max(workers, 1)];
+        executorService = Executors.newFixedThreadPool(rings.length);
+        dropped = meterRegistry.counter("seckill.orders.dropped");
+        for (int i = 0; i < rings.length; i++) {
+            Ring ring = new Ring(size);
+            rings[i] = ring;
+            Gauge.builder("seckill.ring.size", ring, Ring::size)
+                    .description("环形缓冲区中未落库的订单数").tag("ring", String.valueOf(i)).register(meterRegistry);
+            executorService.submit(new RingConsumer(ring, handler, "ring-" + i));
+        }
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        // 消费者取完缓冲区中剩余的订单后退出
+        running = false;
+        executorService.shutdown();
+        executorService.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public double intakeRatio() {
+        if (rings == null) {
+            return 1.0;
+        }
+        double fill = 0;
+        for (Ring ring : rings) {
+            fill = Math.max(fill, (double) ring.size() / ring.capacity);
+        }
+        if (fill <= THROTTLE_FILL) {
+            return 1.0;
+        }
+        return Math.max(0.1, (1 - fill) / (1 - THROTTLE_FILL));
+    }
+
+    /**
+     * 多生产者单消费者环形缓冲区：生产者CAS占用序号后写入槽位，再发布序号；消费者按序号顺序读取已发布的槽位
+     */
+    private static class Ring {
+
+        private final int capacity;
+        private final int mask;
+        private final long[] ids;
+        private final long[] userIds;
+        private final long[] voucherIds;
+        private final int[] buckets;
+        // 槽位已发布的序号，消费者读到与期望序号相等时槽位可读
+        private final AtomicLongArray published;
+        // 下一个可占用的序号
+        private final AtomicLong tail = new AtomicLong();
+        // 消费者下一个要读取的序号
+        private final AtomicLong head = new AtomicLong();
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.ids = new long[capacity];
+            this.userIds = new long[capacity];
+            this.voucherIds = new long[capacity];
+            this.buckets = new int[capacity];
+            this.published = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                published.set(i, -1L);
+            }
+        }
+
+        boolean offer(long id, long userId, long voucherId, int bucket) {
+            long sequence;
+            do {
+                sequence = tail.get();
+                if (sequence - head.get() >= capacity) {
+                    // 缓冲区已满
+                    return false;
+                }
+            } while (!tail.compareAndSet(sequence, sequence + 1));
+            int index = (int) sequence & mask;
+            ids[index] = id;
+            userIds[index] = userId;
+            voucherIds[index] = voucherId;
+            buckets[index] = bucket;
+            // 发布：保证槽位的写入先于序号对消费者可见
+            published.lazySet(index, sequence);
+            return true;
+        }
+
+        /**
+         * 取出最多max个已发布的订单
+         */
+        int drain(List<VoucherOrder> orders, int max) {
+            long sequence = head.get();
+            int n = 0;
+            while (n < max) {
+                int index = (int) (sequence + n) & mask;
+                if (published.get(index) != sequence + n) {
+                    break;
+                }
+                VoucherOrder order = new VoucherOrder();
+                order.setId(ids[index]);
+                order.setUserId(userIds[index]);
+                order.setVoucherId(voucherIds[index]);
+                order.setBucket(buckets[index]);
+                orders.add(order);
+                n++;
+            }
+            if (n > 0) {
+                // 读取完成后才释放槽位给生产者
+                head.lazySet(sequence + n);
+            }
+            return n;
+        }
+
+        long size() {
+            return Math.max(0, tail.get() - head.get());
+        }
+    }
+
+    private class RingConsumer implements Runnable {
+
+        private final Ring ring;
+
+        private final OrderHandler handler;
+
+        private final String name;
+
+        private final Counter processed;
+
+        RingConsumer(Ring ring, OrderHandler handler, String name) {
+            this.ring = ring;
+            this.handler = handler;
+            this.name = name;
+            this.processed = meterRegistry.counter("seckill.orders.processed", "consumer", name);
+        }
+
+        @Override
+        public void run() {
+            List<VoucherOrder> orders = new ArrayList<>(Math.max(batchSize, 1));
+            int idle = 0;
+            while (running || ring.size() > 0) {
+                orders.clear();
+                if (ring.drain(orders, Math.max(batchSize, 1)) == 0) {
+                    // 空闲时先自旋，再让出CPU，最后短暂休眠
+                    idle++;
+                    if (idle > 200) {
+                        LockSupport.parkNanos(1_000_000L);
+                    } else if (idle > 100) {
+                        Thread.yield();
+                    }
+                    continue;
+                }
+                idle = 0;
+                handle(orders);
+                processed.increment(orders.size());
+            }
+        }
+
+        private void handle(List<VoucherOrder> orders) {
+            try {
+                handler.handle(orders);
+                return;
+            } catch (Exception e) {
+                log.warn("{} 批量处理订单失败，逐条重试", name, e);
+            }
+            for (VoucherOrder order : orders) {
+                for (int i = 1; ; i++) {
+                    try {
+                        handler.handle(Collections.singletonList(order));
+                        break;
+                    } catch (Exception e) {
+                        if (i >= maxDeliveries) {
+                            dropped.increment();
+                            orderStatusCache.update(Collections.singletonList(order), OrderStatusCache.FAILED);
+                            log.error("订单超过最大重试次数，丢弃 {} 用户{} 优惠券{}", order.getId(), order.getUserId(), order.getVoucherId(), e);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
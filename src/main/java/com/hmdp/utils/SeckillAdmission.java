@@ -0,0 +1,268 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RRateLimiter;
+import org.redisson.api.RateLimiterConfig;
+import org.redisson.api.RateIntervalUnit;
+import org.redisson.api.RateType;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Description: 秒杀准入控制
+ * 在执行秒杀脚本之前，按优惠券做本地令牌桶限流：每秒放行的请求数 = 剩余库存 * factor / 在线节点数，
+ * 超出的请求直接拒绝，不访问redis；可选再叠加一个redis中的分布式限流器（全局 剩余库存 * factor 每秒），
+ * 分布式限流器由第一个节点trySetRate创建，之后只在redis中的速率与计算值相差超过RATE_CHANGE_RATIO时修改，
+ * 各节点计算的值相近，第一个修改的节点之后其他节点不再修改，避免频繁setRate重置共享的令牌；
+ * 订单消费落后超过阈值时，放行数量按 OrderQueue.intakeRatio() 缩小；
+ * 限流器需要读取redis中的库存，在预热时创建，或由请求触发在后台线程创建，请求线程不访问redis，
+ * 限流器创建完成之前的请求直接放行，由秒杀脚本判断库存
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    private static final long IDLE_EVICT_MILLIS = 60000L;
+
+    // 最多同时存在的限流器数，超出后不再为新的优惠券创建
+    private static final int MAX_LIMITERS = 10000;
+
+    // 分布式限流器的速率与计算值相差超过该比例时才修改，setRate会重置限流器的状态
+    private static final double RATE_CHANGE_RATIO = 0.2;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每秒放行的请求数相对剩余库存的倍数
+     */
+    @Value("${hmdp.seckill.admission.factor:2.0}")
+    private double factor;
+
+    /**
+     * 每个节点每秒至少放行的请求数，库存耗尽后仍需放行少量请求以确认售罄
+     */
+    @Value("${hmdp.seckill.admission.min-permits:10}")
+    private int minPermits;
+
+    @Value("${hmdp.seckill.admission.distributed:false}")
+    private boolean distributed;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SeckillNodes seckillNodes;
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    private final Map<Long, VoucherLimiter> limiters = new ConcurrentHashMap<>();
+
+    // 正在后台创建限流器的优惠券
+    private final Set<Long> building = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService builder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1000), r -> {
+        Thread thread = new Thread(r, "seckill-admission-builder");
+        thread.setDaemon(true);
+        return thread;
+    }, new ThreadPoolExecutor.DiscardPolicy());
+
+    @PreDestroy
+    private void destroy() {
+        builder.shutdownNow();
+    }
+
+    /**
+     * 尝试获取下单资格
+     * @param voucherId 优惠券id
+     * @return false 表示请求被限流
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        VoucherLimiter limiter = limiters.get(voucherId);
+        if (limiter == null) {
+            // 后台创建，本次放行
+            buildAsync(voucherId);
+            return true;
+        }
+        limiter.lastAccess = System.currentTimeMillis();
+        boolean admitted = limiter.tryAcquire() && (limiter.rateLimiter == null || limiter.rateLimiter.tryAcquire());
+        if (admitted) {
+            limiter.admitted.increment();
+        } else {
+            limiter.shed.increment();
+        }
+        return admitted;
+    }
+
+    /**
+     * 每个优惠券的放行与拒绝次数
+     */
+    public Map<Long, Map<String, Long>> stats() {
+        Map<Long, Map<String, Long>> stats = new TreeMap<>();
+        for (Map.Entry<Long, VoucherLimiter> entry : limiters.entrySet()) {
+            VoucherLimiter limiter = entry.getValue();
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("admitted", limiter.admitted.sum());
+            stat.put("shed", limiter.shed.sum());
+            stat.put("permitsPerSecond", (long) limiter.capacity);
+            stats.put(entry.getKey(), stat);
+        }
+        return stats;
+    }
+
+    /**
+     * 按最新的剩余库存和在线节点数调整令牌桶，清理长时间没有请求的优惠券
+     */
+    @Scheduled(fixedDelay = 1000L)
+    public void refresh() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Long, VoucherLimiter>> iterator = limiters.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Long, VoucherLimiter> entry = iterator.next();
+            VoucherLimiter limiter = entry.getValue();
+            if (now - limiter.lastAccess > IDLE_EVICT_MILLIS) {
+                iterator.remove();
+                continue;
+            }
+            try {
+                resize(entry.getKey(), limiter);
+            } catch (Exception e) {
+                log.error("刷新优惠券{}限流配额异常", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * 预热时创建限流器，已存在时不变
+     */
+    public void prepare(Long voucherId) {
+        if (!enabled || limiters.containsKey(voucherId)) {
+            return;
+        }
+        VoucherLimiter limiter = createLimiter(voucherId);
+        limiters.putIfAbsent(voucherId, limiter);
+    }
+
+    private void buildAsync(Long voucherId) {
+        if (limiters.size() >= MAX_LIMITERS || !building.add(voucherId)) {
+            return;
+        }
+        try {
+            builder.execute(() -> {
+                try {
+                    prepare(voucherId);
+                } catch (Exception e) {
+                    log.error("创建优惠券{}的限流器异常", voucherId, e);
+                } finally {
+                    building.remove(voucherId);
+                }
+            });
+        } catch (Exception e) {
+            building.remove(voucherId);
+        }
+    }
+
+    private VoucherLimiter createLimiter(Long voucherId) {
+        VoucherLimiter limiter = new VoucherLimiter();
+        if (distributed) {
+            limiter.rateLimiter = redissonClient.getRateLimiter(RedisConstants.SECKILL_LIMITER_KEY + voucherId);
+        }
+        resize(voucherId, limiter);
+        limiter.tokens = limiter.capacity;
+        return limiter;
+    }
+
+    private void resize(Long voucherId, VoucherLimiter limiter) {
+        // 订单消费落后过多时按比例减少放行数量
+        long total = Math.max(minPermits, (long) Math.ceil(remainingStock(voucherId) * factor * orderQueue.intakeRatio()));
+        limiter.capacity = Math.max(minPermits, Math.ceil((double) total / seckillNodes.liveNodes()));
+        if (limiter.rateLimiter != null && limiter.globalPermits != total) {
+            updateGlobalRate(limiter.rateLimiter, total);
+            limiter.globalPermits = total;
+        }
+    }
+
+    /**
+     * 分布式限流器不存在时创建；已存在时只在速率相差较大时修改，其他节点已修改为相近的值时不再修改
+     */
+    private void updateGlobalRate(RRateLimiter rateLimiter, long total) {
+        if (rateLimiter.trySetRate(RateType.OVERALL, total, 1, RateIntervalUnit.SECONDS)) {
+            return;
+        }
+        RateLimiterConfig config = rateLimiter.getConfig();
+        long current = config.getRate() == null ? 0 : config.getRate();
+        if (Math.abs(total - current) > current * RATE_CHANGE_RATIO) {
+            rateLimiter.setRate(RateType.OVERALL, total, 1, RateIntervalUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 一次管道读取优惠券所有库存桶的剩余库存
+     */
+    private long remainingStock(Long voucherId) {
+        List<String> keys = seckillKeys.stockKeys(voucherId);
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        long stock = 0;
+        for (Object value : values) {
+            if (value != null) {
+                stock += Math.max(0, Long.parseLong(value.toString()));
+            }
+        }
+        return stock;
+    }
+
+    private static class VoucherLimiter {
+        // 令牌桶容量，也是每秒补充的令牌数
+        volatile double capacity;
+        double tokens;
+        long lastRefill = System.currentTimeMillis();
+        volatile long lastAccess = System.currentTimeMillis();
+        RRateLimiter rateLimiter;
+        long globalPermits;
+        final LongAdder admitted = new LongAdder();
+        final LongAdder shed = new LongAdder();
+
+        synchronized boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + capacity * (now - lastRefill) / 1000.0);
+                lastRefill = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
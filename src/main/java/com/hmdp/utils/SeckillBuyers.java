@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Description: 分桶优惠券的一人一单占位
+ * 各个桶的已购用户集合分散在不同的slot，下单前先在优惠券级别的已购用户集合中占位，
+ * 占位与未确认记录由同一个lua脚本写入（KEYS同一分片）：占位后下单成功则确认，失败则释放；
+ * 占位后进程崩溃或redis异常来不及确认、释放的，超过截止时间后由对账任务按各桶的已购用户集合确认或释放，
+ * 用户不会因为一次失败的请求被永久拒绝
+ */
+@Slf4j
+@Component
+public class SeckillBuyers {
+
+    // 占位后多久未确认交给对账任务处理，远大于一次下单的耗时
+    private static final long CLAIM_TIMEOUT_MILLIS = 60000L;
+
+    // 每个优惠券每次对账的占位数
+    private static final int RECONCILE_BATCH = 100;
+
+    private static final DefaultRedisScript<Long> BUYER_SCRIPT;
+
+    static {
+        BUYER_SCRIPT = new DefaultRedisScript<>();
+        BUYER_SCRIPT.setLocation(new ClassPathResource("seckill_buyer.lua"));
+        BUYER_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    /**
+     * 占位
+     * @return false 用户已经占位，重复下单
+     */
+    public boolean claim(Long voucherId, Long userId) {
+        return execute(voucherId, "claim", userId, System.currentTimeMillis() + CLAIM_TIMEOUT_MILLIS) == 1L;
+    }
+
+    /**
+     * 下单成功，确认占位
+     */
+    public void confirm(Long voucherId, Long userId) {
+        execute(voucherId, "confirm", userId, 0L);
+    }
+
+    /**
+     * 下单失败或订单取消，释放占位
+     */
+    public void release(Long voucherId, Long userId) {
+        execute(voucherId, "release", userId, 0L);
+    }
+
+    /**
+     * 对账：超过截止时间仍未确认的占位，用户在任一桶的已购用户集合中则确认，否则释放
+     */
+    @Scheduled(fixedDelay = 10000L)
+    public void reconcile() {
+        Set<String> active = stringRedisTemplate.opsForZSet().range(RedisConstants.SECKILL_ACTIVE_KEY, 0, -1);
+        if (active == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String id : active) {
+            Long voucherId = Long.valueOf(id);
+            try {
+                if (seckillKeys.bucketsOf(voucherId) > 1) {
+                    reconcile(voucherId, now);
+                }
+            } catch (Exception e) {
+                log.error("对账优惠券{}的占位异常", voucherId, e);
+            }
+        }
+    }
+
+    void reconcile(Long voucherId, long now) {
+        // ZRANGEBYSCORE seckill:buyer:claim:{p}:voucherId 0 now LIMIT 0 RECONCILE_BATCH
+        Set<String> expired = stringRedisTemplate.opsForZSet()
+                .rangeByScore(seckillKeys.buyerClaimKey(voucherId), 0, now, 0, RECONCILE_BATCH);
+        if (expired == null) {
+            return;
+        }
+        for (String userId : expired) {
+            if (hasOrder(voucherId, userId)) {
+                confirm(voucherId, Long.valueOf(userId));
+            } else {
+                log.warn("优惠券{}用户{}的占位超时未确认，释放", voucherId, userId);
+                release(voucherId, Long.valueOf(userId));
+            }
+        }
+    }
+
+    private boolean hasOrder(Long voucherId, String userId) {
+        int buckets = seckillKeys.bucketsOf(voucherId);
+        for (int i = 0; i < buckets; i++) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(seckillKeys.orderKey(voucherId, i), userId))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long execute(Long voucherId, String op, Long userId, long deadline) {
+        List<String> keys = Arrays.asList(seckillKeys.buyerKey(voucherId), seckillKeys.buyerClaimKey(voucherId));
+        Long result = stringRedisTemplate.execute(BUYER_SCRIPT, keys, op, userId.toString(), String.valueOf(deadline));
+        return result == null ? 0L : result;
+    }
+}
@@ -0,0 +1,224 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description: 秒杀相关key的分片布局
+ * 优惠券按 voucherId % partitions 落到一个分片，同一分片的库存、已购用户集合、订单stream
+ * 使用相同的hash tag，保证在Redis Cluster中落在同一个slot，lua脚本可以原子操作；
+ * 不同分片分散到不同的slot，从而分散到不同的集群节点
+ * seckill:stock:{3}:1001 / seckill:order:{3}:1001 / seckill:window:{3}:1001 / stream.orders:{3}
+ * 库存分桶的优惠券，第b个桶落在 (voucherId + b) % partitions 分片，桶0沿用不分桶时的key
+ * seckill:stock:{3}:1001 / seckill:stock:{4}:1001:1 / seckill:stock:{5}:1001:2
+ */
+@Slf4j
+@Component
+public class SeckillKeys {
+
+    /**
+     * 分片数，第一个启动的节点写入redis，之后的节点以redis中的为准
+     */
+    @Value("${hmdp.seckill.partitions:8}")
+    private int partitions;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 本地最多缓存的优惠券桶数，超出后不再缓存新的优惠券，直接读取redis
+    private static final int MAX_CACHED_BUCKETS = 10000;
+
+    // 优惠券的库存桶数，创建后不再变化，本地缓存，秒杀结束清理时移除
+    private final Map<Long, Integer> buckets = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        stringRedisTemplate.opsForValue().setIfAbsent(RedisConstants.SECKILL_PARTITIONS_KEY, String.valueOf(partitions));
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_PARTITIONS_KEY);
+        int existed = Integer.parseInt(value);
+        if (existed != partitions) {
+            log.warn("配置的分片数{}与redis中的分片数{}不一致，使用redis中的分片数", partitions, existed);
+            partitions = existed;
+        }
+    }
+
+    public int partitions() {
+        return partitions;
+    }
+
+    /**
+     * 优惠券的库存桶数，未分桶的优惠券为1
+     */
+    public int bucketsOf(Long voucherId) {
+        Integer count = buckets.get(voucherId);
+        if (count != null) {
+            return count;
+        }
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_BUCKETS_KEY + voucherId);
+        count = value == null ? 1 : Integer.parseInt(value);
+        if (buckets.size() < MAX_CACHED_BUCKETS) {
+            buckets.put(voucherId, count);
+        }
+        return count;
+    }
+
+    /**
+     * 移除本地缓存的桶数，秒杀结束清理时调用
+     */
+    public void evictBuckets(Long voucherId) {
+        buckets.remove(voucherId);
+    }
+
+    /**
+     * 设置优惠券的库存桶数，新增秒杀券时调用
+     */
+    public void setBuckets(Long voucherId, int count) {
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_BUCKETS_KEY + voucherId, String.valueOf(count));
+        buckets.put(voucherId, count);
+    }
+
+    public int partitionOf(Long voucherId) {
+        return partitionOf(voucherId, 0);
+    }
+
+    public int partitionOf(Long voucherId, int bucket) {
+        return Math.floorMod(voucherId + bucket, partitions);
+    }
+
+    public String stockKey(Long voucherId) {
+        return stockKey(voucherId, 0);
+    }
+
+    public String stockKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_STOCK_KEY + tag(partitionOf(voucherId, bucket)) + ":" + voucherId + suffix(bucket);
+    }
+
+    /**
+     * 优惠券所有库存桶的key
+     */
+    public List<String> stockKeys(Long voucherId) {
+        int count = bucketsOf(voucherId);
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    public String orderKey(Long voucherId) {
+        return orderKey(voucherId, 0);
+    }
+
+    public String orderKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_ORDER_KEY + tag(partitionOf(voucherId, bucket)) + ":" + voucherId + suffix(bucket);
+    }
+
+    /**
+     * 分桶优惠券的已购用户集合，每个优惠券一个，与桶0同一分片；下单前先由脚本占位，一人一单以它为准
+     * seckill:buyer:{3}:1001
+     */
+    public String buyerKey(Long voucherId) {
+        return RedisConstants.SECKILL_BUYER_KEY + tag(partitionOf(voucherId)) + ":" + voucherId;
+    }
+
+    /**
+     * 分桶优惠券未确认的占位，与已购用户集合同一分片
+     * seckill:buyer:claim:{3}:1001
+     */
+    public String buyerClaimKey(Long voucherId) {
+        return RedisConstants.SECKILL_BUYER_CLAIM_KEY + tag(partitionOf(voucherId)) + ":" + voucherId;
+    }
+
+    /**
+     * 秒杀时间窗口 "开始毫秒,结束毫秒"，每个桶一份，与库存同一分片
+     */
+    public String windowKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_WINDOW_KEY + tag(partitionOf(voucherId, bucket)) + ":" + voucherId + suffix(bucket);
+    }
+
+    /**
+     * 订单状态，每个分片一个hash，field为订单id，值为 "state,userId"，与库存同一分片
+     * seckill:status:{3}
+     */
+    public String statusKey(int partition) {
+        return RedisConstants.SECKILL_STATUS_KEY + tag(partition);
+    }
+
+    public String statusKey(Long voucherId, int bucket) {
+        return statusKey(partitionOf(voucherId, bucket));
+    }
+
+    /**
+     * 订单状态的过期时间，每个分片一个ZSET，score为过期时间，member为订单id，与订单状态hash同一分片
+     * seckill:status:expire:{3}
+     */
+    public String statusExpireKey(int partition) {
+        return RedisConstants.SECKILL_STATUS_EXPIRE_KEY + tag(partition);
+    }
+
+    public String statusExpireKey(Long voucherId, int bucket) {
+        return statusExpireKey(partitionOf(voucherId, bucket));
+    }
+
+    /**
+     * 已写入订单stream、尚未确认的订单，每个分片一个hash，field为订单id，值为Q（在stream中）或D（已转入死信），与订单stream同一分片
+     * seckill:queued:{3}
+     */
+    public String queuedKey(int partition) {
+        return RedisConstants.SECKILL_QUEUED_KEY + tag(partition);
+    }
+
+    public String queuedKey(Long voucherId, int bucket) {
+        return queuedKey(partitionOf(voucherId, bucket));
+    }
+
+    /**
+     * 未支付订单的超时队列，每个分片一个，与库存同一分片
+     * seckill:timeout:{3}
+     */
+    public String timeoutKey(int partition) {
+        return RedisConstants.SECKILL_TIMEOUT_KEY + tag(partition);
+    }
+
+    public String timeoutKey(Long voucherId, int bucket) {
+        return timeoutKey(partitionOf(voucherId, bucket));
+    }
+
+    public String streamKey(int partition) {
+        return RedisConstants.STREAM_ORDERS_KEY + tag(partition);
+    }
+
+    public String streamKeyOf(Long voucherId) {
+        return streamKey(partitionOf(voucherId));
+    }
+
+    public String streamKeyOf(Long voucherId, int bucket) {
+        return streamKey(partitionOf(voucherId, bucket));
+    }
+
+    /**
+     * 秒杀脚本内生成订单id使用的当日序列号key（UTC日期），与库存等key同一分片
+     * icr:order:{3}:20240502:
+     */
+    public String orderIdKey(Long voucherId, int bucket, Instant now) {
+        return RedisConstants.SECKILL_ORDER_ID_KEY + tag(partitionOf(voucherId, bucket)) + ":" + RedisIdGenerator.dateOf(now) + ":";
+    }
+
+    private static String tag(int partition) {
+        return "{" + partition + "}";
+    }
+
+    private static String suffix(int bucket) {
+        return bucket == 0 ? "" : ":" + bucket;
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+/**
+ * Description: 秒杀节点注册
+ * 每个节点定时在 seckill:nodes 中刷新心跳，用于生成节点唯一的消费者名称、按在线节点数分摊限流配额
+ */
+@Slf4j
+@Component
+public class SeckillNodes {
+
+    private static final long NODE_EXPIRE_MILLIS = 30000L;
+
+    /**
+     * 节点标识，默认 主机名-进程号
+     */
+    @Value("${hmdp.seckill.node-id:}")
+    private String nodeId;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private volatile int liveNodes = 1;
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isBlank(nodeId)) {
+            nodeId = NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid();
+        }
+        heartbeat();
+    }
+
+    @Scheduled(fixedDelay = 5000L)
+    public void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_NODES_KEY, nodeId, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.SECKILL_NODES_KEY, 0, now - NODE_EXPIRE_MILLIS);
+            Long size = stringRedisTemplate.opsForZSet().zCard(RedisConstants.SECKILL_NODES_KEY);
+            liveNodes = size == null || size < 1 ? 1 : size.intValue();
+        } catch (Exception e) {
+            log.error("节点心跳异常", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_NODES_KEY, nodeId);
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 在线节点数，至少为1
+     */
+    public int liveNodes() {
+        return liveNodes;
+    }
+}
@@ -0,0 +1,368 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Description: 秒杀结果与库存推送（SSE）
+ * 客户端建立一个SSE连接，代替轮询订单状态和优惠券列表：
+ * 订单落库/失败/取消后，发布到 seckill:order-result，持有该用户连接的节点推送 order 事件；
+ * 秒杀或归还库存后在本地标记优惠券库存已变化，每隔debounce-millis读取一次变化的优惠券库存，
+ * 发布到 seckill:stock-changed，所有节点向订阅了该优惠券的连接推送 stock 事件；
+ * 库存订阅不需要登录，只接受正在进行的秒杀券（seckill:active中未结束的），每个连接最多订阅max-vouchers个，
+ * 每个客户端（登录用户或IP）与每个节点的连接数都有上限，超出时推送 rejected 事件后关闭连接
+ */
+@Slf4j
+@Component
+public class SeckillPushHub {
+
+    // 连接被拒绝后建议客户端的重连间隔
+    private static final long REJECT_RECONNECT_MILLIS = 30000L;
+
+    /**
+     * SSE连接的超时时间（分钟），超时后由客户端重连
+     */
+    @Value("${hmdp.seckill.push.timeout-minutes:30}")
+    private long timeoutMinutes;
+
+    /**
+     * 每个连接最多订阅的优惠券数
+     */
+    @Value("${hmdp.seckill.push.max-vouchers:20}")
+    private int maxVouchers;
+
+    /**
+     * 本节点最多保持的连接数
+     */
+    @Value("${hmdp.seckill.push.max-connections:10000}")
+    private int maxConnections;
+
+    /**
+     * 每个客户端在本节点最多保持的连接数
+     */
+    @Value("${hmdp.seckill.push.max-connections-per-client:5}")
+    private int maxConnectionsPerClient;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    // userId -> 该用户在本节点的连接
+    private final Map<Long, Set<SseEmitter>> userEmitters = new ConcurrentHashMap<>();
+
+    // voucherId -> 订阅了该优惠券库存的连接
+    private final Map<Long, Set<SseEmitter>> voucherEmitters = new ConcurrentHashMap<>();
+
+    // 本节点的连接数
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // 客户端 -> 该客户端在本节点的连接数
+    private final Map<String, AtomicInteger> clientConnections = new ConcurrentHashMap<>();
+
+    // 本节点上库存发生变化、尚未推送的优惠券
+    private final Set<Long> dirtyVouchers = ConcurrentHashMap.newKeySet();
+
+    private RTopic orderResultTopic;
+
+    private RTopic stockTopic;
+
+    @PostConstruct
+    private void init() {
+        orderResultTopic = redissonClient.getTopic(RedisConstants.SECKILL_ORDER_RESULT_TOPIC, StringCodec.INSTANCE);
+        stockTopic = redissonClient.getTopic(RedisConstants.SECKILL_STOCK_CHANGED_TOPIC, StringCodec.INSTANCE);
+        orderResultTopic.addListener(String.class, (channel, msg) -> onOrderResults(msg));
+        stockTopic.addListener(String.class, (channel, msg) -> onStockChanged(msg));
+    }
+
+    /**
+     * 建立SSE连接
+     * @param userId 登录用户，为空时只推送库存
+     * @param client 客户端标识，登录用户为 user:userId，未登录为 ip:地址，用于限制连接数
+     * @param voucherIds 订阅库存的优惠券，只保留正在进行的秒杀券
+     */
+    public SseEmitter subscribe(Long userId, String client, Collection<Long> voucherIds) {
+        SseEmitter emitter = new SseEmitter(TimeUnit.MINUTES.toMillis(timeoutMinutes));
+        // 1. 占用连接数，超出上限时拒绝
+        if (!acquireConnection(client)) {
+            reject(emitter, "连接数过多，请稍后再试！");
+            return emitter;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        List<Long> vouchers;
+        try {
+            vouchers = activeVouchers(voucherIds);
+        } catch (RuntimeException e) {
+            releaseConnection(client);
+            throw e;
+        }
+        // 2. 登记连接
+        if (userId != null) {
+            userEmitters.computeIfAbsent(userId, k -> new CopyOnWriteArraySet<>()).add(emitter);
+        }
+        for (Long voucherId : vouchers) {
+            voucherEmitters.computeIfAbsent(voucherId, k -> new CopyOnWriteArraySet<>()).add(emitter);
+        }
+        Runnable remove = () -> {
+            // onError之后还会回调onCompletion，只释放一次
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            if (userId != null) {
+                removeEmitter(userEmitters, userId, emitter);
+            }
+            for (Long voucherId : vouchers) {
+                removeEmitter(voucherEmitters, voucherId, emitter);
+            }
+            releaseConnection(client);
+        };
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        // 3. 建立连接后先推送一次当前库存
+        if (!vouchers.isEmpty()) {
+            Map<Long, Long> stocks = readStocks(vouchers);
+            for (Map.Entry<Long, Long> entry : stocks.entrySet()) {
+                send(emitter, "stock", stockEvent(entry.getKey(), entry.getValue()));
+            }
+        }
+        return emitter;
+    }
+
+    /**
+     * 广播一批订单的结果，每批一条消息 userId:orderId:voucherId:state，多条以换行分隔
+     */
+    public void publishOrderResults(List<VoucherOrder> orders, String state) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        StringBuilder msg = new StringBuilder();
+        for (VoucherOrder order : orders) {
+            if (msg.length() > 0) {
+                msg.append('\n');
+            }
+            msg.append(order.getUserId()).append(':').append(order.getId()).append(':')
+                    .append(order.getVoucherId()).append(':').append(state);
+        }
+        try {
+            orderResultTopic.publishAsync(msg.toString());
+        } catch (Exception e) {
+            log.error("广播订单结果失败", e);
+        }
+    }
+
+    /**
+     * 标记优惠券库存已变化，由debounce任务合并推送
+     */
+    public void markStockChanged(Long voucherId) {
+        dirtyVouchers.add(voucherId);
+    }
+
+    /**
+     * 合并推送库存变化，同一优惠券在debounce-millis内的多次变化只推送一次
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.push.debounce-millis:500}")
+    public void flushStockChanges() {
+        if (dirtyVouchers.isEmpty()) {
+            return;
+        }
+        List<Long> vouchers = new ArrayList<>(dirtyVouchers);
+        dirtyVouchers.removeAll(vouchers);
+        try {
+            // 一次管道读取所有变化的优惠券库存，一条消息广播 voucherId:stock,voucherId:stock
+            Map<Long, Long> stocks = readStocks(vouchers);
+            StringJoiner msg = new StringJoiner(",");
+            stocks.forEach((voucherId, stock) -> msg.add(voucherId + ":" + stock));
+            stockTopic.publishAsync(msg.toString());
+        } catch (Exception e) {
+            log.error("广播库存变化失败", e);
+        }
+    }
+
+    /**
+     * 定时发送注释行，及时发现已断开的连接
+     */
+    @Scheduled(fixedDelay = 15000L)
+    public void heartbeat() {
+        Set<SseEmitter> emitters = Collections.newSetFromMap(new IdentityHashMap<>());
+        userEmitters.values().forEach(emitters::addAll);
+        voucherEmitters.values().forEach(emitters::addAll);
+        for (SseEmitter emitter : emitters) {
+            try {
+                emitter.send(SseEmitter.event().comment("ping"));
+            } catch (Exception e) {
+                emitter.completeWithError(e);
+            }
+        }
+    }
+
+    private void onOrderResults(String msg) {
+        for (String line : msg.split("\n")) {
+            String[] parts = line.split(":");
+            Set<SseEmitter> emitters = userEmitters.get(Long.valueOf(parts[0]));
+            if (emitters == null) {
+                continue;
+            }
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("orderId", Long.valueOf(parts[1]));
+            event.put("voucherId", Long.valueOf(parts[2]));
+            event.put("state", parts[3]);
+            for (SseEmitter emitter : emitters) {
+                send(emitter, "order", event);
+            }
+        }
+    }
+
+    private void onStockChanged(String msg) {
+        for (String item : StrUtil.split(msg, ',')) {
+            if (StrUtil.isBlank(item)) {
+                continue;
+            }
+            String[] parts = item.split(":");
+            Long voucherId = Long.valueOf(parts[0]);
+            Set<SseEmitter> emitters = voucherEmitters.get(voucherId);
+            if (emitters == null) {
+                continue;
+            }
+            Map<String, Object> event = stockEvent(voucherId, Long.valueOf(parts[1]));
+            for (SseEmitter emitter : emitters) {
+                send(emitter, "stock", event);
+            }
+        }
+    }
+
+    private boolean acquireConnection(String client) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        AtomicInteger count = clientConnections.computeIfAbsent(client, k -> new AtomicInteger());
+        if (count.incrementAndGet() > maxConnectionsPerClient) {
+            releaseConnection(client);
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseConnection(String client) {
+        connections.decrementAndGet();
+        clientConnections.computeIfPresent(client, (k, count) -> count.decrementAndGet() <= 0 ? null : count);
+    }
+
+    /**
+     * 去重后取前maxVouchers个，再一次管道读取 seckill:active，只保留未结束的秒杀券
+     */
+    private List<Long> activeVouchers(Collection<Long> voucherIds) {
+        if (voucherIds == null || voucherIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (ids.size() > maxVouchers) {
+            ids = ids.subList(0, maxVouchers);
+        }
+        byte[] activeKey = RedisConstants.SECKILL_ACTIVE_KEY.getBytes(StandardCharsets.UTF_8);
+        List<Long> candidates = ids;
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long voucherId : candidates) {
+                connection.zSetCommands().zScore(activeKey, voucherId.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        // score为秒杀结束时间
+        long now = System.currentTimeMillis();
+        List<Long> active = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            Object end = scores.get(i);
+            if (end != null && ((Number) end).longValue() >= now) {
+                active.add(candidates.get(i));
+            }
+        }
+        return active;
+    }
+
+    private Map<Long, Long> readStocks(List<Long> voucherIds) {
+        List<String> keys = new ArrayList<>();
+        List<Integer> buckets = new ArrayList<>(voucherIds.size());
+        for (Long voucherId : voucherIds) {
+            List<String> stockKeys = seckillKeys.stockKeys(voucherId);
+            keys.addAll(stockKeys);
+            buckets.add(stockKeys.size());
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        Map<Long, Long> stocks = new LinkedHashMap<>();
+        int index = 0;
+        for (int i = 0; i < voucherIds.size(); i++) {
+            long stock = 0;
+            for (int b = 0; b < buckets.get(i); b++) {
+                Object value = values.get(index++);
+                if (value != null) {
+                    stock += Math.max(0, Long.parseLong(value.toString()));
+                }
+            }
+            stocks.put(voucherIds.get(i), stock);
+        }
+        return stocks;
+    }
+
+    private static Map<String, Object> stockEvent(Long voucherId, Long stock) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("voucherId", voucherId);
+        event.put("stock", stock);
+        return event;
+    }
+
+    private static void reject(SseEmitter emitter, String message) {
+        try {
+            // 延长客户端的重连间隔，避免立即重连
+            emitter.send(SseEmitter.event().name("rejected").reconnectTime(REJECT_RECONNECT_MILLIS).data(message));
+            emitter.complete();
+        } catch (Exception e) {
+            emitter.completeWithError(e);
+        }
+    }
+
+    private static void send(SseEmitter emitter, String name, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(data));
+        } catch (Exception e) {
+            // 连接已断开，由onError/onCompletion回调移除
+            emitter.completeWithError(e);
+        }
+    }
+
+    private static void removeEmitter(Map<Long, Set<SseEmitter>> emitters, Long key, SseEmitter emitter) {
+        emitters.computeIfPresent(key, (k, set) -> {
+            set.remove(emitter);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
@@ -0,0 +1,261 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description: redis与数据库秒杀库存对账
+ * 正常情况下 redis库存 + redis已购用户数 = 数据库库存 + 数据库订单数（秒杀成功与订单落库都不改变两边之和），
+ * 已购用户数 - 订单数 为已秒杀未落库的订单；
+ * 定时对所有进行中的秒杀券做一次管道读取（库存桶GET、已购用户SCARD）和一次分组查询订单数，
+ * 两次对账结果相同的偏差视为真实偏差：记录日志和指标，开启auto-correct时按数据库修正redis库存；
+ * 对账锁在节点之间轮换，对账结果保存在redis的 lock:seckill:reconcile:report（hash，voucherId -> 结果json），
+ * 下一次对账无论在哪个节点执行，都与上一次的结果比较
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    // 对账结果，与对账锁同一命名空间
+    private static final String REPORT_KEY = RedisConstants.LOCK_SECKILL_RECONCILE_KEY + ":report";
+
+    /**
+     * 是否自动修正redis库存
+     */
+    @Value("${hmdp.seckill.reconcile.auto-correct:false}")
+    private boolean autoCorrect;
+
+    @Value("${hmdp.seckill.reconcile.interval-millis:60000}")
+    private long intervalMillis;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillPushHub seckillPushHub;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final AtomicLong totalDrift = new AtomicLong();
+
+    private final AtomicLong totalUnpersisted = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("seckill.stock.drift", totalDrift, AtomicLong::get)
+                .description("redis库存+已购用户数 与 数据库库存+订单数 的偏差").tag("type", "total").register(meterRegistry);
+        Gauge.builder("seckill.stock.drift", totalUnpersisted, AtomicLong::get)
+                .description("已秒杀但持续未落库的订单数").tag("type", "unpersisted").register(meterRegistry);
+    }
+
+    /**
+     * 最近一次对账结果，由执行对账的节点写入redis
+     * @return voucherId -> {redisStock, redisSold, dbStock, dbOrders, unpersisted, drift}
+     */
+    public Map<Long, Map<String, Long>> report() {
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(REPORT_KEY);
+        Map<Long, Map<String, Long>> report = new TreeMap<>();
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            JSONObject json = JSONUtil.parseObj(entry.getValue().toString());
+            Map<String, Long> stat = new LinkedHashMap<>();
+            for (String field : json.keySet()) {
+                stat.put(field, json.getLong(field));
+            }
+            report.put(Long.valueOf(entry.getKey().toString()), stat);
+        }
+        return report;
+    }
+
+    private void saveReport(Map<Long, Map<String, Long>> report) {
+        stringRedisTemplate.delete(REPORT_KEY);
+        if (report.isEmpty()) {
+            return;
+        }
+        Map<String, String> entries = new HashMap<>(report.size() * 2);
+        report.forEach((voucherId, stat) -> entries.put(voucherId.toString(), JSONUtil.toJsonStr(stat)));
+        stringRedisTemplate.opsForHash().putAll(REPORT_KEY, entries);
+        // 对账停止后结果不再有意义
+        stringRedisTemplate.expire(REPORT_KEY, intervalMillis * 3, TimeUnit.MILLISECONDS);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-millis:60000}")
+    public void reconcile() {
+        // 多个节点只需要一个节点对账
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SECKILL_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Set<String> active = stringRedisTemplate.opsForZSet().range(RedisConstants.SECKILL_ACTIVE_KEY, 0, -1);
+            if (active == null || active.isEmpty()) {
+                saveReport(Collections.emptyMap());
+                totalDrift.set(0);
+                totalUnpersisted.set(0);
+                return;
+            }
+            List<Long> voucherIds = new ArrayList<>(active.size());
+            for (String id : active) {
+                voucherIds.add(Long.valueOf(id));
+            }
+            reconcile(voucherIds);
+        } catch (Exception e) {
+            log.error("秒杀库存对账异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(List<Long> voucherIds) {
+        // 1. 一次管道读取所有优惠券所有桶的库存和已购用户数
+        List<String> stockKeys = new ArrayList<>();
+        List<String> orderKeys = new ArrayList<>();
+        for (Long voucherId : voucherIds) {
+            stockKeys.addAll(seckillKeys.stockKeys(voucherId));
+            for (int i = 0; i < seckillKeys.bucketsOf(voucherId); i++) {
+                orderKeys.add(seckillKeys.orderKey(voucherId, i));
+            }
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : stockKeys) {
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8));
+            }
+            for (String key : orderKeys) {
+                connection.setCommands().sCard(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+
+        // 2. 一次查询数据库库存，一次分组查询订单数（已取消的订单已归还库存，不计入）
+        Map<Long, Integer> dbStocks = new HashMap<>();
+        for (SeckillVoucher voucher : seckillVoucherService.listByIds(voucherIds)) {
+            dbStocks.put(voucher.getVoucherId(), voucher.getStock());
+        }
+        Map<Long, Long> dbOrders = new HashMap<>();
+        List<Map<String, Object>> counts = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS orders")
+                .in("voucher_id", voucherIds)
+                .ne("status", 4)
+                .groupBy("voucher_id"));
+        for (Map<String, Object> count : counts) {
+            dbOrders.put(((Number) count.get("voucher_id")).longValue(), ((Number) count.get("orders")).longValue());
+        }
+
+        // 3. 逐个优惠券比较，上一次对账可能在其他节点执行，从redis读取
+        Map<Long, Map<String, Long>> lastReport = report();
+        Map<Long, Map<String, Long>> report = new TreeMap<>();
+        long drift = 0;
+        long unpersisted = 0;
+        int stockIndex = 0;
+        int orderIndex = stockKeys.size();
+        for (Long voucherId : voucherIds) {
+            int buckets = seckillKeys.bucketsOf(voucherId);
+            long[] bucketStocks = new long[buckets];
+            boolean warmed = false;
+            long redisStock = 0;
+            long redisSold = 0;
+            for (int i = 0; i < buckets; i++) {
+                Object stock = values.get(stockIndex++);
+                Object sold = values.get(orderIndex++);
+                if (stock != null) {
+                    warmed = true;
+                    bucketStocks[i] = Long.parseLong(stock.toString());
+                    redisStock += bucketStocks[i];
+                }
+                redisSold += sold == null ? 0 : ((Number) sold).longValue();
+            }
+            Integer dbStock = dbStocks.get(voucherId);
+            if (!warmed || dbStock == null) {
+                // 未预热或已删除的优惠券不对账
+                continue;
+            }
+            long orders = dbOrders.getOrDefault(voucherId, 0L);
+            Map<String, Long> stat = new LinkedHashMap<>();
+            stat.put("redisStock", redisStock);
+            stat.put("redisSold", redisSold);
+            stat.put("dbStock", (long) dbStock);
+            stat.put("dbOrders", orders);
+            stat.put("unpersisted", redisSold - orders);
+            stat.put("drift", redisStock + redisSold - dbStock - orders);
+            report.put(voucherId, stat);
+
+            // 与上一次对账结果相同才视为真实偏差，排除正在落库的订单
+            Map<String, Long> last = lastReport.get(voucherId);
+            if (stat.get("unpersisted") != 0 && last != null && stat.get("unpersisted").equals(last.get("unpersisted"))
+                    && stat.get("dbOrders").equals(last.get("dbOrders"))) {
+                unpersisted += stat.get("unpersisted");
+                log.warn("秒杀券{}有{}个订单持续未落库 {}", voucherId, stat.get("unpersisted"), stat);
+            }
+            if (stat.get("drift") != 0 && last != null && stat.get("drift").equals(last.get("drift"))) {
+                drift += Math.abs(stat.get("drift"));
+                log.warn("秒杀券{}的redis库存与数据库偏差{} {}", voucherId, stat.get("drift"), stat);
+                if (autoCorrect) {
+                    correct(voucherId, bucketStocks, stat.get("drift"));
+                }
+            }
+        }
+        saveReport(report);
+        totalDrift.set(drift);
+        totalUnpersisted.set(unpersisted);
+    }
+
+    /**
+     * 按偏差调整redis库存，使用INCRBY而不是SET，不覆盖对账期间的秒杀扣减
+     */
+    private void correct(Long voucherId, long[] bucketStocks, long drift) {
+        if (drift < 0) {
+            // redis库存偏少，补到第一个桶
+            stringRedisTemplate.opsForValue().increment(seckillKeys.stockKey(voucherId, 0), -drift);
+            soldOutRegistry.reset(voucherId);
+        } else {
+            // redis库存偏多，从各个桶扣减，不扣成负数
+            long remaining = drift;
+            for (int i = 0; i < bucketStocks.length && remaining > 0; i++) {
+                long delta = Math.min(remaining, Math.max(0, bucketStocks[i]));
+                if (delta > 0) {
+                    stringRedisTemplate.opsForValue().decrement(seckillKeys.stockKey(voucherId, i), delta);
+                    remaining -= delta;
+                }
+            }
+        }
+        seckillPushHub.markStockChanged(voucherId);
+        log.info("已修正秒杀券{}的redis库存，偏差{}", voucherId, drift);
+    }
+}
@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description: 秒杀预热
+ * 在秒杀开始前把库存和秒杀时间窗口写入redis（以及本地缓存），由秒杀脚本原子地校验时间窗口，
+ * 不再每次请求查询数据库；秒杀结束一段时间后清理redis中的秒杀key
+ */
+@Slf4j
+@Component
+public class SeckillWarmer {
+
+    public static final int WINDOW_OPEN = 0;
+    public static final int WINDOW_NOT_BEGUN = 3;
+    public static final int WINDOW_ENDED = 4;
+
+    /**
+     * 提前多少分钟预热
+     */
+    @Value("${hmdp.seckill.prewarm-minutes:5}")
+    private long prewarmMinutes;
+
+    /**
+     * 秒杀结束多少分钟后清理redis中的key
+     */
+    @Value("${hmdp.seckill.cleanup-delay-minutes:60}")
+    private long cleanupDelayMinutes;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    // voucherId -> {开始时间, 结束时间} 毫秒
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+
+    /**
+     * 本地缓存判断秒杀时间窗口，未预热的优惠券交给秒杀脚本判断
+     * @return WINDOW_OPEN / WINDOW_NOT_BEGUN / WINDOW_ENDED
+     */
+    public int windowState(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        if (window == null) {
+            return WINDOW_OPEN;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return WINDOW_NOT_BEGUN;
+        }
+        if (now > window[1]) {
+            return WINDOW_ENDED;
+        }
+        return WINDOW_OPEN;
+    }
+
+    /**
+     * 写入库存和时间窗口
+     * @param seckillVoucher 秒杀券
+     * @param overwriteStock true 覆盖redis中的库存（新增秒杀券），false 只在库存key不存在时写入（预热）
+     */
+    public void warm(SeckillVoucher seckillVoucher, boolean overwriteStock) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int buckets = seckillKeys.bucketsOf(voucherId);
+        long begin = toMillis(seckillVoucher.getBeginTime());
+        long end = toMillis(seckillVoucher.getEndTime());
+        // 1. 库存平均拆分到各个桶，余数分给前面的桶，总数不变
+        List<String> stockKeys = seckillKeys.stockKeys(voucherId);
+        if (overwriteStock || !hasAnyKey(stockKeys)) {
+            int stock = seckillVoucher.getStock();
+            for (int i = 0; i < buckets; i++) {
+                int bucketStock = stock / buckets + (i < stock % buckets ? 1 : 0);
+                stringRedisTemplate.opsForValue().set(stockKeys.get(i), String.valueOf(bucketStock));
+            }
+        }
+        // 2. 每个桶写一份时间窗口，与库存同一个slot，秒杀脚本内原子校验
+        String window = begin + "," + end;
+        for (int i = 0; i < buckets; i++) {
+            stringRedisTemplate.opsForValue().set(seckillKeys.windowKey(voucherId, i), window);
+        }
+        // 3. 记录预热过的优惠券，按结束时间清理
+        stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_ACTIVE_KEY, voucherId.toString(), end);
+        windows.put(voucherId, new long[]{begin, end});
+        // 4. 提前创建准入限流器，秒杀开始后请求线程不需要访问redis创建
+        seckillAdmission.prepare(voucherId);
+    }
+
+    /**
+     * 预热即将开始和正在进行的秒杀
+     */
+    @Scheduled(fixedDelay = 30000L)
+    public void prewarm() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plusMinutes(prewarmMinutes))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            try {
+                warm(voucher, false);
+            } catch (Exception e) {
+                log.error("预热秒杀券{}异常", voucher.getVoucherId(), e);
+            }
+        }
+    }
+
+    /**
+     * 清理结束超过cleanupDelayMinutes的秒杀
+     */
+    @Scheduled(fixedDelay = 60000L)
+    public void cleanup() {
+        long deadline = System.currentTimeMillis() - cleanupDelayMinutes * 60000L;
+        windows.values().removeIf(window -> window[1] < deadline);
+        Set<String> ended = stringRedisTemplate.opsForZSet().rangeByScore(RedisConstants.SECKILL_ACTIVE_KEY, 0, deadline);
+        if (ended == null || ended.isEmpty()) {
+            return;
+        }
+        for (String id : ended) {
+            Long voucherId = Long.valueOf(id);
+            int buckets = seckillKeys.bucketsOf(voucherId);
+            List<String> keys = new ArrayList<>(buckets * 3 + 3);
+            for (int i = 0; i < buckets; i++) {
+                keys.add(seckillKeys.stockKey(voucherId, i));
+                keys.add(seckillKeys.orderKey(voucherId, i));
+                keys.add(seckillKeys.windowKey(voucherId, i));
+            }
+            keys.add(seckillKeys.buyerKey(voucherId));
+            keys.add(seckillKeys.buyerClaimKey(voucherId));
+            keys.add(RedisConstants.SECKILL_BUCKETS_KEY + voucherId);
+            // 集群模式下多个key不在同一slot，逐个删除
+            for (String key : keys) {
+                stringRedisTemplate.delete(key);
+            }
+            stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ACTIVE_KEY, id);
+            seckillKeys.evictBuckets(voucherId);
+            log.debug("清理已结束的秒杀券{}", voucherId);
+        }
+    }
+
+    private boolean hasAnyKey(List<String> keys) {
+        for (String key : keys) {
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,248 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: 本地生成全局唯一id，生成id时不访问redis
+ * id = 时间戳(秒) << 32 | 来源位(1 << 30) | workerId(10位) << 20 | 秒内序列号(20位)，时间戳与RedisIdGenerator同为epoch秒、起点相同，两种id可以一起排序；
+ * 低32位的最高位为0、次高位为1，与RedisIdGenerator、秒杀脚本分配的id不会重复；
+ * 启动时从redis租用一个workerId（SET NX id:worker:{n}），定时续约，超过租约截止时间仍未续约成功则停止生成id，
+ * 避免与接手该workerId的节点冲突；释放或续约时记录该workerId可能用到的最大时间戳，下一个持有者从这之后开始；
+ * 时钟回拨不超过max-backward-millis时沿用上一次的时间戳继续分配序列号，超过则拒绝生成
+ */
+@Slf4j
+@Component
+public class SnowflakeIdGenerator {
+
+    private static final int WORKER_BITS = 10;
+    // 低32位的最高两位为来源位
+    private static final int SEQUENCE_BITS = RedisIdGenerator.COUNT_BITS - 2 - WORKER_BITS;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 是否使用本地id生成，开启后秒杀订单id不再由redis生成
+     */
+    @Value("${hmdp.id.snowflake.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * workerId租约时长（秒），redis不可用的时间超过租约后停止生成id
+     */
+    @Value("${hmdp.id.snowflake.lease-seconds:600}")
+    private long leaseSeconds;
+
+    /**
+     * 允许的最大时钟回拨（毫秒）
+     */
+    @Value("${hmdp.id.snowflake.max-backward-millis:5000}")
+    private long maxBackwardMillis;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillNodes seckillNodes;
+
+    private volatile long workerId = -1;
+
+    // 租约在本地的截止时间，按发出续约请求的时间计算，不晚于redis中租约的过期时间
+    private volatile long leaseDeadline;
+
+    private long lastSecond = -1;
+
+    private long sequence;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        if (!lease()) {
+            throw new IllegalStateException("没有可用的workerId");
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        long id = workerId;
+        if (id < 0) {
+            return;
+        }
+        synchronized (this) {
+            // 停止生成id，记录最后使用的时间戳后释放
+            workerId = -1;
+            stringRedisTemplate.execute(LEASE_SCRIPT, keys(id), seckillNodes.nodeId(), "0", String.valueOf(lastSecond));
+        }
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public synchronized long nextId() {
+        if (workerId < 0 || System.currentTimeMillis() > leaseDeadline) {
+            throw new IllegalStateException("workerId租约已失效");
+        }
+        long nowSecond = currentSecond();
+        if (nowSecond > lastSecond) {
+            lastSecond = nowSecond;
+            sequence = 0;
+        } else {
+            // 同一秒内，或时钟回拨后沿用上一次的时间戳
+            checkBackward();
+            if (sequence < SEQUENCE_MASK) {
+                sequence++;
+            } else {
+                // 这一秒的序列号用完，等到下一秒
+                lastSecond = waitUntil(lastSecond + 1);
+                sequence = 0;
+            }
+        }
+        return lastSecond << RedisIdGenerator.COUNT_BITS | RedisIdGenerator.LOCAL_SOURCE_BIT | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    /**
+     * 定时续约，租约丢失后重新租用
+     */
+    @Scheduled(fixedDelayString = "${hmdp.id.snowflake.renew-millis:10000}")
+    public void renew() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            long id = workerId;
+            if (id < 0) {
+                lease();
+                return;
+            }
+            long sentAt = System.currentTimeMillis();
+            if (!extend(id, sentAt)) {
+                log.warn("workerId {}的租约已失效，重新租用", id);
+                synchronized (this) {
+                    if (workerId == id) {
+                        workerId = -1;
+                    }
+                }
+                lease();
+            }
+        } catch (Exception e) {
+            log.error("workerId续约异常", e);
+        }
+    }
+
+    /**
+     * 从随机位置开始依次尝试租用一个空闲的workerId
+     */
+    private boolean lease() {
+        String nodeId = seckillNodes.nodeId();
+        int start = RandomUtil.randomInt((int) MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long sentAt = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(workerKey(id), nodeId, leaseSeconds, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            // 上一个持有者可能用到的最大时间戳
+            String value = stringRedisTemplate.opsForValue().get(timeKey(id));
+            long used = value == null ? -1 : Long.parseLong(value);
+            if ((used - currentSecond()) * 1000 > maxBackwardMillis) {
+                // 本地时钟落后太多，换一个workerId
+                log.warn("workerId {}已使用到时间戳{}，本地时钟落后，跳过", id, used);
+                stringRedisTemplate.execute(LEASE_SCRIPT, keys(id), nodeId, "0", value);
+                continue;
+            }
+            synchronized (this) {
+                // 从上一个持有者用过的时间戳之后开始
+                if (used >= lastSecond) {
+                    lastSecond = used;
+                    sequence = SEQUENCE_MASK;
+                }
+                workerId = id;
+                leaseDeadline = sentAt + TimeUnit.SECONDS.toMillis(leaseSeconds);
+            }
+            extend(id, sentAt);
+            log.info("租用workerId {}", id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 续约并记录租约截止前可能用到的最大时间戳
+     */
+    private boolean extend(long id, long sentAt) {
+        long deadline = sentAt + TimeUnit.SECONDS.toMillis(leaseSeconds);
+        long deadlineSecond = deadline / 1000 - RedisIdGenerator.BEGIN_TIMESTAMP;
+        Long result = stringRedisTemplate.execute(LEASE_SCRIPT, keys(id), seckillNodes.nodeId(),
+                String.valueOf(TimeUnit.SECONDS.toMillis(leaseSeconds)), String.valueOf(deadlineSecond));
+        if (result == null || result != 1L) {
+            return false;
+        }
+        leaseDeadline = deadline;
+        return true;
+    }
+
+    private void checkBackward() {
+        long backward = (lastSecond + RedisIdGenerator.BEGIN_TIMESTAMP) * 1000 - System.currentTimeMillis();
+        if (backward > maxBackwardMillis) {
+            throw new IllegalStateException("时钟回拨" + backward + "毫秒，拒绝生成id");
+        }
+    }
+
+    private long waitUntil(long second) {
+        long now = currentSecond();
+        while (now < second) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待下一秒时被中断", e);
+            }
+            now = currentSecond();
+        }
+        return now;
+    }
+
+    private static long currentSecond() {
+        // 与RedisIdGenerator使用同一时间基准
+        return RedisIdGenerator.currentSecond();
+    }
+
+    private static List<String> keys(long id) {
+        return Arrays.asList(workerKey(id), timeKey(id));
+    }
+
+    private static String workerKey(long id) {
+        // hash tag保证租约与时间戳在集群中落在同一个slot
+        return RedisConstants.ID_WORKER_KEY + "{" + id + "}";
+    }
+
+    private static String timeKey(long id) {
+        return RedisConstants.ID_WORKER_TIME_KEY + "{" + id + "}";
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Description: 本地售罄标记
+ * 秒杀脚本返回库存不足后在本地标记售罄，并通过redis发布订阅通知其他节点，
+ * 之后对该优惠券的请求直接在JVM内拒绝，不再生成订单id、不再执行lua脚本；
+ * 补充库存时清除标记。标记带有过期时间，防止补货消息与售罄消息乱序导致永久误判
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+
+    private static final long SOLD_OUT_TTL_MILLIS = 60000L;
+
+    // voucherId -> 标记过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    private RTopic soldOutTopic;
+
+    private RTopic restockTopic;
+
+    @PostConstruct
+    private void init() {
+        soldOutTopic = redissonClient.getTopic(RedisConstants.SECKILL_SOLD_OUT_TOPIC, StringCodec.INSTANCE);
+        restockTopic = redissonClient.getTopic(RedisConstants.SECKILL_RESTOCK_TOPIC, StringCodec.INSTANCE);
+        soldOutTopic.addListener(String.class, (channel, msg) ->
+                soldOut.put(Long.valueOf(msg), System.currentTimeMillis() + SOLD_OUT_TTL_MILLIS));
+        restockTopic.addListener(String.class, (channel, msg) -> soldOut.remove(Long.valueOf(msg)));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            // 标记过期，放行一次请求到redis重新确认
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    public void markSoldOut(Long voucherId) {
+        // 已经标记过的不再重复广播
+        if (soldOut.put(voucherId, System.currentTimeMillis() + SOLD_OUT_TTL_MILLIS) != null) {
+            return;
+        }
+        try {
+            soldOutTopic.publishAsync(voucherId.toString());
+        } catch (Exception e) {
+            log.error("广播售罄消息失败 {}", voucherId, e);
+        }
+    }
+
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        restockTopic.publish(voucherId.toString());
+    }
+}
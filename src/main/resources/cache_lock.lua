@@ -0,0 +1,15 @@
+-- 缓存重建锁 lock:<name>:<id>，值为持有者的token
+local lockKey = KEYS[1]
+
+local token = ARGV[1]
+-- 续期时长（毫秒），0表示释放锁
+local ttl = ARGV[2]
+
+if(redis.call('get', lockKey) ~= token) then
+    -- 锁已过期或被其他线程持有，返回0
+    return 0
+end
+if(ttl == '0') then
+    return redis.call('del', lockKey)
+end
+return redis.call('pexpire', lockKey, ttl)
@@ -0,0 +1,21 @@
+-- workerId租约 id:worker:{n}，值为持有租约的节点标识
+local workerKey = KEYS[1]
+-- 该workerId可能用到的最大时间戳 id:worker:time:{n}，下一个持有者从这之后开始生成id
+local timeKey = KEYS[2]
+
+local nodeId = ARGV[1]
+-- 租约时长（毫秒），0表示释放租约
+local leaseMillis = ARGV[2]
+local timestamp = ARGV[3]
+
+if(redis.call('get', workerKey) ~= nodeId) then
+    -- 租约已过期或被其他节点持有，返回0
+    return 0
+end
+redis.call('set', timeKey, timestamp)
+if(leaseMillis == '0') then
+    redis.call('del', workerKey)
+else
+    redis.call('pexpire', workerKey, leaseMillis)
+end
+return 1
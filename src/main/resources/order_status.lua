@@ -0,0 +1,33 @@
+-- 订单状态，KEYS为同一分片的订单状态hash与过期时间ZSET
+-- 订单状态 seckill:status:{p}，field为订单id，值为 "state,userId"
+local statusKey = KEYS[1]
+-- 订单状态的过期时间 seckill:status:expire:{p}
+local statusExpireKey = KEYS[2]
+
+-- update：更新订单状态 / expire：清理过期的订单状态
+local op = ARGV[1]
+
+if(op == 'update') then
+    -- ARGV[2] 新状态，ARGV[3] 新的过期时间，ARGV[4...] 订单id
+    local state = ARGV[2]
+    local count = 0
+    for i = 4, #ARGV do
+        local value = redis.call('hget', statusKey, ARGV[i])
+        -- 已过期清理的订单不再写入，避免留下没有userId的状态
+        if(value) then
+            local sep = string.find(value, ',')
+            redis.call('hset', statusKey, ARGV[i], state .. string.sub(value, sep))
+            redis.call('zadd', statusExpireKey, ARGV[3], ARGV[i])
+            count = count + 1
+        end
+    end
+    return count
+end
+
+-- ARGV[2] 当前时间，ARGV[3] 每次最多清理的数量
+local expired = redis.call('zrangebyscore', statusExpireKey, 0, ARGV[2], 'LIMIT', 0, ARGV[3])
+for i = 1, #expired do
+    redis.call('hdel', statusKey, expired[i])
+    redis.call('zrem', statusExpireKey, expired[i])
+end
+return #expired
@@ -1,25 +1,109 @@
+-- KEYS 同一分片（库存分桶时为同一个桶）的key，带有相同的hash tag，在Redis Cluster中落在同一个slot
+-- 库存 seckill:stock:{p}:voucherId[:bucket]
+local stockKey = KEYS[1]
+-- 从本桶扣减库存的用户 seckill:order:{p}:voucherId[:bucket]，分桶的优惠券由调用方先在 seckill:buyer:{p}:voucherId 中占位判重
+local orderKey = KEYS[2]
+-- 订单stream stream.orders:{p}
+local streamKey = KEYS[3]
+-- 当日订单序列号 icr:order:{p}:yyyyMMdd:
+local orderIdKey = KEYS[4]
+-- 秒杀时间窗口 seckill:window:{p}:voucherId[:bucket]，值为 "开始毫秒,结束毫秒"
+local windowKey = KEYS[5]
+-- 未支付订单的超时队列 seckill:timeout:{p}，score为支付截止时间
+local timeoutKey = KEYS[6]
+-- 订单状态 seckill:status:{p}，hash，field为订单id，值为 "state,userId"
+local statusKey = KEYS[7]
+-- 订单状态的过期时间 seckill:status:expire:{p}，score为过期时间，由OrderStatusCache定时清理过期的订单状态
+local statusExpireKey = KEYS[8]
+-- 已写入stream、尚未确认的订单 seckill:queued:{p}，field为订单id，消费者ACK时删除
+local queuedKey = KEYS[9]
+
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+-- 订单id，为空时由脚本生成
 local orderId = ARGV[3]
+-- 订单id的时间戳部分（时间戳 << 32 | 2^31），序列号最高位置1，与RedisIdGenerator、SnowflakeIdGenerator生成的id区分
+local timestampPart = ARGV[4]
+-- 分片数与当前分片，各分片序列号交错，保证不同分片生成的id不重复
+local partitions = tonumber(ARGV[5])
+local partition = tonumber(ARGV[6])
+-- 库存桶
+local bucket = ARGV[7]
+-- 是否把订单写入stream，使用进程内订单队列时由调用方入队
+local enqueue = ARGV[8]
+-- 支付超时时间（毫秒），0表示不自动取消
+local payTimeout = tonumber(ARGV[9])
+-- 订单状态的过期时间（毫秒时间戳）
+local statusExpireAt = ARGV[10]
 
-local stockKey = 'seckill:stock:' .. voucherId
-local orderKey = 'seckill:order:' .. voucherId
+-- 脚本内读取了服务器时间，按命令效果复制（redis 5之后默认如此）
+if(redis.replicate_commands) then
+    redis.replicate_commands()
+end
 
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 库存不足，返回1
-    return 1
+local window = redis.call('get', windowKey)
+local now = 0
+if(window or payTimeout > 0) then
+    local time = redis.call('time')
+    now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+end
+if(window) then
+    local sep = string.find(window, ',')
+    if(now < tonumber(string.sub(window, 1, sep - 1))) then
+        -- 秒杀尚未开始，返回3
+        return {3, ''}
+    end
+    if(now > tonumber(string.sub(window, sep + 1))) then
+        -- 秒杀已经结束，返回4
+        return {4, ''}
+    end
 end
 
+-- 先判重再判断库存，已购用户不会因为本桶库存不足而被转到其他桶
 if(redis.call('sismember', orderKey, userId) == 1) then
     -- 存在，说明是重复下单，返回2
-    return 2
+    return {2, ''}
+end
+
+-- 库存key已清理或不存在时按库存不足处理
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 库存不足，返回1
+    return {1, ''}
+end
+
+if(orderId == '') then
+    -- 下单成功才占用序列号，序列号 = 分片内自增 * 分片数 + 分片
+    local serialNum = redis.call('incr', orderIdKey) * partitions + partition
+    -- lua的number是double，不能直接表示64位的id，按十进制拼接：高位 + 低10位与序列号相加后的进位
+    local high = tonumber(string.sub(timestampPart, 1, -11)) or 0
+    local low = tonumber(string.sub(timestampPart, -10)) + serialNum
+    high = high + math.floor(low / 10000000000)
+    low = low % 10000000000
+    if(high > 0) then
+        orderId = string.format('%d%010d', high, low)
+    else
+        orderId = string.format('%d', low)
+    end
 end
 
 redis.call('incrby', stockKey, -1)
 
 redis.call('sadd', orderKey, userId)
 
--- 发送消息到队列中 XADD stream.orders * k1 v1 k2 v2
-redis.call('xadd', 'stream.orders', '*', 'voucherId', voucherId, 'userId', userId, 'id', orderId)
-return 0
+if(enqueue == '1') then
+    -- 发送消息到队列中 XADD stream.orders:{p} * k1 v1 k2 v2
+    redis.call('xadd', streamKey, '*', 'voucherId', voucherId, 'userId', userId, 'id', orderId, 'bucket', bucket)
+    redis.call('hset', queuedKey, orderId, 'Q')
+end
+-- 订单状态：等待落库
+redis.call('hset', statusKey, orderId, 'PENDING,' .. userId)
+redis.call('zadd', statusExpireKey, statusExpireAt, orderId)
 
+local member = ''
+if(payTimeout > 0) then
+    -- 加入超时队列，超时未支付时取消订单并归还库存 orderId:voucherId:userId:bucket:deadline
+    local deadline = now + payTimeout
+    member = orderId .. ':' .. voucherId .. ':' .. userId .. ':' .. bucket .. ':' .. string.format('%d', deadline)
+    redis.call('zadd', timeoutKey, deadline, member)
+end
+return {0, orderId, member}
@@ -0,0 +1,28 @@
+-- 分桶优惠券的一人一单占位，KEYS在同一分片（与桶0相同），两个key由秒杀结束后的清理任务删除
+-- 已购用户 seckill:buyer:{p}:voucherId
+local buyerKey = KEYS[1]
+-- 未确认的占位 seckill:buyer:claim:{p}:voucherId，score为占位的截止时间，超时未确认的由对账任务处理
+local claimKey = KEYS[2]
+
+-- claim 占位 / confirm 下单成功，确认占位 / release 下单失败，释放占位
+local op = ARGV[1]
+local userId = ARGV[2]
+-- 占位的截止时间（毫秒）
+local deadline = ARGV[3]
+
+if(op == 'claim') then
+    if(redis.call('sadd', buyerKey, userId) == 0) then
+        -- 已占位，重复下单
+        return 0
+    end
+    redis.call('zadd', claimKey, deadline, userId)
+    return 1
+end
+
+if(op == 'confirm') then
+    return redis.call('zrem', claimKey, userId)
+end
+
+-- release
+redis.call('zrem', claimKey, userId)
+return redis.call('srem', buyerKey, userId)
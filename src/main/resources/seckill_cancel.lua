@@ -0,0 +1,39 @@
+-- 取消订单，归还redis库存和购买资格，KEYS与秒杀脚本在同一分片
+-- 库存 seckill:stock:{p}:voucherId[:bucket]
+local stockKey = KEYS[1]
+-- 已购用户 seckill:order:{p}:voucherId[:bucket]
+local orderKey = KEYS[2]
+-- 超时队列 seckill:timeout:{p}
+local timeoutKey = KEYS[3]
+-- 订单状态 seckill:status:{p}，field为订单id
+local statusKey = KEYS[4]
+
+local userId = ARGV[1]
+-- 超时队列中的成员
+local member = ARGV[2]
+-- 1 表示订单不在超时队列中也要归还（入队失败的订单）
+local force = ARGV[3]
+local orderId = ARGV[4]
+-- 订单状态：超时取消 CANCELLED / 入队失败 FAILED
+local state = ARGV[5]
+
+-- 只有从超时队列中移除成功的节点归还，重复执行不会多归还库存
+if(redis.call('zrem', timeoutKey, member) == 0 and force ~= '1') then
+    return 0
+end
+
+if(redis.call('srem', orderKey, userId) == 0) then
+    -- 已经归还过
+    return 0
+end
+
+-- 秒杀结束后库存key已清理时不再重建
+if(redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, 1)
+end
+
+-- 订单状态已过期清理时不再写入
+if(redis.call('hexists', statusKey, orderId) == 1) then
+    redis.call('hset', statusKey, orderId, state .. ',' .. userId)
+end
+return 1
@@ -0,0 +1,569 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildLock;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisData;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.MessageListener;
+import org.redisson.client.codec.Codec;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisKeyCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: CacheClient同一节点同一个key的并发未命中合并为一次查询（single-flight），
+ * 其他节点持有重建锁时等待它发布的重建结果，不再休眠重试；缓存空值、逻辑过期策略以及按缓存名选择策略；
+ * redis和发布订阅用内存中的实现代替，多个CacheClient共享同一份数据，模拟多个节点
+ */
+public class CacheClientTest {
+
+    // 所有节点共享的redis数据
+    private final Map<String, String> redis = new ConcurrentHashMap<>();
+
+    // 设置了过期时间的key -> 剩余过期时间（毫秒）
+    private final Map<String, Long> ttls = new ConcurrentHashMap<>();
+
+    // 所有节点共享的发布订阅，topic -> 监听器
+    private final Map<String, List<MessageListener<String>>> topics = new ConcurrentHashMap<>();
+
+    private final List<CacheRebuildLock> locks = new ArrayList<>();
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(32);
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+        locks.forEach(lock -> ReflectionTestUtils.invokeMethod(lock, "destroy"));
+    }
+
+    /**
+     * 同一个key的并发未命中只查询一次数据库，等待的线程各自得到一份结果
+     */
+    @Test
+    void TestConcurrentMissesCoalesced() throws Exception {
+        CacheClient cacheClient = node(3000);
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            sleep(200);
+            return shop(id);
+        };
+        List<Shop> shops = queryConcurrently(cacheClient, 1L, dbFallback, 32);
+
+        assertEquals(1, dbQueries.get());
+        for (Shop shop : shops) {
+            assertEquals("shop-1", shop.getName());
+        }
+        // 等待的线程各自反序列化，不共享对象
+        assertEquals(32, identityCount(shops));
+        assertEquals(31, coalesced(cacheClient));
+        assertNotNull(redis.get(RedisConstants.CACHE_SHOP_KEY + 1));
+    }
+
+    /**
+     * 不同key的查询互不等待
+     */
+    @Test
+    void TestDifferentKeysNotCoalesced() throws Exception {
+        CacheClient cacheClient = node(3000);
+        AtomicInteger dbQueries = new AtomicInteger();
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            bothStarted.countDown();
+            // 两个key同时在查询数据库，说明没有互相等待
+            await(bothStarted);
+            return shop(id);
+        };
+        Future<Shop> first = executorService.submit(() -> query(cacheClient, 1L, dbFallback));
+        Future<Shop> second = executorService.submit(() -> query(cacheClient, 2L, dbFallback));
+        assertEquals("shop-1", first.get(5, TimeUnit.SECONDS).getName());
+        assertEquals("shop-2", second.get(5, TimeUnit.SECONDS).getName());
+        assertEquals(2, dbQueries.get());
+        assertEquals(0, coalesced(cacheClient));
+    }
+
+    /**
+     * 数据库不存在时等待的线程都得到空值，空值写入缓存，后续请求不再查询数据库
+     */
+    @Test
+    void TestNullResultShared() throws Exception {
+        CacheClient cacheClient = node(3000);
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            sleep(200);
+            return null;
+        };
+        List<Shop> shops = queryConcurrently(cacheClient, 1L, dbFallback, 16);
+        assertTrue(shops.stream().allMatch(Objects::isNull));
+        assertEquals("", redis.get(RedisConstants.CACHE_SHOP_KEY + 1));
+
+        assertNull(query(cacheClient, 1L, dbFallback));
+        assertEquals(1, dbQueries.get());
+    }
+
+    /**
+     * 查询失败时等待的线程收到同一个异常，之后的请求重新查询
+     */
+    @Test
+    void TestFailureSharedThenRetried() throws Exception {
+        CacheClient cacheClient = node(3000);
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            if (dbQueries.incrementAndGet() == 1) {
+                sleep(200);
+                throw new IllegalStateException("数据库不可用");
+            }
+            return shop(id);
+        };
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Shop>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executorService.submit(() -> {
+                start.await();
+                return query(cacheClient, 1L, dbFallback);
+            }));
+        }
+        start.countDown();
+        for (Future<Shop> future : futures) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, dbQueries.get());
+        // 失败的查询不会留在本节点，下一次请求重新查询
+        assertEquals("shop-1", query(cacheClient, 1L, dbFallback).getName());
+        assertEquals(2, dbQueries.get());
+    }
+
+    /**
+     * 其他节点持有重建锁时，等待它发布的重建结果，不查询数据库，也不需要等到锁过期
+     */
+    @Test
+    void TestWaitForRebuildNotification() throws Exception {
+        CacheClient nodeA = node(10000);
+        CacheClient nodeB = node(10000);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Shop> rebuilt = executorService.submit(() -> query(nodeA, 1L, id -> {
+            loading.countDown();
+            await(release);
+            return shop(id);
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        AtomicInteger dbQueries = new AtomicInteger();
+        Future<Shop> waiting = executorService.submit(() -> query(nodeB, 1L, id -> {
+            dbQueries.incrementAndGet();
+            return shop(id);
+        }));
+        sleep(200);
+        assertFalse(waiting.isDone());
+
+        long released = System.currentTimeMillis();
+        release.countDown();
+        assertEquals("shop-1", waiting.get(5, TimeUnit.SECONDS).getName());
+        assertTrue(System.currentTimeMillis() - released < 2000);
+        assertEquals("shop-1", rebuilt.get(5, TimeUnit.SECONDS).getName());
+        assertEquals(0, dbQueries.get());
+        assertNull(redis.get(RedisConstants.LOCK_KEY_PREFIX + "shop:1"));
+    }
+
+    /**
+     * 数据库不存在时通知的也是空值，等待的节点直接返回空
+     */
+    @Test
+    void TestNullRebuildNotification() throws Exception {
+        CacheClient nodeA = node(10000);
+        CacheClient nodeB = node(10000);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Shop> rebuilt = executorService.submit(() -> query(nodeA, 1L, id -> {
+            loading.countDown();
+            await(release);
+            return null;
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        AtomicInteger dbQueries = new AtomicInteger();
+        Future<Shop> waiting = executorService.submit(() -> query(nodeB, 1L, id -> {
+            dbQueries.incrementAndGet();
+            return shop(id);
+        }));
+        sleep(200);
+        release.countDown();
+        assertNull(waiting.get(5, TimeUnit.SECONDS));
+        assertNull(rebuilt.get(5, TimeUnit.SECONDS));
+        assertEquals(0, dbQueries.get());
+    }
+
+    /**
+     * 持有锁的节点宕机、没有发布通知时，等待一个锁的过期时间后重新获取锁并查询数据库
+     */
+    @Test
+    void TestRetakeLockAfterHolderDies() throws Exception {
+        CacheClient cacheClient = node(300);
+        String lockKey = RedisConstants.LOCK_KEY_PREFIX + "shop:1";
+        redis.put(lockKey, "dead-node");
+        // 模拟宕机节点的锁过期
+        ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor();
+        expirer.schedule(() -> redis.remove(lockKey), 200, TimeUnit.MILLISECONDS);
+        try {
+            AtomicInteger dbQueries = new AtomicInteger();
+            long begin = System.currentTimeMillis();
+            Shop shop = query(cacheClient, 1L, id -> {
+                dbQueries.incrementAndGet();
+                return shop(id);
+            });
+            assertEquals("shop-1", shop.getName());
+            assertEquals(1, dbQueries.get());
+            assertTrue(System.currentTimeMillis() - begin >= 200);
+        } finally {
+            expirer.shutdownNow();
+        }
+    }
+
+    /**
+     * 本节点查询的线程一直没有返回时，等待的线程超过最长等待时间后直接查询数据库
+     */
+    @Test
+    void TestWaiterFallsBackAfterMaxWait() throws Exception {
+        CacheClient cacheClient = node(3000, 300);
+        AtomicInteger dbQueries = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Function<Long, Shop> dbFallback = id -> {
+            if (dbQueries.incrementAndGet() == 1) {
+                loading.countDown();
+                await(release);
+            }
+            return shop(id);
+        };
+        Future<Shop> leader = executorService.submit(() -> query(cacheClient, 1L, dbFallback));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        try {
+            long begin = System.currentTimeMillis();
+            assertEquals("shop-1", query(cacheClient, 1L, dbFallback).getName());
+            long waited = System.currentTimeMillis() - begin;
+            assertTrue(waited >= 300 && waited < 2000, "waited " + waited);
+            assertEquals(2, dbQueries.get());
+            assertEquals(1, coalesced(cacheClient));
+        } finally {
+            release.countDown();
+        }
+        assertEquals("shop-1", leader.get(5, TimeUnit.SECONDS).getName());
+    }
+
+    /**
+     * 其他节点一直持有重建锁（持续续期）又不发布结果时，不会无限重试，超过最长等待时间后直接查询数据库，不写缓存
+     */
+    @Test
+    void TestRebuildLoopDeadline() {
+        CacheClient cacheClient = node(100, 500);
+        String lockKey = RedisConstants.LOCK_KEY_PREFIX + "shop:1";
+        redis.put(lockKey, "slow-node");
+        AtomicInteger dbQueries = new AtomicInteger();
+        long begin = System.currentTimeMillis();
+        Shop shop = query(cacheClient, 1L, id -> {
+            dbQueries.incrementAndGet();
+            return shop(id);
+        });
+        long waited = System.currentTimeMillis() - begin;
+        assertEquals("shop-1", shop.getName());
+        assertEquals(1, dbQueries.get());
+        assertTrue(waited >= 500 && waited < 3000, "waited " + waited);
+        // 缓存仍由持有锁的节点写入
+        assertNull(redis.get(RedisConstants.CACHE_SHOP_KEY + 1));
+        assertEquals("slow-node", redis.get(lockKey));
+    }
+
+    /**
+     * 命中redis时一级缓存的过期时间不超过redis中的剩余时间
+     */
+    @Test
+    void TestLocalTtlBoundedByRedisTtl() {
+        CacheClient cacheClient = node(3000, 10000, "shop");
+        String key = RedisConstants.CACHE_SHOP_KEY + 1;
+        redis.put(key, "{\"id\":1,\"name\":\"shop-1\"}");
+        ttls.put(key, 100L);
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            return shop(id);
+        };
+        assertEquals("shop-1", query(cacheClient, 1L, dbFallback).getName());
+        // redis中的缓存过期后，一级缓存也已过期，重新查询数据库
+        redis.remove(key);
+        ttls.remove(key);
+        sleep(150);
+        assertEquals("shop-1", query(cacheClient, 1L, dbFallback).getName());
+        assertEquals(1, dbQueries.get());
+    }
+
+    /**
+     * 缓存空值：数据库不存在的id写入空值，之后的查询直接返回空，不再查询数据库，也不获取重建锁
+     */
+    @Test
+    void TestPassThroughCachesNull() {
+        CacheClient cacheClient = node(3000);
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            return null;
+        };
+        for (int i = 0; i < 3; i++) {
+            assertNull(cacheClient.query(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, dbFallback,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, CacheClient.Strategy.PASS_THROUGH));
+        }
+        assertEquals(1, dbQueries.get());
+        assertEquals("", redis.get(RedisConstants.CACHE_SHOP_KEY + 1));
+        assertNull(redis.get(RedisConstants.LOCK_KEY_PREFIX + "shop:1"));
+    }
+
+    /**
+     * 逻辑过期：过期后先返回旧数据，由一个线程异步重建，重建完成后返回新数据；
+     * 重建完成前读到旧数据的线程获取锁后再次检查，不会重复重建
+     */
+    @Test
+    void TestLogicalExpireReturnsStaleWhileRebuilding() throws Exception {
+        CacheClient cacheClient = node(3000);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop(1L));
+        redisData.setExpireTime(LocalDateTime.now().minusSeconds(1));
+        redis.put(RedisConstants.CACHE_SHOP_KEY + 1, JSONUtil.toJsonStr(redisData));
+        AtomicInteger dbQueries = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            await(release);
+            Shop shop = shop(id);
+            shop.setName("shop-1-new");
+            return shop;
+        };
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("shop-1", logicalQuery(cacheClient, dbFallback).getName());
+        }
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"shop-1-new".equals(logicalQuery(cacheClient, dbFallback).getName()) && System.currentTimeMillis() < deadline) {
+            sleep(20);
+        }
+        assertEquals("shop-1-new", logicalQuery(cacheClient, dbFallback).getName());
+        assertEquals(1, dbQueries.get());
+    }
+
+    /**
+     * 未指定策略时按缓存名配置的策略查询，未配置的使用默认策略
+     */
+    @Test
+    void TestStrategyByCacheName() {
+        CacheClient cacheClient = node(3000);
+        MockEnvironment environment = new MockEnvironment().withProperty("hmdp.cache.strategies.blog", "pass-through");
+        ReflectionTestUtils.setField(cacheClient, "environment", environment);
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            // 查询期间检查是否持有重建锁
+            return redis.containsKey(RedisConstants.LOCK_KEY_PREFIX + "blog:" + id)
+                    || redis.containsKey(RedisConstants.LOCK_KEY_PREFIX + "shop:" + id) ? shop(id) : null;
+        };
+
+        assertNull(cacheClient.query(RedisConstants.CACHE_BLOG_KEY, 1L, Shop.class, dbFallback, 1L, TimeUnit.MINUTES));
+        assertEquals("shop-1", cacheClient.query(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, dbFallback,
+                1L, TimeUnit.MINUTES).getName());
+        assertEquals(2, dbQueries.get());
+    }
+
+    private Shop logicalQuery(CacheClient cacheClient, Function<Long, Shop> dbFallback) {
+        return cacheClient.query(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, dbFallback,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, CacheClient.Strategy.LOGICAL_EXPIRE);
+    }
+
+    private List<Shop> queryConcurrently(CacheClient cacheClient, Long id, Function<Long, Shop> dbFallback, int threads)
+            throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Shop>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executorService.submit(() -> {
+                start.await();
+                return query(cacheClient, id, dbFallback);
+            }));
+        }
+        start.countDown();
+        List<Shop> shops = new ArrayList<>();
+        for (Future<Shop> future : futures) {
+            shops.add(future.get(10, TimeUnit.SECONDS));
+        }
+        return shops;
+    }
+
+    private Shop query(CacheClient cacheClient, Long id, Function<Long, Shop> dbFallback) {
+        return cacheClient.query(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, dbFallback,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, CacheClient.Strategy.MUTEX);
+    }
+
+    private static long coalesced(CacheClient cacheClient) {
+        SimpleMeterRegistry registry = (SimpleMeterRegistry) ReflectionTestUtils.getField(cacheClient, "meterRegistry");
+        FunctionCounter counter = registry.find("cache.coalesced").tag("cache", "shop").functionCounter();
+        return counter == null ? 0 : (long) counter.count();
+    }
+
+    private static int identityCount(List<Shop> shops) {
+        Set<Shop> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinct.addAll(shops);
+        return distinct.size();
+    }
+
+    private static Shop shop(Long id) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("shop-" + id);
+        return shop;
+    }
+
+    /**
+     * 创建一个节点的CacheClient，与其他节点共享redis和发布订阅
+     */
+    private CacheClient node(long lockTtlMillis) {
+        return node(lockTtlMillis, 10000);
+    }
+
+    private CacheClient node(long lockTtlMillis, long maxWaitMillis, String... localNames) {
+        StringRedisTemplate stringRedisTemplate = redisTemplate();
+        RedissonClient redissonClient = redissonClient();
+
+        CacheRebuildLock rebuildLock = new CacheRebuildLock();
+        ReflectionTestUtils.setField(rebuildLock, "ttlMillis", lockTtlMillis);
+        ReflectionTestUtils.setField(rebuildLock, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(rebuildLock, "redissonClient", redissonClient);
+        ReflectionTestUtils.invokeMethod(rebuildLock, "init");
+        locks.add(rebuildLock);
+
+        CacheClient cacheClient = new CacheClient();
+        ReflectionTestUtils.setField(cacheClient, "defaultStrategy", "mutex");
+        ReflectionTestUtils.setField(cacheClient, "localNames", localNames);
+        ReflectionTestUtils.setField(cacheClient, "localMaxSize", 100);
+        ReflectionTestUtils.setField(cacheClient, "localTtlSeconds", 60L);
+        ReflectionTestUtils.setField(cacheClient, "maxWaitMillis", maxWaitMillis);
+        ReflectionTestUtils.setField(cacheClient, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(cacheClient, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(cacheClient, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cacheClient, "environment", new MockEnvironment());
+        ReflectionTestUtils.setField(cacheClient, "rebuildLock", rebuildLock);
+        ReflectionTestUtils.invokeMethod(cacheClient, "init");
+        return cacheClient;
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get(anyString())).thenAnswer(invocation -> redis.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> redis.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOperations).set(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+        doAnswer(invocation -> redis.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOperations).set(anyString(), anyString());
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class)))
+                .thenAnswer(invocation -> redis.putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)) == null);
+        // 一级缓存的GET和PTTL在同一个管道中
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            List<Object> results = new ArrayList<>();
+            RedisConnection connection = mock(RedisConnection.class);
+            RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+            RedisKeyCommands keyCommands = mock(RedisKeyCommands.class);
+            when(connection.stringCommands()).thenReturn(stringCommands);
+            when(connection.keyCommands()).thenReturn(keyCommands);
+            when(stringCommands.get(any(byte[].class))).thenAnswer(get -> {
+                results.add(redis.get(new String(get.<byte[]>getArgument(0), StandardCharsets.UTF_8)));
+                return null;
+            });
+            when(keyCommands.pTtl(any(byte[].class))).thenAnswer(pTtl -> {
+                String key = new String(pTtl.<byte[]>getArgument(0), StandardCharsets.UTF_8);
+                results.add(redis.containsKey(key) ? ttls.getOrDefault(key, -1L) : -2L);
+                return null;
+            });
+            invocation.<RedisCallback<Object>>getArgument(0).doInRedis(connection);
+            return results;
+        });
+        when(stringRedisTemplate.delete(anyString())).thenAnswer(invocation -> redis.remove(invocation.<String>getArgument(0)) != null);
+        // cache_lock.lua：token一致时续期或释放
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any())).thenAnswer(invocation -> {
+            String lockKey = invocation.<List<String>>getArgument(1).get(0);
+            String token = invocation.getArgument(2);
+            String ttl = invocation.getArgument(3);
+            if (!token.equals(redis.get(lockKey))) {
+                return 0L;
+            }
+            if ("0".equals(ttl)) {
+                redis.remove(lockKey, token);
+            }
+            return 1L;
+        });
+        return stringRedisTemplate;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedissonClient redissonClient() {
+        RedissonClient redissonClient = mock(RedissonClient.class);
+        when(redissonClient.getTopic(anyString(), any(Codec.class))).thenAnswer(invocation -> {
+            String name = invocation.getArgument(0);
+            List<MessageListener<String>> listeners = topics.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>());
+            RTopic topic = mock(RTopic.class);
+            when(topic.addListener(eq(String.class), any(MessageListener.class))).thenAnswer(add -> {
+                listeners.add(add.getArgument(1));
+                return listeners.size();
+            });
+            when(topic.publish(any())).thenAnswer(publish -> {
+                for (MessageListener<String> listener : listeners) {
+                    listener.onMessage(name, publish.getArgument(0));
+                }
+                return (long) listeners.size();
+            });
+            return topic;
+        });
+        return redissonClient;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
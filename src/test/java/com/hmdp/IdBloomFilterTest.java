@@ -0,0 +1,233 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 店铺、笔记id的布隆过滤器：在临时key中分页扫描全表构建，完成后RENAME为正式的过滤器并写入就绪标记，
+ * 构建期间新增的id同时写入临时过滤器；就绪标记丢失时停止使用并重新构建，构建完成之前和访问redis出错时一律放行
+ * redis中的过滤器用不会误判的内存集合代替
+ */
+public class IdBloomFilterTest {
+
+    private static final String SHOP_KEY = RedisConstants.BLOOM_KEY_PREFIX + IdBloomFilter.SHOP;
+
+    private static final String BUILDING_KEY = SHOP_KEY + ":building";
+
+    // 过滤器key -> 写入的id
+    private final Map<String, Set<Long>> filters = new ConcurrentHashMap<>();
+
+    // redis中的字符串
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+
+    // 数据库中的店铺id
+    private final SortedSet<Long> shopIds = new TreeSet<>();
+
+    // 构建锁是否已被其他节点持有
+    private boolean lockedByOtherNode;
+
+    // 扫描每页时执行，模拟扫描期间新增店铺
+    private Runnable onScan = () -> { };
+
+    private RedissonClient redissonClient;
+
+    private IdBloomFilter idBloomFilter;
+
+    @BeforeEach
+    void setUp() {
+        for (long id = 1; id <= 2500; id++) {
+            shopIds.add(id * 2);
+        }
+        redissonClient = redissonClient();
+        idBloomFilter = node();
+    }
+
+    /**
+     * 构建完成之前一律放行；分页扫描全表构建后，不存在的id被拒绝，构建用的临时过滤器不再存在
+     */
+    @Test
+    void TestBuildFromFullScan() {
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 3L));
+
+        idBloomFilter.ensureBuilt();
+
+        assertEquals("1", values.get(SHOP_KEY + ":ready"));
+        assertFalse(filters.containsKey(BUILDING_KEY));
+        assertEquals(2500, filters.get(SHOP_KEY).size());
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 2L));
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 5000L));
+        assertFalse(idBloomFilter.mightContain(IdBloomFilter.SHOP, 3L));
+        // 空表也构建完成
+        assertFalse(idBloomFilter.mightContain(IdBloomFilter.BLOG, 1L));
+    }
+
+    /**
+     * 扫描期间新增的id同时写入临时过滤器，替换后仍然存在；构建完成后新增的id直接写入正式的过滤器
+     */
+    @Test
+    void TestAddDuringBuild() {
+        onScan = () -> idBloomFilter.add(IdBloomFilter.SHOP, 1L);
+        idBloomFilter.ensureBuilt();
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 1L));
+
+        onScan = () -> { };
+        idBloomFilter.add(IdBloomFilter.SHOP, 7L);
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 7L));
+    }
+
+    /**
+     * 就绪标记丢失时停止使用过滤器，重新构建后替换旧的过滤器，已删除的id不再保留
+     */
+    @Test
+    void TestRebuildAfterReadyMarkerLost() {
+        idBloomFilter.ensureBuilt();
+        shopIds.remove(2L);
+        shopIds.add(3L);
+        values.remove(SHOP_KEY + ":ready");
+
+        lockedByOtherNode = true;
+        idBloomFilter.ensureBuilt();
+        // 其他节点正在构建，本节点放行
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 1L));
+
+        lockedByOtherNode = false;
+        idBloomFilter.ensureBuilt();
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 3L));
+        assertFalse(idBloomFilter.mightContain(IdBloomFilter.SHOP, 2L));
+        assertFalse(filters.containsKey(BUILDING_KEY));
+    }
+
+    /**
+     * 其他节点构建完成后，本节点读到就绪标记直接使用，不再扫描全表
+     */
+    @Test
+    void TestReadyMarkerSharedAcrossNodes() {
+        idBloomFilter.ensureBuilt();
+
+        IShopService shopService = mock(IShopService.class);
+        IdBloomFilter other = node();
+        ReflectionTestUtils.setField(other, "shopService", shopService);
+        assertTrue(other.mightContain(IdBloomFilter.SHOP, 3L));
+        other.ensureBuilt();
+
+        assertFalse(other.mightContain(IdBloomFilter.SHOP, 3L));
+        verify(shopService, never()).listObjs(any(Wrapper.class), any(Function.class));
+    }
+
+    /**
+     * 访问redis出错时放行，退化为缓存空值
+     */
+    @Test
+    void TestRedisErrorPassesThrough() {
+        idBloomFilter.ensureBuilt();
+        when(redissonClient.getBloomFilter(SHOP_KEY, LongCodec.INSTANCE)).thenThrow(new IllegalStateException("redis不可用"));
+
+        assertTrue(idBloomFilter.mightContain(IdBloomFilter.SHOP, 3L));
+    }
+
+    private IdBloomFilter node() {
+        IShopService shopService = mock(IShopService.class);
+        when(shopService.listObjs(any(Wrapper.class), any(Function.class))).thenAnswer(invocation -> {
+            onScan.run();
+            return page(invocation.getArgument(0), invocation.getArgument(1));
+        });
+        IBlogService blogService = mock(IBlogService.class);
+        when(blogService.listObjs(any(Wrapper.class), any(Function.class))).thenReturn(Collections.emptyList());
+
+        IdBloomFilter filter = new IdBloomFilter();
+        ReflectionTestUtils.setField(filter, "enabled", true);
+        ReflectionTestUtils.setField(filter, "expectedInsertions", 10000L);
+        ReflectionTestUtils.setField(filter, "falseProbability", 0.01);
+        ReflectionTestUtils.setField(filter, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(filter, "stringRedisTemplate", redisTemplate());
+        ReflectionTestUtils.setField(filter, "shopService", shopService);
+        ReflectionTestUtils.setField(filter, "blogService", blogService);
+        return filter;
+    }
+
+    /**
+     * select id from tb_shop where id > ? order by id limit 1000
+     */
+    private List<Long> page(QueryWrapper<?> wrapper, Function<Object, Long> mapper) {
+        // 生成sql片段时才写入参数
+        wrapper.getSqlSegment();
+        long last = ((Number) wrapper.getParamNameValuePairs().values().iterator().next()).longValue();
+        List<Long> ids = new ArrayList<>();
+        for (Long id : shopIds.tailSet(last + 1)) {
+            if (ids.size() == 1000) {
+                break;
+            }
+            ids.add(mapper.apply(id));
+        }
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> values.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOperations).set(anyString(), anyString());
+        return template;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedissonClient redissonClient() {
+        RedissonClient client = mock(RedissonClient.class);
+        RLock lock = mock(RLock.class);
+        when(lock.tryLock()).thenAnswer(invocation -> !lockedByOtherNode);
+        when(client.getLock(RedisConstants.LOCK_KEY_PREFIX + SHOP_KEY)).thenReturn(lock);
+        when(client.getLock(RedisConstants.LOCK_KEY_PREFIX + RedisConstants.BLOOM_KEY_PREFIX + IdBloomFilter.BLOG)).thenReturn(lock);
+        when(client.getBloomFilter(anyString(), eq(LongCodec.INSTANCE))).thenAnswer(invocation -> {
+            String name = invocation.getArgument(0);
+            RBloomFilter<Long> filter = mock(RBloomFilter.class);
+            when(filter.isExists()).thenAnswer(isExists -> filters.containsKey(name));
+            when(filter.tryInit(anyLong(), anyDouble())).thenAnswer(tryInit -> filters.putIfAbsent(name, ConcurrentHashMap.newKeySet()) == null);
+            when(filter.delete()).thenAnswer(delete -> filters.remove(name) != null);
+            when(filter.contains(anyLong())).thenAnswer(contains -> initialized(name).contains(contains.<Long>getArgument(0)));
+            when(filter.add(anyLong())).thenAnswer(add -> initialized(name).add(add.getArgument(0)));
+            when(filter.add(anyCollection())).thenAnswer(add -> {
+                Collection<Long> ids = add.getArgument(0);
+                initialized(name).addAll(ids);
+                return (long) ids.size();
+            });
+            doAnswer(rename -> filters.put(rename.getArgument(0), filters.remove(name))).when(filter).rename(anyString());
+            return filter;
+        });
+        return client;
+    }
+
+    /**
+     * 未初始化的过滤器与redisson一样抛出异常
+     */
+    private Set<Long> initialized(String name) {
+        Set<Long> ids = filters.get(name);
+        if (ids == null) {
+            throw new IllegalStateException("Bloom filter is not initialized!");
+        }
+        return ids;
+    }
+}
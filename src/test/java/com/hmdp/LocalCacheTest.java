@@ -0,0 +1,159 @@
+package com.hmdp;
+
+import com.hmdp.utils.LocalCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Description: 一级缓存的过期、按访问时间淘汰和按key的版本号
+ */
+public class LocalCacheTest {
+
+    /**
+     * 数据库不存在的值缓存为NULL，过期后不再返回
+     */
+    @Test
+    void TestNullAndExpire() throws InterruptedException {
+        LocalCache cache = new LocalCache(100);
+        cache.put("a", null, 50, cache.version("a"));
+        assertSame(LocalCache.NULL, cache.get("a"));
+        Thread.sleep(80);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.version("a"));
+    }
+
+    /**
+     * 超出maxSize时删除最久未访问的条目，降到maxSize的90%
+     */
+    @Test
+    void TestEvictLeastRecentlyAccessed() throws InterruptedException {
+        LocalCache cache = new LocalCache(10);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, i, 60000, cache.version("k" + i));
+            Thread.sleep(2);
+        }
+        // k0 最后访问，k1、k2 最久未访问
+        assertEquals(0, cache.get("k0"));
+        Thread.sleep(2);
+        cache.put("k10", 10, 60000, cache.version("k10"));
+
+        assertEquals(9, cache.size());
+        assertEquals(0, cache.get("k0"));
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        for (int i = 3; i <= 10; i++) {
+            assertEquals(i, cache.get("k" + i));
+        }
+    }
+
+    /**
+     * 读取二级缓存期间key失效，读到的旧值不能写回
+     */
+    @Test
+    void TestRemoveDiscardsInFlightPut() {
+        LocalCache cache = new LocalCache(100);
+        cache.put("a", "v1", 60000, cache.version("a"));
+
+        long version = cache.version("a");
+        cache.remove("a");
+        cache.put("a", "stale", 60000, version);
+        assertNull(cache.get("a"));
+
+        // 失效之后开始的读取可以写入
+        cache.put("a", "v2", 60000, cache.version("a"));
+        assertEquals("v2", cache.get("a"));
+    }
+
+    /**
+     * 一个key失效不影响其他key正在进行的写入
+     */
+    @Test
+    void TestRemoveIsPerKey() {
+        LocalCache cache = new LocalCache(100);
+        long versionA = cache.version("a");
+        long versionB = cache.version("b");
+        cache.remove("a");
+        cache.put("b", "vb", 60000, versionB);
+        cache.put("a", "va", 60000, versionA);
+        assertEquals("vb", cache.get("b"));
+        assertNull(cache.get("a"));
+    }
+
+    /**
+     * 同一版本号并发写入只有一个线程成功，其他线程不会覆盖
+     */
+    @Test
+    void TestConcurrentPutSameVersion() throws InterruptedException {
+        LocalCache cache = new LocalCache(100);
+        long version = cache.version("a");
+        ExecutorService executorService = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(16);
+        for (int i = 0; i < 16; i++) {
+            int value = i;
+            executorService.submit(() -> {
+                try {
+                    start.await();
+                    cache.put("a", value, 60000, version);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        executorService.shutdown();
+
+        Object winner = cache.get("a");
+        assertNotNull(winner);
+        long winnerVersion = cache.version("a");
+        // 后续用旧版本号写入失败
+        cache.put("a", "late", 60000, version);
+        assertEquals(winner, cache.get("a"));
+        assertEquals(winnerVersion, cache.version("a"));
+    }
+
+    /**
+     * 墓碑按写入时间参与淘汰，比它更久未访问的条目先被淘汰，仍能拦截旧值写回
+     */
+    @Test
+    void TestTombstoneSurvivesEviction() throws InterruptedException {
+        LocalCache cache = new LocalCache(10);
+        for (int i = 0; i < 9; i++) {
+            cache.put("k" + i, i, 60000, cache.version("k" + i));
+            Thread.sleep(1);
+        }
+        long version = cache.version("a");
+        cache.remove("a");
+        Thread.sleep(2);
+        for (int i = 9; i < 14; i++) {
+            cache.put("k" + i, i, 60000, cache.version("k" + i));
+            Thread.sleep(1);
+        }
+        cache.put("a", "stale", 60000, version);
+        assertNull(cache.get("a"));
+        assertTrue(cache.size() <= 10);
+    }
+
+    /**
+     * 大量未缓存的key失效时，墓碑计入maxSize，条目数不会无限增长
+     */
+    @Test
+    void TestTombstonesCountTowardMaxSize() {
+        LocalCache cache = new LocalCache(10);
+        for (int i = 0; i < 1000; i++) {
+            cache.remove("missing" + i);
+        }
+        assertTrue(cache.size() <= 10);
+        cache.put("a", "va", 60000, cache.version("a"));
+        assertEquals("va", cache.get("a"));
+    }
+}
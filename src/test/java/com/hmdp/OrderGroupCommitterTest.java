@@ -0,0 +1,210 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderGroupCommitter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Description: 订单组提交的合并、失败退回按批次提交、等待超时直接写入和提交线程重启
+ */
+public class OrderGroupCommitterTest {
+
+    private static final String COMMITTER_THREAD = "order-group-committer";
+
+    private OrderGroupCommitter committer;
+
+    // 每次写入的订单id和执行写入的线程
+    private final List<List<Long>> writes = new CopyOnWriteArrayList<>();
+
+    private final List<String> writerThreads = new CopyOnWriteArrayList<>();
+
+    private ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+    @BeforeEach
+    void setUp() {
+        committer = new OrderGroupCommitter();
+        ReflectionTestUtils.setField(committer, "maxRows", 500);
+        ReflectionTestUtils.setField(committer, "maxWaitMillis", 50L);
+        ReflectionTestUtils.setField(committer, "timeoutMillis", 5000L);
+        ReflectionTestUtils.setField(committer, "meterRegistry", new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        committer.stop();
+        executorService.shutdownNow();
+    }
+
+    /**
+     * 并发提交的批次合并写入，每个消费者都能在结果中找到自己的订单
+     */
+    @Test
+    void TestGroupConcurrentBatches() throws Exception {
+        committer.start(recording(orders -> ids(orders)));
+        List<Future<Set<Long>>> futures = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < 8; i++) {
+            List<VoucherOrder> batch = batch(i * 10L, 10);
+            futures.add(executorService.submit(() -> {
+                start.await();
+                return committer.commit(batch);
+            }));
+        }
+        start.countDown();
+        for (int i = 0; i < 8; i++) {
+            Set<Long> persisted = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertTrue(persisted.containsAll(ids(batch(i * 10L, 10))));
+        }
+        Set<Long> written = new HashSet<>();
+        int rows = 0;
+        for (List<Long> write : writes) {
+            written.addAll(write);
+            rows += write.size();
+        }
+        assertEquals(80, written.size());
+        assertEquals(80, rows);
+        assertTrue(writes.size() < 8, "并发的批次应合并写入，实际写入次数 " + writes.size());
+        assertTrue(writerThreads.stream().allMatch(COMMITTER_THREAD::equals));
+    }
+
+    /**
+     * 合并提交失败时按批次分别提交，失败的批次不影响其他批次
+     */
+    @Test
+    void TestFallbackToPerBatch() throws Exception {
+        // 包含订单-1的写入失败
+        committer.start(recording(orders -> {
+            if (ids(orders).contains(-1L)) {
+                throw new IllegalStateException("写入失败");
+            }
+            return ids(orders);
+        }));
+        List<VoucherOrder> bad = batch(0L, 5);
+        bad.get(0).setId(-1L);
+        CountDownLatch start = new CountDownLatch(1);
+        Future<Set<Long>> badFuture = executorService.submit(() -> {
+            start.await();
+            return committer.commit(bad);
+        });
+        List<Future<Set<Long>>> goodFutures = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            List<VoucherOrder> good = batch(i * 10L, 5);
+            goodFutures.add(executorService.submit(() -> {
+                start.await();
+                return committer.commit(good);
+            }));
+        }
+        start.countDown();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> badFuture.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        for (int i = 0; i < goodFutures.size(); i++) {
+            assertEquals(ids(batch((i + 1) * 10L, 5)), goodFutures.get(i).get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * 提交线程阻塞时，消费者等待超时后在自己的线程里直接写入，提交线程不再写入已放弃的批次
+     */
+    @Test
+    void TestTimeoutWritesDirectly() throws Exception {
+        ReflectionTestUtils.setField(committer, "timeoutMillis", 200L);
+        CountDownLatch release = new CountDownLatch(1);
+        committer.start(recording(orders -> {
+            if (COMMITTER_THREAD.equals(Thread.currentThread().getName()) && ids(orders).contains(0L)) {
+                await(release);
+            }
+            return ids(orders);
+        }));
+        // 第一批阻塞提交线程
+        Future<Set<Long>> blocked = executorService.submit(() -> committer.commit(batch(0L, 1)));
+        while (!writerThreads.contains(COMMITTER_THREAD)) {
+            Thread.sleep(5);
+        }
+        // 第二批在提交线程阻塞后排队等待，超时后直接写入
+        Set<Long> persisted = committer.commit(batch(100L, 3));
+        assertEquals(ids(batch(100L, 3)), persisted);
+        assertEquals(Thread.currentThread().getName(), writerThreads.get(writerThreads.size() - 1));
+
+        release.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        // 提交线程恢复后，已放弃的批次不会再次写入
+        assertTrue(committer.commit(batch(200L, 1)).contains(200L));
+        long rewritten = writes.stream().filter(write -> write.contains(100L)).count();
+        assertEquals(1, rewritten);
+    }
+
+    /**
+     * 提交线程意外退出后，下一次提交重新启动它
+     */
+    @Test
+    void TestRestartDeadCommitter() throws Exception {
+        ReflectionTestUtils.setField(committer, "timeoutMillis", 200L);
+        AtomicBoolean crashed = new AtomicBoolean();
+        committer.start(recording(orders -> {
+            if (COMMITTER_THREAD.equals(Thread.currentThread().getName()) && crashed.compareAndSet(false, true)) {
+                throw new Error("提交线程退出");
+            }
+            return ids(orders);
+        }));
+        // 提交线程在写入时退出，消费者超时后直接写入
+        assertEquals(ids(batch(0L, 2)), committer.commit(batch(0L, 2)));
+        Thread committerThread = (Thread) ReflectionTestUtils.getField(committer, "committer");
+        committerThread.join(1000);
+        assertFalse(committerThread.isAlive());
+
+        // 下一次提交由重新启动的提交线程写入
+        writerThreads.clear();
+        assertEquals(ids(batch(10L, 2)), committer.commit(batch(10L, 2)));
+        assertEquals(Collections.singletonList(COMMITTER_THREAD), writerThreads);
+        assertNotSame(committerThread, ReflectionTestUtils.getField(committer, "committer"));
+    }
+
+    private Function<List<VoucherOrder>, Set<Long>> recording(Function<List<VoucherOrder>, Set<Long>> writer) {
+        return orders -> {
+            writerThreads.add(Thread.currentThread().getName());
+            Set<Long> persisted = writer.apply(orders);
+            writes.add(new ArrayList<>(ids(orders)));
+            return persisted;
+        };
+    }
+
+    private static List<VoucherOrder> batch(long firstId, int size) {
+        List<VoucherOrder> orders = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            VoucherOrder order = new VoucherOrder();
+            order.setId(firstId + i);
+            order.setUserId(firstId + i);
+            order.setVoucherId(1L);
+            orders.add(order);
+        }
+        return orders;
+    }
+
+    private static Set<Long> ids(List<VoucherOrder> orders) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (VoucherOrder order : orders) {
+            ids.add(order.getId());
+        }
+        return ids;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
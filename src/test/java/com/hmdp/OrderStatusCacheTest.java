@@ -0,0 +1,208 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillPushHub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisHashCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 订单状态按分片存放在一个hash中，key都通过KEYS传入脚本：
+ * 一批订单按分片各执行一次脚本，已过期清理的订单状态不会被重新写入，过期的订单状态定时清理
+ * redis用内存中的实现代替，order_status.lua按lua的语义模拟
+ */
+public class OrderStatusCacheTest {
+
+    // 分片订单状态hash key -> {orderId -> "state,userId"}
+    private final Map<String, Map<String, String>> hashes = new ConcurrentHashMap<>();
+
+    // 分片过期时间key -> {orderId -> 过期时间}
+    private final Map<String, Map<String, Double>> expires = new ConcurrentHashMap<>();
+
+    // 每次执行脚本传入的KEYS
+    private final List<List<String>> scriptKeys = new ArrayList<>();
+
+    private SeckillKeys seckillKeys;
+
+    private OrderStatusCache orderStatusCache;
+
+    @BeforeEach
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = redisTemplate();
+        seckillKeys = new SeckillKeys();
+        ReflectionTestUtils.setField(seckillKeys, "partitions", 8);
+        ReflectionTestUtils.setField(seckillKeys, "stringRedisTemplate", stringRedisTemplate);
+
+        orderStatusCache = new OrderStatusCache();
+        ReflectionTestUtils.setField(orderStatusCache, "ttlMinutes", 60L);
+        ReflectionTestUtils.setField(orderStatusCache, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(orderStatusCache, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(orderStatusCache, "seckillPushHub", mock(SeckillPushHub.class));
+    }
+
+    /**
+     * 只更新仍存在的订单状态，保留userId；已过期清理的订单不会留下没有userId的状态
+     */
+    @Test
+    void TestUpdateOnlyExistingOrders() {
+        pending(1L, 0, 10L, 7L);
+        orderStatusCache.update(Arrays.asList(order(10L, 7L, 1L, 0), order(11L, 8L, 1L, 0)), OrderStatusCache.CREATED);
+
+        Map<String, String> statuses = hashes.get(seckillKeys.statusKey(1L, 0));
+        assertEquals("CREATED,7", statuses.get("10"));
+        assertFalse(statuses.containsKey("11"));
+        assertFalse(expires.get(seckillKeys.statusExpireKey(1L, 0)).containsKey("11"));
+
+        Map<Object, Object> status = orderStatusCache.get(1L, 10L);
+        assertEquals(OrderStatusCache.CREATED, status.get("state"));
+        assertEquals("7", status.get("userId"));
+        assertTrue(orderStatusCache.get(1L, 11L).isEmpty());
+    }
+
+    /**
+     * 不同分片的订单各执行一次脚本，每次脚本的KEYS都在同一个分片
+     */
+    @Test
+    void TestUpdateOneScriptPerPartition() {
+        pending(1L, 0, 10L, 7L);
+        pending(2L, 0, 20L, 8L);
+        pending(1L, 1, 30L, 9L);
+        orderStatusCache.update(Arrays.asList(order(10L, 7L, 1L, 0), order(20L, 8L, 2L, 0), order(30L, 9L, 1L, 1)),
+                OrderStatusCache.FAILED);
+
+        // 优惠券1的桶1与优惠券2的桶0在同一个分片
+        assertEquals(2, scriptKeys.size());
+        for (List<String> keys : scriptKeys) {
+            assertEquals(tag(keys.get(0)), tag(keys.get(1)));
+        }
+        assertEquals("FAILED,8", hashes.get(seckillKeys.statusKey(2L, 0)).get("20"));
+        assertEquals("FAILED,9", hashes.get(seckillKeys.statusKey(1L, 1)).get("30"));
+    }
+
+    /**
+     * 分桶的优惠券查询所有桶所在的分片
+     */
+    @Test
+    void TestGetSearchesAllBuckets() {
+        seckillKeys.setBuckets(3L, 3);
+        pending(3L, 2, 40L, 7L);
+        assertEquals(OrderStatusCache.PENDING, orderStatusCache.get(3L, 40L).get("state"));
+    }
+
+    /**
+     * 过期的订单状态被清理，未过期的保留
+     */
+    @Test
+    void TestExpire() {
+        pending(1L, 0, 10L, 7L);
+        pending(1L, 0, 11L, 8L);
+        expires.get(seckillKeys.statusExpireKey(1L, 0)).put("10", (double) System.currentTimeMillis() - 1);
+
+        orderStatusCache.expire();
+
+        assertTrue(orderStatusCache.get(1L, 10L).isEmpty());
+        assertEquals(OrderStatusCache.PENDING, orderStatusCache.get(1L, 11L).get("state"));
+        assertEquals(Collections.singleton("11"), expires.get(seckillKeys.statusExpireKey(1L, 0)).keySet());
+    }
+
+    /**
+     * 秒杀脚本写入的PENDING状态
+     */
+    private void pending(Long voucherId, int bucket, Long orderId, Long userId) {
+        hashes.computeIfAbsent(seckillKeys.statusKey(voucherId, bucket), k -> new ConcurrentHashMap<>())
+                .put(orderId.toString(), OrderStatusCache.PENDING + "," + userId);
+        expires.computeIfAbsent(seckillKeys.statusExpireKey(voucherId, bucket), k -> new ConcurrentHashMap<>())
+                .put(orderId.toString(), (double) orderStatusCache.expireAt());
+    }
+
+    private static VoucherOrder order(Long id, Long userId, Long voucherId, int bucket) {
+        return new VoucherOrder().setId(id).setUserId(userId).setVoucherId(voucherId).setBucket(bucket);
+    }
+
+    private static String tag(String key) {
+        return key.substring(key.indexOf('{'), key.indexOf('}') + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        Map<String, String> values = new ConcurrentHashMap<>();
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> values.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOperations).set(anyString(), anyString());
+
+        // 管道中的HGET，按StringRedisTemplate的序列化返回字符串
+        when(template.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            List<Object> results = new ArrayList<>();
+            RedisConnection connection = mock(RedisConnection.class);
+            RedisHashCommands hashCommands = mock(RedisHashCommands.class);
+            when(connection.hashCommands()).thenReturn(hashCommands);
+            when(hashCommands.hGet(any(byte[].class), any(byte[].class))).thenAnswer(hGet -> {
+                String key = new String(hGet.<byte[]>getArgument(0), StandardCharsets.UTF_8);
+                String field = new String(hGet.<byte[]>getArgument(1), StandardCharsets.UTF_8);
+                results.add(hashes.getOrDefault(key, Collections.emptyMap()).get(field));
+                return null;
+            });
+            invocation.<RedisCallback<Object>>getArgument(0).doInRedis(connection);
+            return results;
+        });
+
+        when(template.execute(any(RedisScript.class), anyList(), any())).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            Object[] args = Arrays.copyOfRange(invocation.getArguments(), 2, invocation.getArguments().length);
+            scriptKeys.add(keys);
+            return statusScript(keys, args);
+        });
+        return template;
+    }
+
+    /**
+     * order_status.lua
+     */
+    private Long statusScript(List<String> keys, Object[] args) {
+        Map<String, String> statuses = hashes.computeIfAbsent(keys.get(0), k -> new ConcurrentHashMap<>());
+        Map<String, Double> expireAt = expires.computeIfAbsent(keys.get(1), k -> new ConcurrentHashMap<>());
+        if ("update".equals(args[0])) {
+            long count = 0;
+            for (int i = 3; i < args.length; i++) {
+                String orderId = (String) args[i];
+                String value = statuses.get(orderId);
+                if (value != null) {
+                    statuses.put(orderId, args[1] + value.substring(value.indexOf(',')));
+                    expireAt.put(orderId, Double.valueOf((String) args[2]));
+                    count++;
+                }
+            }
+            return count;
+        }
+        double now = Double.parseDouble((String) args[1]);
+        int limit = Integer.parseInt((String) args[2]);
+        long count = 0;
+        for (Map.Entry<String, Double> entry : new ArrayList<>(expireAt.entrySet())) {
+            if (entry.getValue() <= now && count < limit) {
+                statuses.remove(entry.getKey());
+                expireAt.remove(entry.getKey());
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,221 @@
+package com.hmdp;
+
+import com.hmdp.utils.OrderStreamMonitor;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.XTrimArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 订单stream监控：统计每个分片的未确认数、lag和长度并导出为指标，
+ * 按最早的未确认消息和最后投递的消息中较早的一个 XTRIM MINID ~ 裁剪，配置max-len时再按长度裁剪；
+ * 所有分片lag之和超过max-lag时按比例降低下单速度
+ * redis用内存中的实现代替
+ */
+public class OrderStreamMonitorTest {
+
+    private static final int PARTITIONS = 2;
+
+    // stream key -> 消费者组信息（XINFO GROUPS）
+    private final Map<String, List<Object>> groups = new ConcurrentHashMap<>();
+
+    // stream key -> 最早的未确认消息id
+    private final Map<String, String> minPending = new ConcurrentHashMap<>();
+
+    // stream key -> 最后投递的消息之后的消息数（redis 7 之前没有lag字段时扫描）
+    private final Map<String, Integer> undelivered = new ConcurrentHashMap<>();
+
+    // stream key -> 执行的XTRIM
+    private final Map<String, List<XTrimArgs>> trims = new ConcurrentHashMap<>();
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private OrderStreamMonitor monitor;
+
+    @BeforeEach
+    void setUp() {
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.partitions()).thenReturn(PARTITIONS);
+        when(seckillKeys.streamKey(anyInt())).thenAnswer(invocation -> streamKey(invocation.getArgument(0)));
+        meterRegistry = new SimpleMeterRegistry();
+
+        monitor = new OrderStreamMonitor();
+        ReflectionTestUtils.setField(monitor, "maxLen", 0L);
+        ReflectionTestUtils.setField(monitor, "maxLag", 100L);
+        ReflectionTestUtils.setField(monitor, "stringRedisTemplate", redisTemplate());
+        ReflectionTestUtils.setField(monitor, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(monitor, "meterRegistry", meterRegistry);
+    }
+
+    /**
+     * 导出未确认数和lag；按最早的未确认消息裁剪，不裁掉未确认的消息
+     */
+    @Test
+    void TestStatsAndTrimByAckProgress() {
+        group(0, 3, "10-0", 7L);
+        minPending.put(streamKey(0), "5-0");
+        group(1, 0, "8-0", 0L);
+
+        monitor.refresh();
+
+        assertEquals(3.0, gauge("seckill.stream.pending", 0));
+        assertEquals(7.0, gauge("seckill.stream.lag", 0));
+        assertEquals("5-0", minId(trims.get(streamKey(0)).get(0)));
+        // 没有未确认的消息时按最后投递的消息裁剪
+        assertEquals("8-0", minId(trims.get(streamKey(1)).get(0)));
+        assertEquals(1.0, monitor.intakeRatio());
+    }
+
+    /**
+     * 最后投递的消息早于最早的未确认消息时按最后投递的消息裁剪；还没有投递过消息的stream不裁剪
+     */
+    @Test
+    void TestTrimNeverPassesLastDelivered() {
+        group(0, 1, "4-0", 0L);
+        minPending.put(streamKey(0), "4-1");
+        group(1, 0, "0-0", 5L);
+
+        monitor.refresh();
+
+        assertEquals("4-0", minId(trims.get(streamKey(0)).get(0)));
+        assertFalse(trims.containsKey(streamKey(1)));
+    }
+
+    /**
+     * redis 7 之前XINFO GROUPS没有lag字段，扫描最后投递的消息之后的消息数
+     */
+    @Test
+    void TestLagScannedWithoutLagField() {
+        group(0, 0, "10-0", null);
+        undelivered.put(streamKey(0), 12);
+
+        monitor.refresh();
+
+        assertEquals(12.0, gauge("seckill.stream.lag", 0));
+    }
+
+    /**
+     * 所有分片lag之和超过max-lag时按比例降低下单速度，最低为0.1；lag回落后恢复
+     */
+    @Test
+    void TestIntakeRatioFollowsTotalLag() {
+        group(0, 0, "10-0", 150L);
+        group(1, 0, "10-0", 50L);
+        monitor.refresh();
+        assertEquals(0.5, monitor.intakeRatio(), 1e-9);
+
+        group(0, 0, "10-0", 5000L);
+        monitor.refresh();
+        assertEquals(0.1, monitor.intakeRatio(), 1e-9);
+
+        group(0, 0, "10-0", 10L);
+        monitor.refresh();
+        assertEquals(1.0, monitor.intakeRatio());
+
+        // max-lag为0时不限制
+        ReflectionTestUtils.setField(monitor, "maxLag", 0L);
+        group(0, 0, "10-0", 5000L);
+        monitor.refresh();
+        assertEquals(1.0, monitor.intakeRatio());
+    }
+
+    /**
+     * 配置max-len时在按进度裁剪之后再按长度裁剪
+     */
+    @Test
+    void TestMaxLenTrim() {
+        ReflectionTestUtils.setField(monitor, "maxLen", 1000L);
+        group(0, 0, "10-0", 0L);
+
+        monitor.refresh();
+
+        List<XTrimArgs> args = trims.get(streamKey(0));
+        assertEquals(2, args.size());
+        assertEquals(1000L, ReflectionTestUtils.getField(args.get(1), "maxlen"));
+        assertTrue((Boolean) ReflectionTestUtils.getField(args.get(1), "approximateTrimming"));
+    }
+
+    private void group(int partition, long pending, String lastDeliveredId, Long lag) {
+        List<Object> raw = new ArrayList<>(Arrays.asList("name", RedisConstants.STREAM_ORDERS_GROUP, "consumers", 1L,
+                "pending", pending, "last-delivered-id", lastDeliveredId));
+        if (lag != null) {
+            raw.add("lag");
+            raw.add(lag);
+        }
+        groups.put(streamKey(partition), raw);
+    }
+
+    private double gauge(String name, int partition) {
+        return meterRegistry.get(name).tag("stream", streamKey(partition)).gauge().value();
+    }
+
+    private static String minId(XTrimArgs args) {
+        return (String) ReflectionTestUtils.getField(args, "minId");
+    }
+
+    private static String streamKey(int partition) {
+        return "stream.orders:{" + partition + "}";
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+        when(template.opsForStream()).thenReturn(streamOperations);
+        when(streamOperations.groups(anyString())).thenAnswer(invocation -> {
+            List<Object> raw = groups.get(invocation.<String>getArgument(0));
+            return StreamInfo.XInfoGroups.fromList(raw == null ? Collections.emptyList() : Collections.singletonList(raw));
+        });
+        when(streamOperations.pending(anyString(), eq(RedisConstants.STREAM_ORDERS_GROUP))).thenAnswer(invocation -> {
+            String min = minPending.get(invocation.<String>getArgument(0));
+            return new PendingMessagesSummary(RedisConstants.STREAM_ORDERS_GROUP, min == null ? 0 : 1,
+                    min == null ? Range.unbounded() : Range.closed(min, min), Collections.emptyMap());
+        });
+        when(streamOperations.range(anyString(), any(Range.class), any(Limit.class))).thenAnswer(invocation -> {
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+            for (int i = 0; i < undelivered.getOrDefault(invocation.<String>getArgument(0), 0); i++) {
+                records.add(mock(MapRecord.class));
+            }
+            return records;
+        });
+        when(streamOperations.size(anyString())).thenReturn(0L);
+
+        // XTRIM 使用lettuce原生命令
+        when(template.execute(any(RedisCallback.class))).thenAnswer(invocation -> {
+            RedisConnection connection = mock(RedisConnection.class);
+            RedisClusterAsyncCommands<byte[], byte[]> commands = mock(RedisClusterAsyncCommands.class);
+            when(connection.getNativeConnection()).thenReturn(commands);
+            when(commands.xtrim(any(byte[].class), any(XTrimArgs.class))).thenAnswer(xtrim -> {
+                String streamKey = new String(xtrim.<byte[]>getArgument(0), StandardCharsets.UTF_8);
+                trims.computeIfAbsent(streamKey, k -> new ArrayList<>()).add(xtrim.getArgument(1));
+                RedisFuture<Long> future = mock(RedisFuture.class);
+                when(future.get()).thenReturn(0L);
+                return future;
+            });
+            return invocation.<RedisCallback<Object>>getArgument(0).doInRedis(connection);
+        });
+        return template;
+    }
+}
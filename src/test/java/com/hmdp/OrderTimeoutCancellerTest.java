@@ -0,0 +1,189 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 未支付订单超时取消：到期未支付的订单取消并归还库存，已支付的移出超时队列，
+ * 未落库但仍在队列（未确认或死信）的订单延后重试，超过宽限期且不在队列中的视为丢失并归还库存，只扫描本节点负责的分片
+ * redis的超时队列和取消脚本用内存中的实现代替
+ */
+public class OrderTimeoutCancellerTest {
+
+    private static final Long VOUCHER_ID = 1001L;
+
+    private static final int PARTITION = 1;
+
+    // 超时队列 member -> score
+    private final Map<String, Double> timeouts = new ConcurrentHashMap<>();
+
+    // 执行取消脚本的订单id
+    private final List<String> cancelled = new ArrayList<>();
+
+    private IVoucherOrderService voucherOrderService;
+
+    private SoldOutRegistry soldOutRegistry;
+
+    private OrderQueue orderQueue;
+
+    private OrderTimeoutCanceller canceller;
+
+    @BeforeEach
+    void setUp() {
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.partitions()).thenReturn(4);
+        when(seckillKeys.timeoutKey(anyInt())).thenAnswer(invocation -> "seckill:timeout:{" + invocation.getArgument(0) + "}");
+        when(seckillKeys.bucketsOf(VOUCHER_ID)).thenReturn(1);
+        voucherOrderService = mock(IVoucherOrderService.class);
+        soldOutRegistry = mock(SoldOutRegistry.class);
+        orderQueue = mock(OrderQueue.class);
+        when(orderQueue.ownsPartition(anyInt())).thenAnswer(invocation -> invocation.<Integer>getArgument(0) == PARTITION);
+
+        canceller = new OrderTimeoutCanceller();
+        ReflectionTestUtils.setField(canceller, "payTimeoutMinutes", 15L);
+        ReflectionTestUtils.setField(canceller, "batchSize", 100);
+        ReflectionTestUtils.setField(canceller, "stringRedisTemplate", redisTemplate());
+        ReflectionTestUtils.setField(canceller, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(canceller, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(canceller, "seckillBuyers", mock(SeckillBuyers.class));
+        ReflectionTestUtils.setField(canceller, "seckillPushHub", mock(SeckillPushHub.class));
+        ReflectionTestUtils.setField(canceller, "orderQueue", orderQueue);
+        ReflectionTestUtils.setField(canceller, "voucherOrderService", voucherOrderService);
+    }
+
+    /**
+     * 到期未支付的订单在数据库中取消后，归还redis库存并解除售罄标记
+     */
+    @Test
+    void TestCancelExpiredUnpaid() {
+        String member = member(10L, System.currentTimeMillis() - 1000);
+        timeouts.put(member, 0.0);
+        when(voucherOrderService.cancelUnpaidOrder(10L, VOUCHER_ID)).thenReturn(true);
+
+        canceller.cancelExpired();
+
+        assertEquals(Collections.singletonList("10"), cancelled);
+        assertTrue(timeouts.isEmpty());
+        verify(soldOutRegistry).reset(VOUCHER_ID);
+    }
+
+    /**
+     * 已支付的订单移出超时队列，不归还库存
+     */
+    @Test
+    void TestPaidOrderRemoved() {
+        timeouts.put(member(11L, System.currentTimeMillis() - 1000), 0.0);
+        when(voucherOrderService.getById(11L)).thenReturn(new VoucherOrder().setId(11L).setStatus(2));
+
+        canceller.cancelExpired();
+
+        assertTrue(cancelled.isEmpty());
+        assertTrue(timeouts.isEmpty());
+        verify(soldOutRegistry, never()).reset(anyLong());
+    }
+
+    /**
+     * 超过宽限期仍未落库、但消息仍在队列或死信中的订单延后重试，不归还库存
+     */
+    @Test
+    void TestQueuedOrderRetried() {
+        long deadline = System.currentTimeMillis() - 7200000L;
+        String member = member(12L, deadline);
+        timeouts.put(member, 0.0);
+        when(orderQueue.isQueued(any(VoucherOrder.class), anyLong())).thenReturn(true);
+
+        long now = System.currentTimeMillis();
+        canceller.cancelExpired();
+
+        assertTrue(cancelled.isEmpty());
+        assertTrue(timeouts.get(member) > now);
+        // 按截止时间减去支付超时时间还原下单时间
+        verify(orderQueue).isQueued(argThat(order -> order.getId() == 12L && order.getBucket() == 0), eq(deadline - 900000L));
+    }
+
+    /**
+     * 超过宽限期仍未落库且不在队列中的订单视为丢失，归还库存；宽限期内的只延后重试
+     */
+    @Test
+    void TestLostOrderRestocked() {
+        String lost = member(13L, System.currentTimeMillis() - 7200000L);
+        String recent = member(14L, System.currentTimeMillis() - 1000);
+        timeouts.put(lost, 0.0);
+        timeouts.put(recent, 0.0);
+
+        canceller.cancelExpired();
+
+        assertEquals(Collections.singletonList("13"), cancelled);
+        assertEquals(Collections.singleton(recent), timeouts.keySet());
+        verify(orderQueue, times(1)).isQueued(any(VoucherOrder.class), anyLong());
+    }
+
+    /**
+     * 只扫描本节点负责消费的分片
+     */
+    @Test
+    void TestOnlyOwnedPartitions() {
+        timeouts.put(member(15L, System.currentTimeMillis() - 1000), 0.0);
+        when(voucherOrderService.cancelUnpaidOrder(anyLong(), anyLong())).thenReturn(true);
+        when(orderQueue.ownsPartition(anyInt())).thenReturn(false);
+
+        canceller.cancelExpired();
+
+        assertTrue(cancelled.isEmpty());
+        verify(voucherOrderService, never()).cancelUnpaidOrder(anyLong(), anyLong());
+    }
+
+    /**
+     * orderId:voucherId:userId:bucket:deadline
+     */
+    private static String member(Long orderId, long deadline) {
+        return orderId + ":" + VOUCHER_ID + ":7:0:" + deadline;
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+        when(template.opsForZSet()).thenReturn(zSetOperations);
+        String timeoutKey = "seckill:timeout:{" + PARTITION + "}";
+        when(zSetOperations.rangeByScore(eq(timeoutKey), anyDouble(), anyDouble(), anyLong(), anyLong())).thenAnswer(invocation -> {
+            double max = invocation.getArgument(2);
+            Set<String> expired = new TreeSet<>();
+            timeouts.forEach((member, score) -> {
+                if (score <= max) {
+                    expired.add(member);
+                }
+            });
+            return expired;
+        });
+        when(zSetOperations.add(eq(timeoutKey), anyString(), anyDouble()))
+                .thenAnswer(invocation -> timeouts.put(invocation.getArgument(1), invocation.getArgument(2)) == null);
+        when(zSetOperations.remove(eq(timeoutKey), any()))
+                .thenAnswer(invocation -> timeouts.remove(invocation.<String>getArgument(1)) == null ? 0L : 1L);
+
+        // seckill_cancel.lua：从超时队列移除成功才归还
+        when(template.execute(any(RedisScript.class), anyList(), any())).thenAnswer(invocation -> {
+            String member = invocation.getArgument(3);
+            if (timeouts.remove(member) == null) {
+                return 0L;
+            }
+            cancelled.add(invocation.getArgument(5));
+            return 1L;
+        });
+        return template;
+    }
+}
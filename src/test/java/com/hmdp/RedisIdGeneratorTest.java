@@ -0,0 +1,153 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 号段模式的全局id：并发分配不重复、按消耗速度调整步长、与秒杀脚本的id来源位互不重叠
+ */
+public class RedisIdGeneratorTest {
+
+    private RedisIdGenerator idGenerator;
+
+    // key -> redis中的序列号
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    // 每次INCRBY的步长
+    private final List<Long> steps = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.increment(anyString(), anyLong())).thenAnswer(invocation -> {
+            long step = invocation.getArgument(1);
+            steps.add(step);
+            return counter(invocation.getArgument(0)).addAndGet(step);
+        });
+        when(valueOperations.increment(anyString())).thenAnswer(invocation -> counter(invocation.getArgument(0)).incrementAndGet());
+
+        idGenerator = new RedisIdGenerator();
+        ReflectionTestUtils.setField(idGenerator, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(idGenerator, "segmentEnabled", true);
+        ReflectionTestUtils.setField(idGenerator, "minStep", 100L);
+        ReflectionTestUtils.setField(idGenerator, "maxStep", 10000L);
+    }
+
+    /**
+     * 多线程并发从号段分配id，不重复，且每个序列号都来自redis预留的号段
+     */
+    @Test
+    void TestConcurrentSegmentIdsUnique() throws InterruptedException {
+        int threads = 16;
+        int perThread = 5000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            executorService.submit(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < perThread; j++) {
+                        ids.add(idGenerator.nextId("order"));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executorService.shutdown();
+
+        assertEquals(threads * perThread, ids.size());
+        long reserved = steps.stream().mapToLong(Long::longValue).sum();
+        for (long id : ids) {
+            long serialNum = id & 0xFFFFFFFFL;
+            assertTrue(serialNum >= 1 && serialNum <= reserved);
+        }
+        // 按号段访问redis，而不是每个id一次
+        assertTrue(steps.size() < threads * perThread / 100);
+    }
+
+    /**
+     * 号段很快用完时步长加倍，不超过maxStep
+     */
+    @Test
+    void TestStepGrowsUnderLoad() throws InterruptedException {
+        for (int i = 0; i < 100000; i++) {
+            idGenerator.nextId("order");
+        }
+        // 等待最后一次预取完成
+        Thread.sleep(100);
+        assertEquals(100L, steps.get(0));
+        assertTrue(steps.stream().allMatch(step -> step <= 10000L));
+        assertTrue(steps.contains(10000L), "持续高速分配时步长应增长到maxStep " + steps);
+        // 10万个id只需要少量号段
+        assertTrue(steps.size() < 100, steps.toString());
+    }
+
+    /**
+     * 不同业务使用各自的序列号
+     */
+    @Test
+    void TestKeyPrefixesIndependent() {
+        long order = idGenerator.nextId("order");
+        long shop = idGenerator.nextId("shop");
+        assertEquals(1, order & 0xFFFFFFFFL);
+        assertEquals(1, shop & 0xFFFFFFFFL);
+        assertEquals(2, counters.size());
+    }
+
+    /**
+     * 关闭号段模式时每个id自增一次
+     */
+    @Test
+    void TestIncrementWithoutSegment() {
+        ReflectionTestUtils.setField(idGenerator, "segmentEnabled", false);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, idGenerator.nextId("order") & 0xFFFFFFFFL);
+        }
+        assertTrue(steps.isEmpty());
+    }
+
+    /**
+     * 本类分配的序列号不使用最高位，秒杀脚本的id置位最高位，两者不会重复
+     */
+    @Test
+    void TestScriptSourceBitSeparated() {
+        long scriptBit = 1L << 31;
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, idGenerator.nextId("order") & scriptBit);
+        }
+        Instant now = Instant.now();
+        long timestampPart = idGenerator.timestampPart(now);
+        assertEquals(scriptBit, timestampPart & 0xFFFFFFFFL);
+        assertEquals(now.getEpochSecond() - 1640995200L, timestampPart >>> 32);
+    }
+
+    private AtomicLong counter(String key) {
+        return counters.computeIfAbsent(key, k -> new AtomicLong());
+    }
+}
@@ -0,0 +1,548 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisStreamOrderQueue;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillNodes;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.models.stream.ClaimedMessages;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 订单stream按分区分配给各节点的消费者：每个分区同时只有一个消费者读取，
+ * 每条XREADGROUP只读取一个分区，分区按在线消费者数均分，节点加入和退出后重新均分，订单处理完整批ACK，
+ * ACK后从分片的未确认订单hash中删除，判断订单是否仍在队列只查询该hash；
+ * 恢复线程用XAUTOCLAIM分页转移pending-list中的消息逐条重试，超过最大投递次数的转入死信
+ * redis、分区锁用内存中的实现代替，多个RedisStreamOrderQueue共享同一份数据，模拟多个节点
+ */
+public class RedisStreamOrderQueueTest {
+
+    private static final int PARTITIONS = 8;
+
+    // stream.orders:{p} -> 未读取的消息
+    private final Map<String, Queue<MapRecord<String, Object, Object>>> streams = new ConcurrentHashMap<>();
+
+    // 在线消费者心跳 stream.orders:consumers
+    private final Map<String, Double> consumers = new ConcurrentHashMap<>();
+
+    // 分区锁 -> 持有的线程
+    private final Map<String, Thread> locks = new ConcurrentHashMap<>();
+
+    private final Set<String> acknowledged = ConcurrentHashMap.newKeySet();
+
+    // stream.orders:{p} -> pending-list中的消息 订单id -> 投递次数
+    private final Map<String, SortedMap<Long, Long>> pendingList = new ConcurrentHashMap<>();
+
+    // 死信stream中的消息
+    private final List<Map<Object, Object>> deadLetters = new ArrayList<>();
+
+    // 恢复线程重试时处理失败的订单
+    private final Set<Long> failing = ConcurrentHashMap.newKeySet();
+
+    // seckill:queued:{p} -> 已写入stream、尚未确认的订单id
+    private final Map<String, Map<String, String>> queued = new ConcurrentHashMap<>();
+
+    // 读取了未持有锁的分区的次数
+    private final AtomicInteger violations = new AtomicInteger();
+
+    // 一条XREADGROUP读取多个分区stream的次数，集群中会返回CROSSSLOT
+    private final AtomicInteger crossSlotReads = new AtomicInteger();
+
+    private final Set<Long> handled = ConcurrentHashMap.newKeySet();
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private RedissonClient redissonClient;
+
+    private final List<RedisStreamOrderQueue> started = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < PARTITIONS; i++) {
+            streams.put(streamKey(i), new ConcurrentLinkedQueue<>());
+        }
+        stringRedisTemplate = redisTemplate();
+        redissonClient = redissonClient();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (RedisStreamOrderQueue queue : started) {
+            queue.stop();
+        }
+    }
+
+    /**
+     * 一个节点时两个消费者各负责一半分区；第二个节点加入后四个消费者各负责两个分区；
+     * 第二个节点退出后第一个节点接管全部分区；每个分区始终只有持有分区锁的消费者读取
+     */
+    @Test
+    void TestPartitionsRebalancedAcrossNodes() throws InterruptedException {
+        RedisStreamOrderQueue nodeA = node("node-a");
+        assertTrue(waitUntil(() -> balanced(nodeA), 30000), "单节点未均分分区 " + partitionsOf(nodeA));
+
+        RedisStreamOrderQueue nodeB = node("node-b");
+        assertTrue(waitUntil(() -> balanced(nodeA, nodeB), 30000),
+                "两个节点未均分分区 " + partitionsOf(nodeA) + " " + partitionsOf(nodeB));
+        for (int i = 0; i < PARTITIONS; i++) {
+            assertTrue(nodeA.ownsPartition(i) ^ nodeB.ownsPartition(i), "分区" + i + "应只属于一个节点");
+        }
+
+        nodeB.stop();
+        started.remove(nodeB);
+        assertTrue(consumers.keySet().stream().noneMatch(name -> name.startsWith("node-b")));
+        assertTrue(waitUntil(() -> balanced(nodeA), 30000), "节点退出后未接管分区 " + partitionsOf(nodeA));
+        assertEquals(0, violations.get());
+        assertEquals(0, crossSlotReads.get());
+    }
+
+    /**
+     * 所有分区的订单都被处理并ACK，每个订单只处理一次
+     */
+    @Test
+    void TestOrdersHandledAndAcknowledged() throws InterruptedException {
+        RedisStreamOrderQueue nodeA = node("node-a");
+        RedisStreamOrderQueue nodeB = node("node-b");
+        for (long id = 1; id <= 200; id++) {
+            enqueue(id);
+        }
+        assertTrue(waitUntil(() -> acknowledged.size() == 200, 30000), "已确认 " + acknowledged.size() + " 已处理 " + handled.size());
+        assertEquals(200, handled.size());
+        // ACK后不再视为在队列中
+        assertTrue(waitUntil(() -> queued.values().stream().allMatch(Map::isEmpty), 5000));
+        assertFalse(isQueued(nodeB, 200L));
+        assertEquals(0, violations.get());
+        assertEquals(0, crossSlotReads.get());
+    }
+
+    /**
+     * 一个消费者持有全部分区时，逐个分区读取，每条XREADGROUP只包含一个stream，所有分区的订单都被处理
+     */
+    @Test
+    void TestOneReadPerPartition() throws InterruptedException {
+        RedisStreamOrderQueue nodeA = node("node-a", 1);
+        assertTrue(waitUntil(() -> partitionsOf(nodeA).getOrDefault("node-a-0", Collections.emptySet()).size() == PARTITIONS, 30000),
+                "消费者未持有全部分区 " + partitionsOf(nodeA));
+        for (long id = 1; id <= 80; id++) {
+            enqueue(id);
+        }
+        assertTrue(waitUntil(() -> acknowledged.size() == 80, 30000), "已确认 " + acknowledged.size());
+        assertEquals(80, handled.size());
+        for (int i = 0; i < PARTITIONS; i++) {
+            String prefix = streamKey(i) + "/";
+            assertEquals(10, acknowledged.stream().filter(ack -> ack.startsWith(prefix)).count(), "分区" + i);
+        }
+        assertEquals(0, crossSlotReads.get());
+        assertEquals(0, violations.get());
+    }
+
+    /**
+     * 判断订单是否仍在队列只查询分片的未确认订单hash：在stream中或已转入死信时为true
+     */
+    @Test
+    void TestIsQueuedByHashLookup() {
+        RedisStreamOrderQueue queue = new RedisStreamOrderQueue();
+        ReflectionTestUtils.setField(queue, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(queue, "seckillKeys", seckillKeys());
+        assertFalse(isQueued(queue, 9L));
+
+        queued.computeIfAbsent(queuedKey(1), k -> new ConcurrentHashMap<>()).put("9", "Q");
+        assertTrue(isQueued(queue, 9L));
+        queued.get(queuedKey(1)).put("9", "D");
+        assertTrue(isQueued(queue, 9L));
+        // 其他分片的同名订单不受影响
+        assertFalse(queue.isQueued(new VoucherOrder().setId(9L).setVoucherId(2L).setBucket(0), 0L));
+
+        queued.get(queuedKey(1)).remove("9");
+        assertFalse(isQueued(queue, 9L));
+        verify(stringRedisTemplate, never()).opsForStream();
+    }
+
+    /**
+     * 恢复线程按XAUTOCLAIM返回的游标分页转移pending-list中的消息，逐条处理后ACK并从未确认订单hash中删除
+     */
+    @Test
+    void TestRecoveryRetriesPendingOrders() throws Exception {
+        RedisStreamOrderQueue queue = recoveryNode();
+        for (long id = 8; id <= 48; id += 8) {
+            pend(id, 1);
+        }
+
+        recover(queue, streamKey(0));
+
+        assertEquals(new HashSet<>(Arrays.asList(8L, 16L, 24L, 32L, 40L, 48L)), handled);
+        assertTrue(pendingList.get(streamKey(0)).isEmpty());
+        assertEquals(6, acknowledged.size());
+        assertTrue(queued.get(queuedKey(0)).isEmpty());
+        assertTrue(deadLetters.isEmpty());
+    }
+
+    /**
+     * 处理失败的消息留在pending-list中，每次转移投递次数+1，超过最大投递次数后转入死信：
+     * 死信保留来源和投递次数，原消息ACK，订单仍视为在队列中，订单状态为FAILED；其他消息不受影响
+     */
+    @Test
+    void TestRecoveryDeadLettersPoisonOrder() throws Exception {
+        RedisStreamOrderQueue queue = recoveryNode();
+        OrderStatusCache orderStatusCache = (OrderStatusCache) ReflectionTestUtils.getField(queue, "orderStatusCache");
+        failing.add(8L);
+        pend(8L, 1);
+        pend(16L, 1);
+
+        // 第1~4次重试失败，投递次数2~5
+        for (int i = 0; i < 4; i++) {
+            recover(queue, streamKey(0));
+            assertTrue(deadLetters.isEmpty());
+        }
+        assertEquals(Collections.singleton(16L), handled);
+        assertEquals(5L, pendingList.get(streamKey(0)).get(8L));
+
+        // 第5次转移后投递次数6，超过max-deliveries=5，不再交给handler
+        recover(queue, streamKey(0));
+
+        assertEquals(1, deadLetters.size());
+        Map<Object, Object> dead = deadLetters.get(0);
+        assertEquals("8", dead.get("id"));
+        assertEquals(streamKey(0), dead.get("sourceStream"));
+        assertEquals("8-0", dead.get("sourceId"));
+        assertEquals("6", dead.get("deliveries"));
+        assertTrue(pendingList.get(streamKey(0)).isEmpty());
+        assertTrue(acknowledged.contains(streamKey(0) + "/8-0"));
+        assertTrue(isQueued(queue, 8L));
+        assertEquals("D", queued.get(queuedKey(0)).get("8"));
+        verify(orderStatusCache).update(argThat(orders -> orders.size() == 1 && orders.get(0).getId() == 8L),
+                eq(OrderStatusCache.FAILED));
+    }
+
+    /**
+     * 模拟秒杀脚本：订单id为id，写入 id % PARTITIONS 分区的stream，并记录到该分区的未确认订单hash
+     */
+    private void enqueue(long id) {
+        int partition = (int) (id % PARTITIONS);
+        Map<Object, Object> values = new HashMap<>();
+        values.put("id", String.valueOf(id));
+        values.put("userId", String.valueOf(id));
+        values.put("voucherId", String.valueOf(partition));
+        values.put("bucket", "0");
+        streams.get(streamKey(partition)).add(StreamRecords.newRecord()
+                .in(streamKey(partition)).withId(RecordId.of(id, 0)).ofMap(values));
+        queued.computeIfAbsent(queuedKey(partition), k -> new ConcurrentHashMap<>()).put(String.valueOf(id), "Q");
+    }
+
+    /**
+     * 已投递给某个消费者但未ACK的订单，留在 id % PARTITIONS 分区的pending-list中
+     */
+    private void pend(long id, long deliveries) {
+        int partition = (int) (id % PARTITIONS);
+        pendingList.computeIfAbsent(streamKey(partition), k -> new ConcurrentSkipListMap<>()).put(id, deliveries);
+        queued.computeIfAbsent(queuedKey(partition), k -> new ConcurrentHashMap<>()).put(String.valueOf(id), "Q");
+    }
+
+    /**
+     * 只用于调用恢复线程的节点，不启动消费者；每次XAUTOCLAIM最多转移2条消息
+     */
+    private RedisStreamOrderQueue recoveryNode() {
+        RedisStreamOrderQueue queue = new RedisStreamOrderQueue();
+        ReflectionTestUtils.setField(queue, "batchSize", 2);
+        ReflectionTestUtils.setField(queue, "recoveryIdleMillis", 30000L);
+        ReflectionTestUtils.setField(queue, "maxDeliveries", 5L);
+        ReflectionTestUtils.setField(queue, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(queue, "seckillKeys", seckillKeys());
+        ReflectionTestUtils.setField(queue, "orderStatusCache", mock(OrderStatusCache.class));
+        ReflectionTestUtils.setField(queue, "meterRegistry", new SimpleMeterRegistry());
+        OrderQueue.OrderHandler handler = orders -> {
+            for (VoucherOrder order : orders) {
+                if (failing.contains(order.getId())) {
+                    throw new IllegalStateException("落库失败 " + order.getId());
+                }
+                assertTrue(handled.add(order.getId()), "订单重复处理 " + order.getId());
+            }
+        };
+        ReflectionTestUtils.setField(queue, "handler", handler);
+        return queue;
+    }
+
+    /**
+     * 执行一轮恢复线程对一个分区的扫描
+     */
+    private static void recover(RedisStreamOrderQueue queue, String streamKey) throws Exception {
+        Class<?> type = Class.forName(RedisStreamOrderQueue.class.getName() + "$PendingOrderRecovery");
+        Constructor<?> constructor = type.getDeclaredConstructor(RedisStreamOrderQueue.class, String.class);
+        constructor.setAccessible(true);
+        Object recovery = constructor.newInstance(queue, "node-a-recovery");
+        ReflectionTestUtils.invokeMethod(recovery, "recover", streamKey);
+    }
+
+    private static Map<byte[], byte[]> body(long id) {
+        Map<byte[], byte[]> body = new LinkedHashMap<>();
+        body.put(bytes("id"), bytes(String.valueOf(id)));
+        body.put(bytes("userId"), bytes(String.valueOf(id)));
+        body.put(bytes("voucherId"), bytes(String.valueOf(id % PARTITIONS)));
+        body.put(bytes("bucket"), bytes("0"));
+        return body;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * XAUTOCLAIM：从游标开始转移最多count条消息，投递次数+1，返回下一页的游标，扫描完返回0-0
+     */
+    @SuppressWarnings("unchecked")
+    private ClaimedMessages<byte[], byte[]> autoClaim(String streamKey, XAutoClaimArgs<byte[]> args) {
+        String startId = (String) ReflectionTestUtils.getField(args, "startId");
+        long count = (Long) ReflectionTestUtils.getField(args, "count");
+        SortedMap<Long, Long> pending = pendingList.getOrDefault(streamKey, new TreeMap<>())
+                .tailMap(Long.parseLong(startId.substring(0, startId.indexOf('-'))));
+        List<StreamMessage<byte[], byte[]>> messages = new ArrayList<>();
+        String cursor = "0-0";
+        for (Map.Entry<Long, Long> entry : pending.entrySet()) {
+            if (messages.size() == count) {
+                cursor = entry.getKey() + "-0";
+                break;
+            }
+            pending.put(entry.getKey(), entry.getValue() + 1);
+            messages.add(new StreamMessage<>(bytes(streamKey), entry.getKey() + "-0", body(entry.getKey())));
+        }
+        return new ClaimedMessages<>(cursor, messages);
+    }
+
+    private static boolean isQueued(RedisStreamOrderQueue queue, long id) {
+        VoucherOrder order = new VoucherOrder().setId(id).setVoucherId(id % PARTITIONS).setBucket(0);
+        return queue.isQueued(order, 0L);
+    }
+
+    private RedisStreamOrderQueue node(String nodeId) {
+        return node(nodeId, 2);
+    }
+
+    private SeckillKeys seckillKeys() {
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.partitions()).thenReturn(PARTITIONS);
+        when(seckillKeys.streamKey(anyInt())).thenAnswer(invocation -> streamKey(invocation.getArgument(0)));
+        when(seckillKeys.queuedKey(anyLong(), anyInt())).thenAnswer(invocation ->
+                queuedKey(Math.floorMod(invocation.<Long>getArgument(0) + invocation.<Integer>getArgument(1), PARTITIONS)));
+        return seckillKeys;
+    }
+
+    private RedisStreamOrderQueue node(String nodeId, int workers) {
+        SeckillKeys seckillKeys = seckillKeys();
+        SeckillNodes seckillNodes = mock(SeckillNodes.class);
+        when(seckillNodes.nodeId()).thenReturn(nodeId);
+
+        RedisStreamOrderQueue queue = new RedisStreamOrderQueue();
+        ReflectionTestUtils.setField(queue, "batchSize", 50);
+        ReflectionTestUtils.setField(queue, "batchWaitMillis", 50L);
+        ReflectionTestUtils.setField(queue, "workers", workers);
+        ReflectionTestUtils.setField(queue, "recoveryIdleMillis", 30000L);
+        ReflectionTestUtils.setField(queue, "maxDeliveries", 5L);
+        ReflectionTestUtils.setField(queue, "recoveryIntervalMillis", 1000L);
+        ReflectionTestUtils.setField(queue, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(queue, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(queue, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(queue, "seckillNodes", seckillNodes);
+        ReflectionTestUtils.setField(queue, "orderStatusCache", mock(OrderStatusCache.class));
+        ReflectionTestUtils.setField(queue, "meterRegistry", new SimpleMeterRegistry());
+        queue.start(orders -> {
+            for (VoucherOrder order : orders) {
+                assertTrue(handled.add(order.getId()), "订单重复处理 " + order.getId());
+            }
+        });
+        started.add(queue);
+        return queue;
+    }
+
+    /**
+     * 所有分区都有消费者负责，且各消费者负责的分区数相同
+     */
+    private boolean balanced(RedisStreamOrderQueue... nodes) {
+        List<Set<Integer>> owned = new ArrayList<>();
+        for (RedisStreamOrderQueue node : nodes) {
+            owned.addAll(partitionsOf(node).values());
+        }
+        Set<Integer> all = new HashSet<>();
+        int total = 0;
+        for (Set<Integer> partitions : owned) {
+            if (partitions.size() != PARTITIONS / owned.size()) {
+                return false;
+            }
+            all.addAll(partitions);
+            total += partitions.size();
+        }
+        return owned.size() == nodes.length * 2 && all.size() == PARTITIONS && total == PARTITIONS;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Set<Integer>> partitionsOf(RedisStreamOrderQueue node) {
+        return new TreeMap<>((Map<String, Set<Integer>>) ReflectionTestUtils.getField(node, "nodePartitions"));
+    }
+
+    private static boolean waitUntil(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return condition.getAsBoolean();
+    }
+
+    private static String streamKey(int partition) {
+        return "stream.orders:{" + partition + "}";
+    }
+
+    private static String queuedKey(int partition) {
+        return RedisConstants.SECKILL_QUEUED_KEY + "{" + partition + "}";
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+        when(template.opsForZSet()).thenReturn(zSetOperations);
+        when(zSetOperations.add(anyString(), anyString(), anyDouble()))
+                .thenAnswer(invocation -> consumers.put(invocation.getArgument(1), invocation.getArgument(2)) == null);
+        when(zSetOperations.removeRangeByScore(anyString(), anyDouble(), anyDouble())).thenAnswer(invocation -> {
+            double min = invocation.getArgument(1);
+            double max = invocation.getArgument(2);
+            consumers.values().removeIf(score -> score >= min && score <= max);
+            return 0L;
+        });
+        when(zSetOperations.zCard(anyString())).thenAnswer(invocation -> (long) consumers.size());
+        when(zSetOperations.remove(anyString(), any())).thenAnswer(invocation -> {
+            consumers.remove((String) invocation.getArgument(1));
+            return 1L;
+        });
+
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        when(template.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.hasKey(anyString(), any())).thenAnswer(invocation ->
+                queued.getOrDefault(invocation.<String>getArgument(0), Collections.emptyMap()).containsKey(invocation.<String>getArgument(1)));
+        when(hashOperations.delete(anyString(), any())).thenAnswer(invocation -> {
+            Map<String, String> ids = queued.getOrDefault(invocation.<String>getArgument(0), Collections.emptyMap());
+            long removed = 0;
+            for (int i = 1; i < invocation.getArguments().length; i++) {
+                removed += ids.remove(invocation.<String>getArgument(i)) == null ? 0 : 1;
+            }
+            return removed;
+        });
+        doAnswer(invocation -> queued.computeIfAbsent(invocation.getArgument(0), k -> new ConcurrentHashMap<>())
+                .put(invocation.getArgument(1), invocation.getArgument(2)))
+                .when(hashOperations).put(anyString(), any(), any());
+
+        StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+        when(template.opsForStream()).thenReturn(streamOperations);
+        when(streamOperations.read(any(Consumer.class), any(StreamReadOptions.class), any())).thenAnswer(invocation -> {
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+            if (invocation.getArguments().length > 3) {
+                crossSlotReads.incrementAndGet();
+            }
+            for (int i = 2; i < invocation.getArguments().length; i++) {
+                String streamKey = ((StreamOffset<String>) invocation.getArgument(i)).getKey();
+                String lockKey = RedisConstants.LOCK_STREAM_ORDERS_KEY + streamKey.substring(streamKey.indexOf('{') + 1, streamKey.indexOf('}'));
+                if (locks.get(lockKey) != Thread.currentThread()) {
+                    violations.incrementAndGet();
+                }
+                MapRecord<String, Object, Object> record;
+                while (records.size() < 50 && (record = streams.get(streamKey).poll()) != null) {
+                    records.add(record);
+                }
+            }
+            StreamReadOptions options = invocation.getArgument(1);
+            if (records.isEmpty() && options.isBlocking()) {
+                // 模拟 BLOCK
+                Thread.sleep(Math.min(options.getBlock(), 50L));
+            }
+            return records;
+        });
+        when(streamOperations.acknowledge(anyString(), anyString(), ArgumentMatchers.<RecordId>any())).thenAnswer(invocation -> {
+            for (int i = 2; i < invocation.getArguments().length; i++) {
+                RecordId recordId = invocation.getArgument(i);
+                acknowledged.add(invocation.getArgument(0) + "/" + recordId.getValue());
+                pendingList.getOrDefault(invocation.<String>getArgument(0), new TreeMap<>()).remove(recordId.getTimestamp());
+            }
+            return (long) invocation.getArguments().length - 2;
+        });
+        // XPENDING：返回pending-list中消息的投递次数
+        when(streamOperations.pending(anyString(), any(Consumer.class), any(Range.class), anyLong())).thenAnswer(invocation -> {
+            Consumer consumer = invocation.getArgument(1);
+            List<PendingMessage> messages = new ArrayList<>();
+            pendingList.getOrDefault(invocation.<String>getArgument(0), new TreeMap<>()).forEach((id, deliveries) ->
+                    messages.add(new PendingMessage(RecordId.of(id, 0), consumer, Duration.ZERO, deliveries)));
+            return new PendingMessages(RedisConstants.STREAM_ORDERS_GROUP, messages);
+        });
+        when(streamOperations.add(anyString(), anyMap())).thenAnswer(invocation -> {
+            deadLetters.add(new HashMap<>(invocation.<Map<Object, Object>>getArgument(1)));
+            return RecordId.of(deadLetters.size(), 0);
+        });
+
+        // XAUTOCLAIM 使用lettuce原生命令
+        when(template.execute(any(RedisCallback.class))).thenAnswer(invocation -> {
+            RedisConnection connection = mock(RedisConnection.class);
+            RedisClusterAsyncCommands<byte[], byte[]> commands = mock(RedisClusterAsyncCommands.class);
+            when(connection.getNativeConnection()).thenReturn(commands);
+            when(commands.xautoclaim(any(byte[].class), any(XAutoClaimArgs.class))).thenAnswer(xautoclaim -> {
+                RedisFuture<ClaimedMessages<byte[], byte[]>> future = mock(RedisFuture.class);
+                ClaimedMessages<byte[], byte[]> claimed = autoClaim(
+                        new String(xautoclaim.<byte[]>getArgument(0), StandardCharsets.UTF_8), xautoclaim.getArgument(1));
+                when(future.get()).thenReturn(claimed);
+                return future;
+            });
+            return invocation.<RedisCallback<Object>>getArgument(0).doInRedis(connection);
+        });
+        return template;
+    }
+
+    private RedissonClient redissonClient() {
+        RedissonClient client = mock(RedissonClient.class);
+        when(client.getLock(anyString())).thenAnswer(invocation -> {
+            String name = invocation.getArgument(0);
+            RLock lock = mock(RLock.class);
+            when(lock.tryLock()).thenAnswer(tryLock -> {
+                Thread owner = locks.putIfAbsent(name, Thread.currentThread());
+                return owner == null || owner == Thread.currentThread();
+            });
+            when(lock.isHeldByCurrentThread()).thenAnswer(held -> locks.get(name) == Thread.currentThread());
+            doAnswer(unlock -> locks.remove(name, Thread.currentThread())).when(lock).unlock();
+            return lock;
+        });
+        return client;
+    }
+}
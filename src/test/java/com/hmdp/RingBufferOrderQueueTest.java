@@ -0,0 +1,204 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.RingBufferOrderQueue;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Description: 环形缓冲区订单队列：多生产者并发入队时每个订单恰好处理一次、同一优惠券按入队顺序处理，
+ * 缓冲区满时入队超时失败，批量失败后逐条重试，停止前处理完剩余订单
+ */
+public class RingBufferOrderQueueTest {
+
+    private RingBufferOrderQueue orderQueue;
+
+    private OrderStatusCache orderStatusCache;
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+    @BeforeEach
+    void setUp() {
+        orderStatusCache = mock(OrderStatusCache.class);
+        orderQueue = new RingBufferOrderQueue();
+        ReflectionTestUtils.setField(orderQueue, "batchSize", 50);
+        ReflectionTestUtils.setField(orderQueue, "workers", 2);
+        ReflectionTestUtils.setField(orderQueue, "capacity", 1024);
+        ReflectionTestUtils.setField(orderQueue, "offerTimeoutMillis", 1000L);
+        ReflectionTestUtils.setField(orderQueue, "maxDeliveries", 3);
+        ReflectionTestUtils.setField(orderQueue, "orderStatusCache", orderStatusCache);
+        ReflectionTestUtils.setField(orderQueue, "meterRegistry", new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * 8个生产者并发入队，订单数远大于缓冲区容量（多次绕圈），每个订单恰好处理一次，同一生产者的订单按顺序处理
+     */
+    @Test
+    void TestConcurrentProducersExactlyOnce() throws Exception {
+        Map<Long, Integer> handled = new ConcurrentHashMap<>();
+        // voucherId -> 处理到的序号，每个生产者使用自己的voucherId
+        Map<Long, Long> lastSerial = new ConcurrentHashMap<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        orderQueue.start(orders -> {
+            for (VoucherOrder order : orders) {
+                handled.merge(order.getId(), 1, Integer::sum);
+                long serial = order.getUserId();
+                Long last = lastSerial.put(order.getVoucherId(), serial);
+                if (last != null && last + 1 != serial) {
+                    outOfOrder.incrementAndGet();
+                }
+            }
+        });
+        int producers = 8;
+        int perProducer = 20000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            long voucherId = p;
+            futures.add(executorService.submit(() -> {
+                start.await();
+                int rejected = 0;
+                for (int i = 0; i < perProducer; i++) {
+                    if (!orderQueue.offer(order(voucherId * perProducer + i, i, voucherId))) {
+                        rejected++;
+                    }
+                }
+                return rejected;
+            }));
+        }
+        start.countDown();
+        for (Future<Integer> future : futures) {
+            assertEquals(0, future.get(30, TimeUnit.SECONDS));
+        }
+        orderQueue.stop();
+
+        assertEquals(producers * perProducer, handled.size());
+        assertTrue(handled.values().stream().allMatch(count -> count == 1));
+        assertEquals(0, outOfOrder.get());
+    }
+
+    /**
+     * 消费者阻塞、缓冲区已满时，入队等待offer-timeout-millis后失败，积压时减缓下单
+     */
+    @Test
+    void TestOfferTimesOutWhenFull() throws Exception {
+        ReflectionTestUtils.setField(orderQueue, "workers", 1);
+        ReflectionTestUtils.setField(orderQueue, "capacity", 64);
+        ReflectionTestUtils.setField(orderQueue, "offerTimeoutMillis", 100L);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> handled = new CopyOnWriteArrayList<>();
+        orderQueue.start(orders -> {
+            await(release);
+            orders.forEach(order -> handled.add(order.getId()));
+        });
+        assertEquals(1.0, orderQueue.intakeRatio());
+        // 第一批被消费者取出后阻塞，之后的订单填满缓冲区
+        int accepted = 0;
+        for (long i = 0; i < 200; i++) {
+            if (orderQueue.offer(order(i, i, 1L))) {
+                accepted++;
+            } else {
+                break;
+            }
+        }
+        assertTrue(accepted >= 64 && accepted <= 64 + 50, "accepted " + accepted);
+        long begin = System.currentTimeMillis();
+        assertFalse(orderQueue.offer(order(1000L, 1000L, 1L)));
+        assertTrue(System.currentTimeMillis() - begin >= 100);
+        assertTrue(orderQueue.intakeRatio() < 1.0);
+
+        release.countDown();
+        orderQueue.stop();
+        assertEquals(accepted, handled.size());
+    }
+
+    /**
+     * 批量处理失败后逐条重试，超过最大次数的订单标记为FAILED，其他订单正常处理
+     */
+    @Test
+    void TestRetryThenDrop() throws Exception {
+        ReflectionTestUtils.setField(orderQueue, "workers", 1);
+        Set<Long> handled = ConcurrentHashMap.newKeySet();
+        AtomicInteger poisonAttempts = new AtomicInteger();
+        orderQueue.start(orders -> {
+            for (VoucherOrder order : orders) {
+                if (order.getId() == 3L) {
+                    poisonAttempts.incrementAndGet();
+                    throw new IllegalStateException("落库失败");
+                }
+            }
+            orders.forEach(order -> handled.add(order.getId()));
+        });
+        for (long i = 1; i <= 5; i++) {
+            assertTrue(orderQueue.offer(order(i, i, 1L)));
+        }
+        orderQueue.stop();
+
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 4L, 5L)), handled);
+        // 批量一次 + 逐条重试maxDeliveries次，批量失败时可能分在多批中
+        assertTrue(poisonAttempts.get() >= 4);
+        verify(orderStatusCache).update(eq(Collections.singletonList(order(3L, 3L, 1L))), eq(OrderStatusCache.FAILED));
+    }
+
+    /**
+     * 停止时消费者处理完缓冲区中剩余的订单后才退出
+     */
+    @Test
+    void TestStopDrainsRemaining() throws Exception {
+        List<Long> handled = new CopyOnWriteArrayList<>();
+        orderQueue.start(orders -> {
+            sleep(5);
+            orders.forEach(order -> handled.add(order.getId()));
+        });
+        for (long i = 0; i < 1000; i++) {
+            assertTrue(orderQueue.offer(order(i, i, i)));
+        }
+        orderQueue.stop();
+        assertEquals(1000, handled.size());
+        // 停止后不再接受订单，由调用方归还库存
+        assertFalse(orderQueue.offer(order(2000L, 2000L, 1L)));
+    }
+
+    private static VoucherOrder order(long id, long userId, long voucherId) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        order.setBucket(0);
+        return order;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.hmdp;
+
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillNodes;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RRateLimiter;
+import org.redisson.api.RateIntervalUnit;
+import org.redisson.api.RateLimiterConfig;
+import org.redisson.api.RateType;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 秒杀准入控制：每个节点按 剩余库存 * factor / 在线节点数 放行，订单消费落后时按比例缩小，
+ * 分布式限流器只由第一个节点创建，速率相差不大时各节点不再重复setRate
+ * redis中的库存和分布式限流器用内存中的实现代替
+ */
+public class SeckillAdmissionTest {
+
+    private static final Long VOUCHER_ID = 1001L;
+
+    // redis中的剩余库存
+    private final AtomicLong stock = new AtomicLong();
+
+    // 分布式限流器的速率，0表示未创建
+    private final AtomicLong globalRate = new AtomicLong();
+
+    // setRate的调用次数
+    private final AtomicInteger rateResets = new AtomicInteger();
+
+    private SeckillNodes seckillNodes;
+
+    private OrderQueue orderQueue;
+
+    private RedissonClient redissonClient;
+
+    @BeforeEach
+    void setUp() {
+        seckillNodes = mock(SeckillNodes.class);
+        when(seckillNodes.liveNodes()).thenReturn(1);
+        orderQueue = mock(OrderQueue.class);
+        when(orderQueue.intakeRatio()).thenReturn(1.0);
+
+        RRateLimiter rateLimiter = mock(RRateLimiter.class);
+        when(rateLimiter.trySetRate(eq(RateType.OVERALL), anyLong(), eq(1L), eq(RateIntervalUnit.SECONDS)))
+                .thenAnswer(invocation -> globalRate.compareAndSet(0, invocation.getArgument(1)));
+        doAnswer(invocation -> {
+            rateResets.incrementAndGet();
+            globalRate.set(invocation.getArgument(1));
+            return null;
+        }).when(rateLimiter).setRate(eq(RateType.OVERALL), anyLong(), eq(1L), eq(RateIntervalUnit.SECONDS));
+        when(rateLimiter.getConfig()).thenAnswer(invocation -> new RateLimiterConfig(RateType.OVERALL, 1000L, globalRate.get()));
+        when(rateLimiter.tryAcquire()).thenReturn(true);
+        redissonClient = mock(RedissonClient.class);
+        when(redissonClient.getRateLimiter(RedisConstants.SECKILL_LIMITER_KEY + VOUCHER_ID)).thenReturn(rateLimiter);
+    }
+
+    /**
+     * 每秒放行 剩余库存 * factor / 在线节点数，超出的请求被拒绝
+     */
+    @Test
+    void TestPermitsSplitAcrossNodes() {
+        stock.set(20);
+        when(seckillNodes.liveNodes()).thenReturn(2);
+        SeckillAdmission admission = node(false);
+        admission.prepare(VOUCHER_ID);
+
+        // 20 * 1.0 / 2 = 10
+        assertEquals(10, admitted(admission, 15));
+        assertEquals(10L, admission.stats().get(VOUCHER_ID).get("permitsPerSecond"));
+        assertEquals(5L, admission.stats().get(VOUCHER_ID).get("shed"));
+    }
+
+    /**
+     * 订单消费落后时按intakeRatio缩小放行数量，但不少于minPermits
+     */
+    @Test
+    void TestIntakeRatioShrinksPermits() {
+        stock.set(100);
+        when(orderQueue.intakeRatio()).thenReturn(0.1);
+        SeckillAdmission admission = node(false);
+        admission.prepare(VOUCHER_ID);
+        assertEquals(10, admitted(admission, 50));
+
+        // 库存耗尽后仍放行minPermits个请求确认售罄
+        stock.set(0);
+        admission.refresh();
+        assertEquals(2L, admission.stats().get(VOUCHER_ID).get("permitsPerSecond"));
+    }
+
+    /**
+     * 限流器创建之前的请求直接放行，由秒杀脚本判断库存
+     */
+    @Test
+    void TestAdmitBeforeLimiterBuilt() {
+        stock.set(0);
+        SeckillAdmission admission = node(false);
+        assertTrue(admission.tryAcquire(VOUCHER_ID));
+    }
+
+    /**
+     * 分布式限流器由第一个节点创建；库存小幅变化时各节点都不修改速率，大幅变化时只有一个节点修改
+     */
+    @Test
+    void TestGlobalRateNotResetByEveryNode() {
+        stock.set(100);
+        SeckillAdmission nodeA = node(true);
+        SeckillAdmission nodeB = node(true);
+        nodeA.prepare(VOUCHER_ID);
+        nodeB.prepare(VOUCHER_ID);
+        assertEquals(100, globalRate.get());
+        assertEquals(0, rateResets.get());
+
+        stock.set(90);
+        nodeA.refresh();
+        nodeB.refresh();
+        assertEquals(100, globalRate.get());
+        assertEquals(0, rateResets.get());
+
+        stock.set(50);
+        nodeA.refresh();
+        nodeB.refresh();
+        assertEquals(50, globalRate.get());
+        assertEquals(1, rateResets.get());
+    }
+
+    private static int admitted(SeckillAdmission admission, int requests) {
+        int admitted = 0;
+        for (int i = 0; i < requests; i++) {
+            if (admission.tryAcquire(VOUCHER_ID)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * 创建一个节点的准入控制，factor为1.0，minPermits为2
+     */
+    private SeckillAdmission node(boolean distributed) {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class)))
+                .thenAnswer(invocation -> Collections.singletonList(String.valueOf(stock.get())));
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.stockKeys(VOUCHER_ID)).thenReturn(Collections.singletonList("seckill:stock:{1}:1001"));
+
+        SeckillAdmission admission = new SeckillAdmission();
+        ReflectionTestUtils.setField(admission, "enabled", true);
+        ReflectionTestUtils.setField(admission, "factor", 1.0);
+        ReflectionTestUtils.setField(admission, "minPermits", 2);
+        ReflectionTestUtils.setField(admission, "distributed", distributed);
+        ReflectionTestUtils.setField(admission, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(admission, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(admission, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(admission, "seckillNodes", seckillNodes);
+        ReflectionTestUtils.setField(admission, "orderQueue", orderQueue);
+        return admission;
+    }
+}
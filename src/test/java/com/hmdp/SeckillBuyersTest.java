@@ -0,0 +1,252 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 分桶优惠券的一人一单占位：不同桶不能各下一单、本桶售罄时换桶、下单失败或redis异常时释放占位，
+ * 进程崩溃遗留的未确认占位由对账任务按各桶的已购用户确认或释放
+ * redis用内存中的实现代替，占位脚本与秒杀脚本按lua的语义模拟
+ */
+public class SeckillBuyersTest {
+
+    private static final Long VOUCHER_ID = 1001L;
+
+    private static final Long USER_ID = 7L;
+
+    private static final int BUCKETS = 2;
+
+    // 各个桶的库存与已购用户
+    private final Map<String, Integer> stock = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+
+    // 未确认的占位 userId -> 截止时间
+    private final Map<String, Double> claims = new ConcurrentHashMap<>();
+
+    private boolean redisDown;
+
+    private SeckillBuyers seckillBuyers;
+
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    @BeforeEach
+    void setUp() {
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.bucketsOf(VOUCHER_ID)).thenReturn(BUCKETS);
+        when(seckillKeys.partitions()).thenReturn(8);
+        when(seckillKeys.buyerKey(VOUCHER_ID)).thenReturn("seckill:buyer:{1}:1001");
+        when(seckillKeys.buyerClaimKey(VOUCHER_ID)).thenReturn("seckill:buyer:claim:{1}:1001");
+        when(seckillKeys.stockKey(eq(VOUCHER_ID), anyInt())).thenAnswer(invocation -> "stock:" + invocation.getArgument(1));
+        when(seckillKeys.orderKey(eq(VOUCHER_ID), anyInt())).thenAnswer(invocation -> "order:" + invocation.getArgument(1));
+        StringRedisTemplate stringRedisTemplate = redisTemplate();
+
+        seckillBuyers = new SeckillBuyers();
+        ReflectionTestUtils.setField(seckillBuyers, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillBuyers, "seckillKeys", seckillKeys);
+
+        voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(voucherOrderService, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillBuyers", seckillBuyers);
+        ReflectionTestUtils.setField(voucherOrderService, "soldOutRegistry", mock(SoldOutRegistry.class));
+        ReflectionTestUtils.setField(voucherOrderService, "seckillWarmer", mock(SeckillWarmer.class));
+        SeckillAdmission seckillAdmission = mock(SeckillAdmission.class);
+        when(seckillAdmission.tryAcquire(anyLong())).thenReturn(true);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillAdmission", seckillAdmission);
+        ReflectionTestUtils.setField(voucherOrderService, "snowflakeIdGenerator", mock(SnowflakeIdGenerator.class));
+        ReflectionTestUtils.setField(voucherOrderService, "redisIdGenerator", mock(RedisIdGenerator.class));
+        OrderQueue orderQueue = mock(OrderQueue.class);
+        when(orderQueue.enqueuedByScript()).thenReturn(true);
+        ReflectionTestUtils.setField(voucherOrderService, "orderQueue", orderQueue);
+        ReflectionTestUtils.setField(voucherOrderService, "orderStatusCache", mock(OrderStatusCache.class));
+        ReflectionTestUtils.setField(voucherOrderService, "seckillPushHub", mock(SeckillPushHub.class));
+        ReflectionTestUtils.setField(voucherOrderService, "scriptOrderId", true);
+
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    /**
+     * 在一个桶下单后，另一个桶还有库存也不能再下单
+     */
+    @Test
+    void TestOneOrderAcrossBuckets() {
+        stock.put("stock:0", 1);
+        stock.put("stock:1", 1);
+        assertTrue(voucherOrderService.seckillVoucher(VOUCHER_ID).getSuccess());
+
+        Result second = voucherOrderService.seckillVoucher(VOUCHER_ID);
+        assertFalse(second.getSuccess());
+        assertEquals("用户重复下单！", second.getErrorMsg());
+        assertEquals(1, stock.get("stock:0") + stock.get("stock:1"));
+        assertTrue(buyers().contains(USER_ID.toString()));
+        // 下单成功后占位已确认
+        assertTrue(claims.isEmpty());
+    }
+
+    /**
+     * 用户所在的桶售罄时从相邻的桶下单
+     */
+    @Test
+    void TestFallbackToOtherBucket() {
+        int home = Math.floorMod(Long.hashCode(USER_ID), BUCKETS);
+        stock.put("stock:" + home, 0);
+        stock.put("stock:" + (1 - home), 1);
+        assertTrue(voucherOrderService.seckillVoucher(VOUCHER_ID).getSuccess());
+        assertEquals(0, stock.get("stock:" + (1 - home)));
+        assertTrue(sets.get("order:" + (1 - home)).contains(USER_ID.toString()));
+    }
+
+    /**
+     * 所有桶都售罄时释放占位
+     */
+    @Test
+    void TestClaimReleasedWhenSoldOut() {
+        stock.put("stock:0", 0);
+        stock.put("stock:1", 0);
+        Result result = voucherOrderService.seckillVoucher(VOUCHER_ID);
+        assertEquals("库存不足！", result.getErrorMsg());
+        assertFalse(buyers().contains(USER_ID.toString()));
+        assertTrue(claims.isEmpty());
+    }
+
+    /**
+     * 执行秒杀脚本时redis异常，释放占位后抛出
+     */
+    @Test
+    void TestClaimReleasedOnRedisError() {
+        stock.put("stock:0", 1);
+        redisDown = true;
+        assertThrows(IllegalStateException.class, () -> voucherOrderService.seckillVoucher(VOUCHER_ID));
+        assertFalse(buyers().contains(USER_ID.toString()));
+        assertTrue(claims.isEmpty());
+    }
+
+    /**
+     * 超时未确认的占位：已在某个桶下单的确认，没有下单的释放，未超时的不处理
+     */
+    @Test
+    void TestReconcileStaleClaims() {
+        long now = System.currentTimeMillis();
+        // 用户1：占位后下单成功，确认前进程崩溃
+        buyers().add("1");
+        claims.put("1", (double) now - 1);
+        sets.computeIfAbsent("order:1", k -> ConcurrentHashMap.newKeySet()).add("1");
+        // 用户2：占位后进程崩溃，没有下单
+        buyers().add("2");
+        claims.put("2", (double) now - 1);
+        // 用户3：正在下单
+        buyers().add("3");
+        claims.put("3", (double) now + 60000);
+
+        seckillBuyers.reconcile();
+
+        assertEquals(new HashSet<>(Arrays.asList("1", "3")), buyers());
+        assertEquals(Collections.singleton("3"), claims.keySet());
+    }
+
+    private Set<String> buyers() {
+        return sets.computeIfAbsent("seckill:buyer:{1}:1001", k -> ConcurrentHashMap.newKeySet());
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        SetOperations<String, String> setOperations = mock(SetOperations.class);
+        when(template.opsForSet()).thenReturn(setOperations);
+        when(setOperations.isMember(anyString(), anyString())).thenAnswer(invocation ->
+                sets.getOrDefault(invocation.<String>getArgument(0), Collections.emptySet()).contains(invocation.<String>getArgument(1)));
+
+        ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+        when(template.opsForZSet()).thenReturn(zSetOperations);
+        when(zSetOperations.range(RedisConstants.SECKILL_ACTIVE_KEY, 0, -1)).thenReturn(Collections.singleton(VOUCHER_ID.toString()));
+        when(zSetOperations.rangeByScore(eq("seckill:buyer:claim:{1}:1001"), anyDouble(), anyDouble(), anyLong(), anyLong()))
+                .thenAnswer(invocation -> {
+                    double max = invocation.getArgument(2);
+                    Set<String> expired = new TreeSet<>();
+                    claims.forEach((userId, deadline) -> {
+                        if (deadline <= max) {
+                            expired.add(userId);
+                        }
+                    });
+                    return expired;
+                });
+
+        when(template.execute(any(RedisScript.class), anyList(), any())).thenAnswer(invocation -> {
+            RedisScript<?> script = invocation.getArgument(0);
+            List<String> keys = invocation.getArgument(1);
+            Object[] args = Arrays.copyOfRange(invocation.getArguments(), 2, invocation.getArguments().length);
+            if (script.getResultType() == Long.class) {
+                return buyerScript(keys, args);
+            }
+            return seckillScript(keys, args);
+        });
+        return template;
+    }
+
+    /**
+     * seckill_buyer.lua
+     */
+    private Long buyerScript(List<String> keys, Object[] args) {
+        Set<String> buyers = sets.computeIfAbsent(keys.get(0), k -> ConcurrentHashMap.newKeySet());
+        String userId = (String) args[1];
+        switch ((String) args[0]) {
+            case "claim":
+                if (!buyers.add(userId)) {
+                    return 0L;
+                }
+                claims.put(userId, Double.valueOf((String) args[2]));
+                return 1L;
+            case "confirm":
+                return claims.remove(userId) == null ? 0L : 1L;
+            default:
+                claims.remove(userId);
+                return buyers.remove(userId) ? 1L : 0L;
+        }
+    }
+
+    /**
+     * seckill.lua：先判重再判断库存
+     */
+    private List<Object> seckillScript(List<String> keys, Object[] args) {
+        if (redisDown) {
+            throw new IllegalStateException("redis不可用");
+        }
+        Set<String> orders = sets.computeIfAbsent(keys.get(1), k -> ConcurrentHashMap.newKeySet());
+        String userId = (String) args[1];
+        if (orders.contains(userId)) {
+            return Arrays.asList(2L, "");
+        }
+        int left = stock.getOrDefault(keys.get(0), 0);
+        if (left <= 0) {
+            return Arrays.asList(1L, "");
+        }
+        stock.put(keys.get(0), left - 1);
+        orders.add(userId);
+        return Arrays.asList(0L, String.valueOf(Instant.now().getEpochSecond()), "");
+    }
+}
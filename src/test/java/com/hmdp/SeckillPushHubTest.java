@@ -0,0 +1,383 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillPushHub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.MessageListener;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 秒杀结果与库存推送：订单结果推送到持有该用户连接的节点，库存变化合并后广播给所有节点，
+ * 只接受正在进行的秒杀券，连接数超出上限时推送 rejected 事件后关闭，连接关闭后释放连接数
+ * redis发布订阅用内存中的实现代替，消息同步投递给所有节点；servlet容器一侧用记录事件的Handler代替
+ */
+public class SeckillPushHubTest {
+
+    private static final Long VOUCHER_ID = 1001L;
+
+    // topic名称 -> 各节点的监听器
+    private final Map<String, List<MessageListener<String>>> listeners = new HashMap<>();
+
+    // 各topic发布的消息数
+    private final Map<String, AtomicInteger> published = new HashMap<>();
+
+    // 正在进行的秒杀 voucherId -> 结束时间
+    private final Map<String, Double> active = new ConcurrentHashMap<>();
+
+    // redis中的库存
+    private final Map<String, String> stocks = new ConcurrentHashMap<>();
+
+    private RedissonClient redissonClient;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private SeckillKeys seckillKeys;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        redissonClient = mock(RedissonClient.class);
+        for (String name : Arrays.asList(RedisConstants.SECKILL_ORDER_RESULT_TOPIC, RedisConstants.SECKILL_STOCK_CHANGED_TOPIC)) {
+            List<MessageListener<String>> topicListeners = new CopyOnWriteArrayList<>();
+            listeners.put(name, topicListeners);
+            published.put(name, new AtomicInteger());
+            RTopic topic = mock(RTopic.class);
+            when(topic.addListener(eq(String.class), any(MessageListener.class))).thenAnswer(invocation -> {
+                topicListeners.add(invocation.getArgument(1));
+                return topicListeners.size();
+            });
+            when(topic.publishAsync(any())).thenAnswer(invocation -> {
+                deliver(name, invocation.getArgument(0));
+                return null;
+            });
+            when(redissonClient.getTopic(name, StringCodec.INSTANCE)).thenReturn(topic);
+        }
+        stringRedisTemplate = redisTemplate();
+        // 1001 拆分为两个桶
+        seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.stockKeys(anyLong())).thenAnswer(invocation -> {
+            Long voucherId = invocation.getArgument(0);
+            return VOUCHER_ID.equals(voucherId)
+                    ? Arrays.asList("stock:" + voucherId + ":0", "stock:" + voucherId + ":1")
+                    : Collections.singletonList("stock:" + voucherId);
+        });
+        active.put(VOUCHER_ID.toString(), (double) (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+        stocks.put("stock:" + VOUCHER_ID + ":0", "3");
+        stocks.put("stock:" + VOUCHER_ID + ":1", "4");
+    }
+
+    /**
+     * 订单结果只推送给该用户的连接，用户连接在其他节点上时同样能收到
+     */
+    @Test
+    void TestOrderResultsRoutedToUser() {
+        SeckillPushHub nodeA = node();
+        SeckillPushHub nodeB = node();
+        Connection user7 = connect(nodeB.subscribe(7L, "user:7", null));
+        Connection user8 = connect(nodeA.subscribe(8L, "user:8", null));
+
+        nodeA.publishOrderResults(Arrays.asList(order(100L, 7L), order(101L, 9L)), OrderStatusCache.CREATED);
+
+        assertEquals(1, published.get(RedisConstants.SECKILL_ORDER_RESULT_TOPIC).get());
+        assertEquals(1, user7.events.size());
+        assertEquals("order", user7.events.get(0).name);
+        JSONObject event = user7.events.get(0).json();
+        assertEquals(100L, event.getLong("orderId"));
+        assertEquals(VOUCHER_ID, event.getLong("voucherId"));
+        assertEquals(OrderStatusCache.CREATED, event.getStr("state"));
+        assertTrue(user8.events.isEmpty());
+    }
+
+    /**
+     * 只订阅去重后的前max-vouchers个中正在进行的秒杀券，建立连接后推送各桶之和作为当前库存
+     */
+    @Test
+    void TestInitialStockForActiveVouchersOnly() {
+        active.put("2002", (double) (System.currentTimeMillis() - 1000));
+        active.put("4004", (double) (System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+        stocks.put("stock:" + VOUCHER_ID + ":1", "-1");
+        SeckillPushHub hub = node();
+        ReflectionTestUtils.setField(hub, "maxVouchers", 3);
+
+        // 2002 已结束，3003 未预热，4004 超出max-vouchers
+        Connection connection = connect(hub.subscribe(null, "ip:1", Arrays.asList(VOUCHER_ID, VOUCHER_ID, 2002L, 3003L, 4004L)));
+
+        assertEquals(1, connection.events.size());
+        assertEquals("stock", connection.events.get(0).name);
+        assertEquals(VOUCHER_ID, connection.events.get(0).json().getLong("voucherId"));
+        // 扣成负数的桶按0计算
+        assertEquals(3L, connection.events.get(0).json().getLong("stock"));
+
+        hub.markStockChanged(4004L);
+        hub.flushStockChanges();
+        assertEquals(1, connection.events.size());
+    }
+
+    /**
+     * 多次库存变化合并为一条广播，所有节点上订阅了该优惠券的连接收到最新库存；没有变化时不广播
+     */
+    @Test
+    void TestStockChangesDebounced() {
+        SeckillPushHub nodeA = node();
+        SeckillPushHub nodeB = node();
+        Connection connection = connect(nodeB.subscribe(null, "ip:1", Collections.singletonList(VOUCHER_ID)));
+        connection.events.clear();
+
+        nodeA.markStockChanged(VOUCHER_ID);
+        stocks.put("stock:" + VOUCHER_ID + ":0", "2");
+        nodeA.markStockChanged(VOUCHER_ID);
+        stocks.put("stock:" + VOUCHER_ID + ":1", "1");
+        nodeA.markStockChanged(VOUCHER_ID);
+        nodeA.flushStockChanges();
+        nodeA.flushStockChanges();
+
+        assertEquals(1, published.get(RedisConstants.SECKILL_STOCK_CHANGED_TOPIC).get());
+        assertEquals(1, connection.events.size());
+        assertEquals("stock", connection.events.get(0).name);
+        assertEquals(3L, connection.events.get(0).json().getLong("stock"));
+    }
+
+    /**
+     * 每个客户端和整个节点的连接数超出上限时推送 rejected 事件后关闭；连接关闭后释放连接数
+     */
+    @Test
+    void TestConnectionLimits() {
+        SeckillPushHub hub = node();
+        ReflectionTestUtils.setField(hub, "maxConnections", 3);
+        ReflectionTestUtils.setField(hub, "maxConnectionsPerClient", 2);
+
+        Connection first = connect(hub.subscribe(null, "ip:1", null));
+        connect(hub.subscribe(null, "ip:1", null));
+        Connection overClient = connect(hub.subscribe(null, "ip:1", null));
+        connect(hub.subscribe(null, "ip:2", null));
+        Connection overNode = connect(hub.subscribe(null, "ip:2", null));
+
+        for (Connection rejected : Arrays.asList(overClient, overNode)) {
+            assertTrue(rejected.completed);
+            assertEquals("rejected", rejected.events.get(0).name);
+        }
+        assertFalse(first.completed);
+
+        first.close();
+        Connection reconnected = connect(hub.subscribe(null, "ip:1", null));
+        assertFalse(reconnected.completed);
+        assertTrue(reconnected.events.isEmpty());
+    }
+
+    /**
+     * 连接关闭或发送失败后不再推送，并从订阅中移除
+     */
+    @Test
+    void TestClosedConnectionRemoved() {
+        SeckillPushHub hub = node();
+        Connection closed = connect(hub.subscribe(7L, "user:7", Collections.singletonList(VOUCHER_ID)));
+        Connection broken = connect(hub.subscribe(8L, "user:8", Collections.singletonList(VOUCHER_ID)));
+
+        closed.close();
+        broken.broken = true;
+        hub.heartbeat();
+        // 发送失败后由容器回调onError和onCompletion
+        assertTrue(broken.sendFailed);
+        broken.fail();
+        closed.events.clear();
+        broken.events.clear();
+        hub.publishOrderResults(Arrays.asList(order(100L, 7L), order(101L, 8L)), OrderStatusCache.CREATED);
+        hub.markStockChanged(VOUCHER_ID);
+        hub.flushStockChanges();
+
+        assertTrue(closed.events.isEmpty());
+        assertTrue(broken.events.isEmpty());
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(hub, "userEmitters")).isEmpty());
+        assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(hub, "voucherEmitters")).isEmpty());
+        assertEquals(0, ((AtomicInteger) ReflectionTestUtils.getField(hub, "connections")).get());
+    }
+
+    private void deliver(String name, Object msg) {
+        published.get(name).incrementAndGet();
+        for (MessageListener<String> listener : listeners.get(name)) {
+            listener.onMessage(name, (String) msg);
+        }
+    }
+
+    private SeckillPushHub node() {
+        SeckillPushHub hub = new SeckillPushHub();
+        ReflectionTestUtils.setField(hub, "timeoutMinutes", 30L);
+        ReflectionTestUtils.setField(hub, "maxVouchers", 20);
+        ReflectionTestUtils.setField(hub, "maxConnections", 10000);
+        ReflectionTestUtils.setField(hub, "maxConnectionsPerClient", 5);
+        ReflectionTestUtils.setField(hub, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(hub, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(hub, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.invokeMethod(hub, "init");
+        return hub;
+    }
+
+    private static VoucherOrder order(Long orderId, Long userId) {
+        return new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(VOUCHER_ID);
+    }
+
+    /**
+     * 模拟servlet容器接管连接：建立连接之前发送的事件在此时写出
+     */
+    private static Connection connect(SseEmitter emitter) {
+        Connection connection = new Connection();
+        try {
+            Class<?> handlerType = Class.forName(ResponseBodyEmitter.class.getName() + "$Handler");
+            Object handler = Proxy.newProxyInstance(handlerType.getClassLoader(), new Class<?>[]{handlerType},
+                    (proxy, method, args) -> connection.handle(method, args));
+            Method initialize = ResponseBodyEmitter.class.getDeclaredMethod("initialize", handlerType);
+            initialize.setAccessible(true);
+            initialize.invoke(emitter, handler);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return connection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        when(template.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            List<Object> results = new ArrayList<>();
+            RedisConnection connection = mock(RedisConnection.class);
+            RedisZSetCommands zSetCommands = mock(RedisZSetCommands.class);
+            RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+            when(connection.zSetCommands()).thenReturn(zSetCommands);
+            when(connection.stringCommands()).thenReturn(stringCommands);
+            when(zSetCommands.zScore(any(byte[].class), any(byte[].class))).thenAnswer(zScore -> {
+                results.add(active.get(new String(zScore.<byte[]>getArgument(1), StandardCharsets.UTF_8)));
+                return null;
+            });
+            when(stringCommands.get(any(byte[].class))).thenAnswer(get -> {
+                results.add(stocks.get(new String(get.<byte[]>getArgument(0), StandardCharsets.UTF_8)));
+                return null;
+            });
+            invocation.<RedisCallback<Object>>getArgument(0).doInRedis(connection);
+            return results;
+        });
+        return template;
+    }
+
+    private static class Event {
+
+        private String name;
+
+        private String data;
+
+        private JSONObject json() {
+            return JSONUtil.parseObj(data);
+        }
+    }
+
+    /**
+     * 一个SSE连接在客户端收到的事件；请求结束时容器回调onCompletion，写出失败时先回调onError
+     */
+    private static class Connection {
+
+        private final List<Event> events = new ArrayList<>();
+
+        private final List<Runnable> completionCallbacks = new ArrayList<>();
+
+        private final List<Consumer<Throwable>> errorCallbacks = new ArrayList<>();
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        private boolean completed;
+
+        // 客户端已断开，发送时抛出异常
+        private boolean broken;
+
+        private boolean sendFailed;
+
+        @SuppressWarnings("unchecked")
+        private Object handle(Method method, Object[] args) throws IOException {
+            switch (method.getName()) {
+                case "send":
+                    if (broken) {
+                        sendFailed = true;
+                        throw new IOException("Broken pipe");
+                    }
+                    buffer.append(args[0] instanceof String ? args[0] : JSONUtil.toJsonStr(args[0]));
+                    parse();
+                    break;
+                case "complete":
+                case "completeWithError":
+                    close();
+                    break;
+                case "onCompletion":
+                    completionCallbacks.add((Runnable) args[0]);
+                    break;
+                case "onError":
+                    errorCallbacks.add((Consumer<Throwable>) args[0]);
+                    break;
+                default:
+                    break;
+            }
+            return null;
+        }
+
+        private void parse() {
+            int end;
+            while ((end = buffer.indexOf("\n\n")) >= 0) {
+                Event event = new Event();
+                for (String line : buffer.substring(0, end).split("\n")) {
+                    if (line.startsWith("event:")) {
+                        event.name = line.substring("event:".length());
+                    } else if (line.startsWith("data:")) {
+                        event.data = line.substring("data:".length());
+                    }
+                }
+                buffer.delete(0, end + 2);
+                // 心跳等注释行不是事件
+                if (event.name != null) {
+                    events.add(event);
+                }
+            }
+        }
+
+        private void fail() {
+            IOException e = new IOException("Broken pipe");
+            errorCallbacks.forEach(callback -> callback.accept(e));
+            close();
+        }
+
+        private void close() {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            completionCallbacks.forEach(Runnable::run);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.*;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisSetCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: redis与数据库秒杀库存对账：redis库存 + 已购用户数 与 数据库库存 + 订单数 比较，
+ * 连续两次相同的偏差才视为真实偏差，开启auto-correct时按偏差增减redis库存，不扣成负数；
+ * 对账结果保存在redis中，下一次对账与其比较
+ * redis和数据库用内存中的实现代替
+ */
+public class SeckillReconcilerTest {
+
+    private static final Long VOUCHER_ID = 1001L;
+
+    // redis中的库存 key -> 库存
+    private final Map<String, Long> stock = new ConcurrentHashMap<>();
+
+    // redis中各桶的已购用户数 key -> 用户数
+    private final Map<String, Long> sold = new ConcurrentHashMap<>();
+
+    // 对账结果hash
+    private final Map<Object, Object> report = new ConcurrentHashMap<>();
+
+    // 数据库库存和订单数
+    private final Map<Long, Integer> dbStocks = new ConcurrentHashMap<>();
+    private final Map<Long, Long> dbOrders = new ConcurrentHashMap<>();
+
+    private final Set<String> active = new TreeSet<>();
+
+    private SeckillKeys seckillKeys;
+
+    private SoldOutRegistry soldOutRegistry;
+
+    private SeckillPushHub seckillPushHub;
+
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = redisTemplate();
+        seckillKeys = new SeckillKeys();
+        ReflectionTestUtils.setField(seckillKeys, "partitions", 8);
+        ReflectionTestUtils.setField(seckillKeys, "stringRedisTemplate", stringRedisTemplate);
+        soldOutRegistry = mock(SoldOutRegistry.class);
+        seckillPushHub = mock(SeckillPushHub.class);
+        meterRegistry = new SimpleMeterRegistry();
+        active.add(VOUCHER_ID.toString());
+    }
+
+    /**
+     * 已秒杀未落库的订单不算偏差；对账结果保存到redis
+     */
+    @Test
+    void TestUnpersistedOrdersAreNotDrift() {
+        SeckillReconciler reconciler = node(true);
+        redis(0, 7, 3);
+        db(8, 2);
+
+        reconciler.reconcile();
+        reconciler.reconcile();
+
+        Map<String, Long> stat = reconciler.report().get(VOUCHER_ID);
+        assertEquals(1L, stat.get("unpersisted"));
+        assertEquals(0L, stat.get("drift"));
+        assertEquals(0.0, gauge("total"));
+        // 连续两次相同的未落库订单数
+        assertEquals(1.0, gauge("unpersisted"));
+        assertEquals(7L, stock.get(seckillKeys.stockKey(VOUCHER_ID)));
+    }
+
+    /**
+     * redis库存偏多：第一次对账只记录，第二次偏差相同才从各个桶扣减，不把桶扣成负数
+     */
+    @Test
+    void TestConfirmedDriftCorrected() {
+        seckillKeys.setBuckets(VOUCHER_ID, 2);
+        SeckillReconciler reconciler = node(true);
+        redis(0, 1, 2);
+        redis(1, 5, 0);
+        db(3, 2);
+
+        reconciler.reconcile();
+        assertEquals(3L, reconciler.report().get(VOUCHER_ID).get("drift"));
+        assertEquals(1L, stock.get(seckillKeys.stockKey(VOUCHER_ID, 0)));
+        assertEquals(0.0, gauge("total"));
+
+        reconciler.reconcile();
+        assertEquals(0L, stock.get(seckillKeys.stockKey(VOUCHER_ID, 0)));
+        assertEquals(3L, stock.get(seckillKeys.stockKey(VOUCHER_ID, 1)));
+        assertEquals(3.0, gauge("total"));
+        verify(seckillPushHub).markStockChanged(VOUCHER_ID);
+        verify(soldOutRegistry, never()).reset(anyLong());
+
+        // 修正后不再有偏差
+        reconciler.reconcile();
+        assertEquals(0L, reconciler.report().get(VOUCHER_ID).get("drift"));
+    }
+
+    /**
+     * redis库存偏少时补到第一个桶，并解除售罄标记
+     */
+    @Test
+    void TestNegativeDriftRestocks() {
+        SeckillReconciler reconciler = node(true);
+        redis(0, 0, 5);
+        db(2, 5);
+
+        reconciler.reconcile();
+        reconciler.reconcile();
+
+        assertEquals(2L, stock.get(seckillKeys.stockKey(VOUCHER_ID)));
+        verify(soldOutRegistry).reset(VOUCHER_ID);
+    }
+
+    /**
+     * 两次对账的偏差不同（对账期间正在秒杀）时不视为偏差；未开启auto-correct时只记录不修正
+     */
+    @Test
+    void TestTransientDriftIgnored() {
+        SeckillReconciler reconciler = node(false);
+        redis(0, 10, 0);
+        db(8, 0);
+        reconciler.reconcile();
+        redis(0, 9, 0);
+        reconciler.reconcile();
+        assertEquals(0.0, gauge("total"));
+
+        reconciler.reconcile();
+        assertEquals(1.0, gauge("total"));
+        assertEquals(9L, stock.get(seckillKeys.stockKey(VOUCHER_ID)));
+        verify(seckillPushHub, never()).markStockChanged(anyLong());
+    }
+
+    /**
+     * 上一次对账在其他节点执行时，与redis中保存的结果比较
+     */
+    @Test
+    void TestLastReportSharedAcrossNodes() {
+        SeckillReconciler nodeA = node(true);
+        SeckillReconciler nodeB = node(true);
+        redis(0, 10, 0);
+        db(8, 0);
+
+        nodeA.reconcile();
+        assertEquals(2L, nodeB.report().get(VOUCHER_ID).get("drift"));
+        nodeB.reconcile();
+
+        assertEquals(8L, stock.get(seckillKeys.stockKey(VOUCHER_ID)));
+    }
+
+    /**
+     * 未预热到redis的优惠券不对账，没有进行中的秒杀时清空对账结果
+     */
+    @Test
+    void TestUnwarmedVoucherSkipped() {
+        SeckillReconciler reconciler = node(true);
+        db(8, 0);
+        reconciler.reconcile();
+        assertTrue(reconciler.report().isEmpty());
+
+        redis(0, 8, 1);
+        reconciler.reconcile();
+        assertFalse(reconciler.report().isEmpty());
+
+        active.clear();
+        reconciler.reconcile();
+        assertTrue(report.isEmpty());
+    }
+
+    private void redis(int bucket, long bucketStock, long buyers) {
+        stock.put(seckillKeys.stockKey(VOUCHER_ID, bucket), bucketStock);
+        sold.put(seckillKeys.orderKey(VOUCHER_ID, bucket), buyers);
+    }
+
+    private void db(int voucherStock, long orders) {
+        dbStocks.put(VOUCHER_ID, voucherStock);
+        dbOrders.put(VOUCHER_ID, orders);
+    }
+
+    private double gauge(String type) {
+        return meterRegistry.get("seckill.stock.drift").tag("type", type).gauge().value();
+    }
+
+    private SeckillReconciler node(boolean autoCorrect) {
+        RLock lock = mock(RLock.class);
+        when(lock.tryLock()).thenReturn(true);
+        RedissonClient redissonClient = mock(RedissonClient.class);
+        when(redissonClient.getLock(RedisConstants.LOCK_SECKILL_RECONCILE_KEY)).thenReturn(lock);
+
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.listByIds(anyCollection())).thenAnswer(invocation -> {
+            List<SeckillVoucher> vouchers = new ArrayList<>();
+            for (Object id : invocation.<Collection<?>>getArgument(0)) {
+                Integer voucherStock = dbStocks.get((Long) id);
+                if (voucherStock != null) {
+                    vouchers.add(new SeckillVoucher().setVoucherId((Long) id).setStock(voucherStock));
+                }
+            }
+            return vouchers;
+        });
+        IVoucherOrderService voucherOrderService = mock(IVoucherOrderService.class);
+        when(voucherOrderService.listMaps(any(Wrapper.class))).thenAnswer(invocation -> {
+            List<Map<String, Object>> counts = new ArrayList<>();
+            dbOrders.forEach((voucherId, orders) -> {
+                Map<String, Object> count = new HashMap<>();
+                count.put("voucher_id", voucherId);
+                count.put("orders", orders);
+                counts.add(count);
+            });
+            return counts;
+        });
+
+        SeckillReconciler reconciler = new SeckillReconciler();
+        ReflectionTestUtils.setField(reconciler, "autoCorrect", autoCorrect);
+        ReflectionTestUtils.setField(reconciler, "intervalMillis", 60000L);
+        ReflectionTestUtils.setField(reconciler, "stringRedisTemplate", redisTemplate());
+        ReflectionTestUtils.setField(reconciler, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(reconciler, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(reconciler, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(reconciler, "seckillPushHub", seckillPushHub);
+        ReflectionTestUtils.setField(reconciler, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(reconciler, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(reconciler, "meterRegistry", meterRegistry);
+        if (meterRegistry.find("seckill.stock.drift").gauge() == null) {
+            ReflectionTestUtils.invokeMethod(reconciler, "init");
+        }
+        return reconciler;
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        Map<String, String> values = new ConcurrentHashMap<>();
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> values.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOperations).set(anyString(), anyString());
+        when(valueOperations.increment(anyString(), anyLong()))
+                .thenAnswer(invocation -> stock.merge(invocation.getArgument(0), invocation.<Long>getArgument(1), Long::sum));
+        when(valueOperations.decrement(anyString(), anyLong()))
+                .thenAnswer(invocation -> stock.merge(invocation.getArgument(0), -invocation.<Long>getArgument(1), Long::sum));
+
+        ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+        when(template.opsForZSet()).thenReturn(zSetOperations);
+        when(zSetOperations.range(RedisConstants.SECKILL_ACTIVE_KEY, 0, -1)).thenAnswer(invocation -> new TreeSet<>(active));
+
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        when(template.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.entries(anyString())).thenAnswer(invocation -> new HashMap<>(report));
+        doAnswer(invocation -> {
+            report.putAll(invocation.getArgument(1));
+            return null;
+        }).when(hashOperations).putAll(anyString(), anyMap());
+        when(template.delete(anyString())).thenAnswer(invocation -> {
+            report.clear();
+            return true;
+        });
+
+        // 管道中的GET和SCARD，按StringRedisTemplate的序列化返回字符串和数字
+        when(template.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            List<Object> results = new ArrayList<>();
+            RedisConnection connection = mock(RedisConnection.class);
+            RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+            RedisSetCommands setCommands = mock(RedisSetCommands.class);
+            when(connection.stringCommands()).thenReturn(stringCommands);
+            when(connection.setCommands()).thenReturn(setCommands);
+            when(stringCommands.get(any(byte[].class))).thenAnswer(get -> {
+                Long value = stock.get(new String(get.<byte[]>getArgument(0), StandardCharsets.UTF_8));
+                results.add(value == null ? null : value.toString());
+                return null;
+            });
+            when(setCommands.sCard(any(byte[].class))).thenAnswer(sCard -> {
+                results.add(sold.getOrDefault(new String(sCard.<byte[]>getArgument(0), StandardCharsets.UTF_8), 0L));
+                return null;
+            });
+            invocation.<RedisCallback<Object>>getArgument(0).doInRedis(connection);
+            return results;
+        });
+        return template;
+    }
+}
@@ -0,0 +1,261 @@
+package com.hmdp;
+
+import cn.hutool.core.util.RandomUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisIdGenerator;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import javax.annotation.Resource;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Description: 秒杀脚本与库存分桶：先判重再判断库存、分桶的优惠券一人一单、桶内库存不足时换桶，
+ * 以及脚本内按十进制拼接的订单id（时间戳部分 + 序列号 * 分片数 + 分片）
+ * 每个用例使用随机的优惠券id，脚本生成id时使用测试专用的序列号key，不影响真实的订单序列号
+ * 需要redis，使用 -Dhmdp.it=true 运行
+ */
+@SpringBootTest
+@EnabledIfSystemProperty(named = "hmdp.it", matches = "true")
+public class SeckillScriptTest {
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
+    @Resource
+    private RedisIdGenerator redisIdGenerator;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    private Long voucherId;
+
+    private Long userId;
+
+    // 下单成功的 订单id -> 桶，清理订单状态
+    private final Map<Long, Integer> orders = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        voucherId = 9_000_000_000L + RandomUtil.randomInt(1_000_000);
+        userId = 9_000_000_000L + RandomUtil.randomInt(1_000_000);
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+        int buckets = seckillKeys.bucketsOf(voucherId);
+        for (int i = 0; i < Math.max(buckets, 2); i++) {
+            stringRedisTemplate.delete(seckillKeys.stockKey(voucherId, i));
+            stringRedisTemplate.delete(seckillKeys.orderKey(voucherId, i));
+            stringRedisTemplate.delete(testOrderIdKey(i));
+            // 服务下单时加入的超时队列成员 orderId:voucherId:userId:bucket:deadline
+            String timeoutKey = seckillKeys.timeoutKey(voucherId, i);
+            Set<String> members = stringRedisTemplate.opsForZSet().range(timeoutKey, 0, -1);
+            if (members != null) {
+                for (String member : members) {
+                    if (member.contains(":" + voucherId + ":")) {
+                        stringRedisTemplate.opsForZSet().remove(timeoutKey, member);
+                    }
+                }
+            }
+        }
+        orders.forEach((orderId, bucket) -> {
+            stringRedisTemplate.opsForHash().delete(seckillKeys.statusKey(voucherId, bucket), orderId.toString());
+            stringRedisTemplate.opsForZSet().remove(seckillKeys.statusExpireKey(voucherId, bucket), orderId.toString());
+            stringRedisTemplate.opsForHash().delete(seckillKeys.queuedKey(voucherId, bucket), orderId.toString());
+        });
+        stringRedisTemplate.delete(seckillKeys.buyerKey(voucherId));
+        stringRedisTemplate.delete(seckillKeys.buyerClaimKey(voucherId));
+        stringRedisTemplate.delete(RedisConstants.SECKILL_BUCKETS_KEY + voucherId);
+        seckillKeys.evictBuckets(voucherId);
+    }
+
+    /**
+     * 已购用户即使本桶库存为0也返回重复下单（2），不会被当作库存不足转到其他桶
+     */
+    @Test
+    void TestDuplicateCheckedBeforeStock() {
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0), "0");
+        stringRedisTemplate.opsForSet().add(seckillKeys.orderKey(voucherId, 0), userId.toString());
+        assertEquals(2L, runScript(0, "", "0").get(0));
+    }
+
+    /**
+     * 库存不足返回1，库存key不存在时同样按库存不足处理
+     */
+    @Test
+    void TestSoldOut() {
+        assertEquals(1L, runScript(0, "", "0").get(0));
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0), "0");
+        assertEquals(1L, runScript(0, "", "0").get(0));
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(seckillKeys.orderKey(voucherId, 0), userId.toString())));
+    }
+
+    /**
+     * 脚本生成的id = 时间戳部分 + 序列号 * 分片数 + 分片，与Java中的64位计算一致
+     */
+    @Test
+    void TestScriptOrderId() {
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0), "10");
+        stringRedisTemplate.opsForValue().set(testOrderIdKey(0), "41");
+        long timestampPart = redisIdGenerator.timestampPart(Instant.now());
+        List<?> reply = runScript(0, "", String.valueOf(timestampPart));
+        assertEquals(0L, reply.get(0));
+
+        long serialNum = 42L * seckillKeys.partitions() + seckillKeys.partitionOf(voucherId, 0);
+        assertEquals(timestampPart + serialNum, Long.parseLong((String) reply.get(1)));
+        // 最高位为来源位，与RedisIdGenerator的id区分
+        assertEquals(1L << 31, Long.parseLong((String) reply.get(1)) & (1L << 31));
+    }
+
+    /**
+     * 低10位与序列号相加超过10^10时向高位进位，超过double精度的id也不丢失精度
+     */
+    @Test
+    void TestScriptOrderIdCarry() {
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0), "10");
+        int partitions = seckillKeys.partitions();
+        int partition = seckillKeys.partitionOf(voucherId, 0);
+        long[] timestampParts = {5L, 9_999_999_990L, 1_234_567_899_999_999_990L, Long.MAX_VALUE - 10_000_000L};
+        for (int i = 0; i < timestampParts.length; i++) {
+            String user = String.valueOf(userId + i);
+            List<?> reply = runScript(user, 0, "", String.valueOf(timestampParts[i]));
+            assertEquals(0L, reply.get(0));
+            long serialNum = (i + 1L) * partitions + partition;
+            BigInteger expected = BigInteger.valueOf(timestampParts[i]).add(BigInteger.valueOf(serialNum));
+            assertEquals(expected.toString(), reply.get(1), "timestampPart " + timestampParts[i]);
+        }
+    }
+
+    /**
+     * 调用方传入订单id时脚本不再生成，也不占用序列号
+     */
+    @Test
+    void TestCallerOrderId() {
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0), "10");
+        List<?> reply = runScript(0, "123456789012345678", "0");
+        assertEquals(0L, reply.get(0));
+        assertEquals("123456789012345678", reply.get(1));
+        assertNull(stringRedisTemplate.opsForValue().get(testOrderIdKey(0)));
+    }
+
+    /**
+     * 分桶的优惠券，同一用户在一个桶下单后，不能再从其他桶下单
+     */
+    @Test
+    void TestOneOrderAcrossBuckets() {
+        seckillKeys.setBuckets(voucherId, 2);
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0), "1");
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 1), "1");
+
+        Result first = voucherOrderService.seckillVoucher(voucherId);
+        assertTrue(first.getSuccess(), first.getErrorMsg());
+        int bucket = Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(seckillKeys.orderKey(voucherId, 0), userId.toString())) ? 0 : 1;
+        orders.put((Long) first.getData(), bucket);
+        Result second = voucherOrderService.seckillVoucher(voucherId);
+        assertFalse(second.getSuccess());
+        assertEquals("用户重复下单！", second.getErrorMsg());
+        assertEquals(1, remainingStock());
+        assertTrue(Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(seckillKeys.buyerKey(voucherId), userId.toString())));
+    }
+
+    /**
+     * 用户所在的桶库存不足时，从相邻的桶下单
+     */
+    @Test
+    void TestFallbackToOtherBucket() {
+        seckillKeys.setBuckets(voucherId, 2);
+        int home = Math.floorMod(Long.hashCode(userId), 2);
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, home), "0");
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 1 - home), "1");
+
+        Result result = voucherOrderService.seckillVoucher(voucherId);
+        assertTrue(result.getSuccess(), result.getErrorMsg());
+        orders.put((Long) result.getData(), 1 - home);
+        assertEquals("0", stringRedisTemplate.opsForValue().get(seckillKeys.stockKey(voucherId, 1 - home)));
+        assertTrue(Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(seckillKeys.orderKey(voucherId, 1 - home), userId.toString())));
+    }
+
+    /**
+     * 所有桶都没有库存时释放优惠券级别的占位，不占用用户的购买资格
+     */
+    @Test
+    void TestBuyerReleasedWhenSoldOut() {
+        seckillKeys.setBuckets(voucherId, 2);
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 0), "0");
+        stringRedisTemplate.opsForValue().set(seckillKeys.stockKey(voucherId, 1), "0");
+
+        Result result = voucherOrderService.seckillVoucher(voucherId);
+        assertFalse(result.getSuccess());
+        assertEquals("库存不足！", result.getErrorMsg());
+        assertFalse(Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(seckillKeys.buyerKey(voucherId), userId.toString())));
+    }
+
+    private List<?> runScript(int bucket, String orderId, String timestampPart) {
+        return runScript(userId.toString(), bucket, orderId, timestampPart);
+    }
+
+    private List<?> runScript(String user, int bucket, String orderId, String timestampPart) {
+        List<String> keys = Arrays.asList(seckillKeys.stockKey(voucherId, bucket), seckillKeys.orderKey(voucherId, bucket),
+                seckillKeys.streamKeyOf(voucherId, bucket), testOrderIdKey(bucket),
+                seckillKeys.windowKey(voucherId, bucket), seckillKeys.timeoutKey(voucherId, bucket),
+                seckillKeys.statusKey(voucherId, bucket), seckillKeys.statusExpireKey(voucherId, bucket),
+                seckillKeys.queuedKey(voucherId, bucket));
+        List<?> reply = stringRedisTemplate.execute(SECKILL_SCRIPT, keys,
+                voucherId.toString(), user, orderId, timestampPart,
+                String.valueOf(seckillKeys.partitions()), String.valueOf(seckillKeys.partitionOf(voucherId, bucket)),
+                String.valueOf(bucket), "0", "0",
+                String.valueOf(System.currentTimeMillis() + 60000));
+        assertNotNull(reply);
+        if (Long.valueOf(0L).equals(reply.get(0))) {
+            orders.put(Long.parseLong((String) reply.get(1)), bucket);
+        }
+        return reply;
+    }
+
+    /**
+     * 测试专用的序列号key，与库存同一分片
+     */
+    private String testOrderIdKey(int bucket) {
+        return "icr:test:{" + seckillKeys.partitionOf(voucherId, bucket) + "}:" + voucherId;
+    }
+
+    private long remainingStock() {
+        long stock = 0;
+        for (String key : seckillKeys.stockKeys(voucherId)) {
+            String value = stringRedisTemplate.opsForValue().get(key);
+            stock += value == null ? 0 : Long.parseLong(value);
+        }
+        return stock;
+    }
+}
@@ -0,0 +1,206 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 秒杀预热：库存平均拆分到各个桶，每个桶写一份时间窗口，本地按时间窗口拒绝未开始和已结束的请求，
+ * 预热不覆盖已有的库存，秒杀结束一段时间后清理redis中的秒杀key
+ * redis用内存中的实现代替
+ */
+public class SeckillWarmerTest {
+
+    private static final Long VOUCHER_ID = 1001L;
+
+    // redis中的字符串
+    private final Map<String, String> values = new ConcurrentHashMap<>();
+
+    // 预热过的优惠券 voucherId -> 结束时间
+    private final Map<String, Double> active = new ConcurrentHashMap<>();
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private SeckillKeys seckillKeys;
+
+    private SeckillAdmission seckillAdmission;
+
+    private SeckillWarmer seckillWarmer;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = redisTemplate();
+        seckillKeys = new SeckillKeys();
+        ReflectionTestUtils.setField(seckillKeys, "partitions", 8);
+        ReflectionTestUtils.setField(seckillKeys, "stringRedisTemplate", stringRedisTemplate);
+        seckillAdmission = mock(SeckillAdmission.class);
+
+        seckillWarmer = new SeckillWarmer();
+        ReflectionTestUtils.setField(seckillWarmer, "cleanupDelayMinutes", 60L);
+        ReflectionTestUtils.setField(seckillWarmer, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(seckillWarmer, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(seckillWarmer, "seckillAdmission", seckillAdmission);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    /**
+     * 库存平均拆分到各个桶，余数分给前面的桶；每个桶写一份时间窗口，并提前创建准入限流器
+     */
+    @Test
+    void TestWarmSplitsStockAcrossBuckets() {
+        seckillKeys.setBuckets(VOUCHER_ID, 3);
+        seckillWarmer.warm(voucher(-1, 60, 10), true);
+
+        assertEquals("4", values.get(seckillKeys.stockKey(VOUCHER_ID, 0)));
+        assertEquals("3", values.get(seckillKeys.stockKey(VOUCHER_ID, 1)));
+        assertEquals("3", values.get(seckillKeys.stockKey(VOUCHER_ID, 2)));
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(values.get(seckillKeys.windowKey(VOUCHER_ID, i)));
+        }
+        assertTrue(active.containsKey(VOUCHER_ID.toString()));
+        verify(seckillAdmission).prepare(VOUCHER_ID);
+    }
+
+    /**
+     * 定时预热只在库存key不存在时写入，不覆盖秒杀中已经扣减的库存；新增秒杀券时覆盖
+     */
+    @Test
+    void TestPrewarmKeepsExistingStock() {
+        seckillWarmer.warm(voucher(-1, 60, 10), false);
+        values.put(seckillKeys.stockKey(VOUCHER_ID), "3");
+
+        seckillWarmer.warm(voucher(-1, 60, 10), false);
+        assertEquals("3", values.get(seckillKeys.stockKey(VOUCHER_ID)));
+
+        seckillWarmer.warm(voucher(-1, 60, 20), true);
+        assertEquals("20", values.get(seckillKeys.stockKey(VOUCHER_ID)));
+    }
+
+    /**
+     * 本地按预热的时间窗口判断，未预热的优惠券交给秒杀脚本判断
+     */
+    @Test
+    void TestWindowState() {
+        assertEquals(SeckillWarmer.WINDOW_OPEN, seckillWarmer.windowState(VOUCHER_ID));
+
+        seckillWarmer.warm(voucher(5, 60, 10), true);
+        assertEquals(SeckillWarmer.WINDOW_NOT_BEGUN, seckillWarmer.windowState(VOUCHER_ID));
+
+        seckillWarmer.warm(voucher(-60, -5, 10), true);
+        assertEquals(SeckillWarmer.WINDOW_ENDED, seckillWarmer.windowState(VOUCHER_ID));
+
+        seckillWarmer.warm(voucher(-5, 60, 10), true);
+        assertEquals(SeckillWarmer.WINDOW_OPEN, seckillWarmer.windowState(VOUCHER_ID));
+    }
+
+    /**
+     * 时间窗口外的请求在本地拒绝，不执行秒杀脚本
+     */
+    @Test
+    void TestSeckillRejectedOutsideWindow() {
+        VoucherOrderServiceImpl voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(voucherOrderService, "soldOutRegistry", mock(SoldOutRegistry.class));
+        ReflectionTestUtils.setField(voucherOrderService, "seckillWarmer", seckillWarmer);
+        ReflectionTestUtils.setField(voucherOrderService, "stringRedisTemplate", stringRedisTemplate);
+        UserDTO user = new UserDTO();
+        user.setId(7L);
+        UserHolder.saveUser(user);
+
+        seckillWarmer.warm(voucher(5, 60, 10), true);
+        Result notBegun = voucherOrderService.seckillVoucher(VOUCHER_ID);
+        seckillWarmer.warm(voucher(-60, -5, 10), true);
+        Result ended = voucherOrderService.seckillVoucher(VOUCHER_ID);
+
+        assertEquals("秒杀尚未开始！", notBegun.getErrorMsg());
+        assertEquals("秒杀已经结束！", ended.getErrorMsg());
+        verify(stringRedisTemplate, never()).execute(any(RedisScript.class), anyList(), any());
+    }
+
+    /**
+     * 结束超过cleanupDelayMinutes的秒杀清理库存、已购用户、时间窗口和桶数，未到清理时间的保留
+     */
+    @Test
+    void TestCleanupEndedSeckill() {
+        seckillKeys.setBuckets(VOUCHER_ID, 2);
+        seckillWarmer.warm(voucher(-180, -120, 10), true);
+        seckillWarmer.warm(voucher(2002L, -60, -5, 10), true);
+
+        seckillWarmer.cleanup();
+
+        for (int i = 0; i < 2; i++) {
+            assertFalse(values.containsKey(seckillKeys.stockKey(VOUCHER_ID, i)));
+            assertFalse(values.containsKey(seckillKeys.windowKey(VOUCHER_ID, i)));
+        }
+        assertFalse(values.containsKey(RedisConstants.SECKILL_BUCKETS_KEY + VOUCHER_ID));
+        assertEquals(Collections.singleton("2002"), active.keySet());
+        assertEquals(SeckillWarmer.WINDOW_OPEN, seckillWarmer.windowState(VOUCHER_ID));
+        assertEquals("10", values.get(seckillKeys.stockKey(2002L)));
+        assertEquals(SeckillWarmer.WINDOW_ENDED, seckillWarmer.windowState(2002L));
+    }
+
+    private static SeckillVoucher voucher(long beginMinutes, long endMinutes, int stock) {
+        return voucher(VOUCHER_ID, beginMinutes, endMinutes, stock);
+    }
+
+    /**
+     * 开始、结束时间相对于当前时间的分钟数
+     */
+    private static SeckillVoucher voucher(Long voucherId, long beginMinutes, long endMinutes, int stock) {
+        LocalDateTime now = LocalDateTime.now();
+        return new SeckillVoucher().setVoucherId(voucherId).setStock(stock)
+                .setBeginTime(now.plusMinutes(beginMinutes)).setEndTime(now.plusMinutes(endMinutes));
+    }
+
+    @SuppressWarnings("unchecked")
+    private StringRedisTemplate redisTemplate() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get(anyString())).thenAnswer(invocation -> values.get(invocation.<String>getArgument(0)));
+        doAnswer(invocation -> values.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(valueOperations).set(anyString(), anyString());
+        when(template.hasKey(anyString())).thenAnswer(invocation -> values.containsKey(invocation.<String>getArgument(0)));
+        when(template.delete(anyString())).thenAnswer(invocation -> values.remove(invocation.<String>getArgument(0)) != null);
+
+        ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+        when(template.opsForZSet()).thenReturn(zSetOperations);
+        when(zSetOperations.add(eq(RedisConstants.SECKILL_ACTIVE_KEY), anyString(), anyDouble()))
+                .thenAnswer(invocation -> active.put(invocation.getArgument(1), invocation.getArgument(2)) == null);
+        when(zSetOperations.rangeByScore(eq(RedisConstants.SECKILL_ACTIVE_KEY), anyDouble(), anyDouble())).thenAnswer(invocation -> {
+            double min = invocation.getArgument(1);
+            double max = invocation.getArgument(2);
+            Set<String> ended = new TreeSet<>();
+            active.forEach((member, score) -> {
+                if (score >= min && score <= max) {
+                    ended.add(member);
+                }
+            });
+            return ended;
+        });
+        when(zSetOperations.remove(eq(RedisConstants.SECKILL_ACTIVE_KEY), any()))
+                .thenAnswer(invocation -> active.remove(invocation.<String>getArgument(1)) == null ? 0L : 1L);
+        return template;
+    }
+}
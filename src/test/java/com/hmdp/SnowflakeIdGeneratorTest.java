@@ -0,0 +1,232 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdGenerator;
+import com.hmdp.utils.SeckillNodes;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 本地生成的id：并发不重复、与RedisIdGenerator使用同一时间基准（epoch秒，与时区无关）、
+ * 接手workerId后从上一个持有者的时间戳之后开始、租约失效后拒绝生成，
+ * 同一秒内与RedisIdGenerator、秒杀脚本分配的id不会重复
+ */
+public class SnowflakeIdGeneratorTest {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    private ValueOperations<String, String> valueOperations;
+
+    private SnowflakeIdGenerator idGenerator;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any())).thenReturn(1L);
+        SeckillNodes seckillNodes = mock(SeckillNodes.class);
+        when(seckillNodes.nodeId()).thenReturn("test-node");
+
+        idGenerator = new SnowflakeIdGenerator();
+        ReflectionTestUtils.setField(idGenerator, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(idGenerator, "seckillNodes", seckillNodes);
+        ReflectionTestUtils.setField(idGenerator, "enabled", true);
+        ReflectionTestUtils.setField(idGenerator, "leaseSeconds", 600L);
+        ReflectionTestUtils.setField(idGenerator, "maxBackwardMillis", 5000L);
+    }
+
+    /**
+     * 多线程并发生成，不重复，workerId位为租用的workerId
+     */
+    @Test
+    void TestConcurrentIdsUnique() throws InterruptedException {
+        ReflectionTestUtils.invokeMethod(idGenerator, "init");
+        long workerId = (long) ReflectionTestUtils.getField(idGenerator, "workerId");
+        int threads = 8;
+        int perThread = 10000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            executorService.submit(() -> {
+                try {
+                    for (int j = 0; j < perThread; j++) {
+                        ids.add(idGenerator.nextId());
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executorService.shutdown();
+
+        assertEquals(threads * perThread, ids.size());
+        for (long id : ids) {
+            assertEquals(workerId, id >>> 20 & 1023);
+            // 低32位的最高两位为 01
+            assertEquals(1, id >>> 30 & 3);
+        }
+    }
+
+    /**
+     * 与RedisIdGenerator、秒杀脚本使用同一时间基准：高32位为epoch秒减去起点，不随默认时区变化
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void TestSameTimeBasisInAnyZone() {
+        ReflectionTestUtils.invokeMethod(idGenerator, "init");
+        RedisIdGenerator redisIdGenerator = new RedisIdGenerator();
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> redisValues = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(redisValues);
+        when(redisValues.increment(anyString())).thenReturn(1L);
+        ReflectionTestUtils.setField(redisIdGenerator, "stringRedisTemplate", redisTemplate);
+
+        TimeZone defaultZone = TimeZone.getDefault();
+        try {
+            for (String zone : new String[]{"Asia/Shanghai", "America/Los_Angeles", "UTC"}) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                long before = Instant.now().getEpochSecond() - BEGIN_TIMESTAMP;
+                long snowflake = idGenerator.nextId() >>> 32;
+                long redis = redisIdGenerator.nextId("order") >>> 32;
+                long script = redisIdGenerator.timestampPart(Instant.now()) >>> 32;
+                long after = Instant.now().getEpochSecond() - BEGIN_TIMESTAMP;
+                for (long second : new long[]{snowflake, redis, script}) {
+                    assertTrue(second >= before && second <= after, zone + " " + second);
+                }
+            }
+            // 序列号key的日期按UTC计算
+            String utcDate = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC).format(Instant.now());
+            verify(redisValues, atLeastOnce()).increment("icr:order:" + utcDate + ":");
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    /**
+     * 接手workerId时从上一个持有者可能用到的时间戳之后开始，不会生成重复的id
+     */
+    @Test
+    void TestContinueAfterPreviousHolder() {
+        long used = Instant.now().getEpochSecond() - BEGIN_TIMESTAMP;
+        when(valueOperations.get(anyString())).thenReturn(String.valueOf(used));
+        ReflectionTestUtils.invokeMethod(idGenerator, "init");
+        assertTrue(idGenerator.nextId() >>> 32 > used);
+    }
+
+    /**
+     * 本地时钟落后上一个持有者超过max-backward-millis时释放这个workerId，换一个
+     */
+    @Test
+    void TestSkipWorkerAheadOfLocalClock() {
+        long ahead = Instant.now().getEpochSecond() - BEGIN_TIMESTAMP + 60;
+        when(valueOperations.get(anyString())).thenReturn(String.valueOf(ahead), (String) null);
+        ReflectionTestUtils.invokeMethod(idGenerator, "init");
+
+        long now = Instant.now().getEpochSecond() - BEGIN_TIMESTAMP;
+        assertTrue(idGenerator.nextId() >>> 32 <= now + 1);
+        // 第一个workerId以续约时长0释放
+        verify(stringRedisTemplate).execute(any(RedisScript.class), anyList(), eq("test-node"), eq("0"), eq(String.valueOf(ahead)));
+    }
+
+    /**
+     * 租约超过截止时间仍未续约成功，停止生成id
+     */
+    @Test
+    void TestRejectAfterLeaseExpired() {
+        ReflectionTestUtils.invokeMethod(idGenerator, "init");
+        idGenerator.nextId();
+        ReflectionTestUtils.setField(idGenerator, "leaseDeadline", System.currentTimeMillis() - 1);
+        assertThrows(IllegalStateException.class, idGenerator::nextId);
+    }
+
+    /**
+     * 续约失败后重新租用workerId
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void TestLeaseAgainOnRenewFailure() {
+        ReflectionTestUtils.invokeMethod(idGenerator, "init");
+        // 续约脚本返回0：租约已过期或被其他节点持有
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any())).thenReturn(0L, 1L);
+        idGenerator.renew();
+        verify(valueOperations, times(2)).setIfAbsent(anyString(), eq("test-node"), eq(600L), eq(TimeUnit.SECONDS));
+        assertTrue((long) ReflectionTestUtils.getField(idGenerator, "workerId") >= 0);
+        idGenerator.nextId();
+    }
+
+    /**
+     * 同一秒内三种来源的id不重复：任意workerId、各来源序列号的上限都不会落入其他来源的范围
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void TestSourcesNeverCollide() {
+        ReflectionTestUtils.invokeMethod(idGenerator, "init");
+        RedisIdGenerator redisIdGenerator = new RedisIdGenerator();
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> redisValues = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(redisValues);
+        ReflectionTestUtils.setField(redisIdGenerator, "stringRedisTemplate", redisTemplate);
+
+        // 三种来源的低32位，时间戳部分相同时只比较低32位
+        Set<Long> redis = new HashSet<>();
+        when(redisValues.increment(anyString())).thenReturn(1L, 2L, (1L << 30) - 1);
+        for (int i = 0; i < 3; i++) {
+            redis.add(redisIdGenerator.nextId("order") & 0xFFFFFFFFL);
+        }
+        // 当日序列号超过上限时拒绝生成，不会占用来源位
+        when(redisValues.increment(anyString())).thenReturn(1L << 30);
+        assertThrows(IllegalStateException.class, () -> redisIdGenerator.nextId("order"));
+
+        Set<Long> local = new HashSet<>();
+        for (long workerId : new long[]{0L, 511L, 512L, 1023L}) {
+            ReflectionTestUtils.setField(idGenerator, "workerId", workerId);
+            local.add(idGenerator.nextId() & 0xFFFFFFFFL);
+            ReflectionTestUtils.setField(idGenerator, "sequence", (1L << 20) - 2);
+            local.add(idGenerator.nextId() & 0xFFFFFFFFL);
+        }
+
+        // 秒杀脚本：时间戳部分 + 分片内自增 * 分片数 + 分片，序列号小于2^31
+        long timestampPart = redisIdGenerator.timestampPart(Instant.now());
+        Set<Long> script = new HashSet<>();
+        for (long serial : new long[]{1L, (1L << 30) - 1, 1L << 30, (1L << 31) - 1}) {
+            script.add(timestampPart + serial & 0xFFFFFFFFL);
+        }
+
+        for (long id : redis) {
+            assertEquals(0, id >>> 30, Long.toHexString(id));
+        }
+        for (long id : local) {
+            assertEquals(1, id >>> 30, Long.toHexString(id));
+        }
+        for (long id : script) {
+            assertEquals(1, id >>> 31, Long.toHexString(id));
+        }
+        Set<Long> all = new HashSet<>(redis);
+        all.addAll(local);
+        all.addAll(script);
+        assertEquals(redis.size() + local.size() + script.size(), all.size());
+    }
+}
@@ -0,0 +1,185 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.MessageListener;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 本地售罄标记：秒杀脚本返回库存不足后本地标记并广播，之后的请求不再执行秒杀脚本；
+ * 补充库存时清除所有节点的标记，标记过期后放行请求到redis重新确认
+ * redis发布订阅用内存中的实现代替，消息同步投递给所有节点
+ */
+public class SoldOutRegistryTest {
+
+    private static final Long VOUCHER_ID = 1001L;
+
+    // topic名称 -> 各节点的监听器
+    private final Map<String, List<MessageListener<String>>> listeners = new HashMap<>();
+
+    // 各topic发布的消息数
+    private final Map<String, AtomicInteger> published = new HashMap<>();
+
+    private RedissonClient redissonClient;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        redissonClient = mock(RedissonClient.class);
+        for (String name : Arrays.asList(RedisConstants.SECKILL_SOLD_OUT_TOPIC, RedisConstants.SECKILL_RESTOCK_TOPIC)) {
+            List<MessageListener<String>> topicListeners = new CopyOnWriteArrayList<>();
+            AtomicInteger count = new AtomicInteger();
+            listeners.put(name, topicListeners);
+            published.put(name, count);
+            RTopic topic = mock(RTopic.class);
+            when(topic.addListener(eq(String.class), any(MessageListener.class))).thenAnswer(invocation -> {
+                topicListeners.add(invocation.getArgument(1));
+                return topicListeners.size();
+            });
+            when(topic.publish(any())).thenAnswer(invocation -> deliver(name, invocation.getArgument(0)));
+            when(topic.publishAsync(any())).thenAnswer(invocation -> {
+                deliver(name, invocation.getArgument(0));
+                return null;
+            });
+            when(redissonClient.getTopic(name, StringCodec.INSTANCE)).thenReturn(topic);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    /**
+     * 一个节点标记售罄后其他节点也拒绝请求；重复标记不重复广播
+     */
+    @Test
+    void TestSoldOutBroadcast() {
+        SoldOutRegistry nodeA = node();
+        SoldOutRegistry nodeB = node();
+        assertFalse(nodeA.isSoldOut(VOUCHER_ID));
+
+        nodeA.markSoldOut(VOUCHER_ID);
+        nodeA.markSoldOut(VOUCHER_ID);
+
+        assertTrue(nodeA.isSoldOut(VOUCHER_ID));
+        assertTrue(nodeB.isSoldOut(VOUCHER_ID));
+        assertFalse(nodeB.isSoldOut(2002L));
+        assertEquals(1, published.get(RedisConstants.SECKILL_SOLD_OUT_TOPIC).get());
+    }
+
+    /**
+     * 补充库存时清除所有节点的售罄标记
+     */
+    @Test
+    void TestRestockClearsAllNodes() {
+        SoldOutRegistry nodeA = node();
+        SoldOutRegistry nodeB = node();
+        nodeA.markSoldOut(VOUCHER_ID);
+
+        nodeB.reset(VOUCHER_ID);
+
+        assertFalse(nodeA.isSoldOut(VOUCHER_ID));
+        assertFalse(nodeB.isSoldOut(VOUCHER_ID));
+        // 清除后可以再次标记并广播
+        nodeB.markSoldOut(VOUCHER_ID);
+        assertTrue(nodeA.isSoldOut(VOUCHER_ID));
+        assertEquals(2, published.get(RedisConstants.SECKILL_SOLD_OUT_TOPIC).get());
+    }
+
+    /**
+     * 标记过期后放行一次请求到redis重新确认
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void TestExpiredMarkLetsRequestThrough() {
+        SoldOutRegistry registry = node();
+        registry.markSoldOut(VOUCHER_ID);
+        Map<Long, Long> soldOut = (Map<Long, Long>) ReflectionTestUtils.getField(registry, "soldOut");
+        soldOut.put(VOUCHER_ID, System.currentTimeMillis() - 1);
+
+        assertFalse(registry.isSoldOut(VOUCHER_ID));
+        assertTrue(soldOut.isEmpty());
+    }
+
+    /**
+     * 秒杀脚本返回库存不足后标记售罄，之后的请求直接拒绝，不再执行秒杀脚本；补充库存后重新执行
+     */
+    @Test
+    void TestSeckillShortCircuitsAfterSoldOut() {
+        SoldOutRegistry registry = node();
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any()))
+                .thenReturn(Collections.singletonList(1L));
+        VoucherOrderServiceImpl voucherOrderService = voucherOrderService(registry, stringRedisTemplate);
+        UserDTO user = new UserDTO();
+        user.setId(7L);
+        UserHolder.saveUser(user);
+
+        Result first = voucherOrderService.seckillVoucher(VOUCHER_ID);
+        Result second = voucherOrderService.seckillVoucher(VOUCHER_ID);
+
+        assertFalse(first.getSuccess());
+        assertEquals("库存不足！", second.getErrorMsg());
+        assertTrue(registry.isSoldOut(VOUCHER_ID));
+        verify(stringRedisTemplate, times(1)).execute(any(RedisScript.class), anyList(), any());
+
+        registry.reset(VOUCHER_ID);
+        voucherOrderService.seckillVoucher(VOUCHER_ID);
+        verify(stringRedisTemplate, times(2)).execute(any(RedisScript.class), anyList(), any());
+    }
+
+    private long deliver(String name, Object msg) {
+        published.get(name).incrementAndGet();
+        for (MessageListener<String> listener : listeners.get(name)) {
+            listener.onMessage(name, (String) msg);
+        }
+        return listeners.get(name).size();
+    }
+
+    private SoldOutRegistry node() {
+        SoldOutRegistry registry = new SoldOutRegistry();
+        ReflectionTestUtils.setField(registry, "redissonClient", redissonClient);
+        ReflectionTestUtils.invokeMethod(registry, "init");
+        return registry;
+    }
+
+    private static VoucherOrderServiceImpl voucherOrderService(SoldOutRegistry registry, StringRedisTemplate stringRedisTemplate) {
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.bucketsOf(VOUCHER_ID)).thenReturn(1);
+        SeckillAdmission seckillAdmission = mock(SeckillAdmission.class);
+        when(seckillAdmission.tryAcquire(VOUCHER_ID)).thenReturn(true);
+
+        VoucherOrderServiceImpl voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(voucherOrderService, "scriptOrderId", true);
+        ReflectionTestUtils.setField(voucherOrderService, "soldOutRegistry", registry);
+        ReflectionTestUtils.setField(voucherOrderService, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillAdmission", seckillAdmission);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillWarmer", mock(SeckillWarmer.class));
+        ReflectionTestUtils.setField(voucherOrderService, "snowflakeIdGenerator", mock(SnowflakeIdGenerator.class));
+        ReflectionTestUtils.setField(voucherOrderService, "redisIdGenerator", mock(RedisIdGenerator.class));
+        ReflectionTestUtils.setField(voucherOrderService, "seckillBuyers", mock(SeckillBuyers.class));
+        ReflectionTestUtils.setField(voucherOrderService, "orderQueue", mock(OrderQueue.class));
+        ReflectionTestUtils.setField(voucherOrderService, "orderStatusCache", mock(OrderStatusCache.class));
+        return voucherOrderService;
+    }
+}
@@ -0,0 +1,131 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.OrderGroupCommitter;
+import com.hmdp.utils.OrderStatusCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 批量消费秒杀订单：单条消息逐条下单，多条消息在一个事务内批量落库或与其他消费者组提交，
+ * 只有实际落库的订单标记为CREATED，批内去重淘汰的、同一用户已有其他订单的标记为FAILED
+ * 数据库用代理对象和组提交的mock代替
+ */
+public class VoucherOrderBatchTest {
+
+    private IVoucherOrderService proxy;
+
+    private OrderGroupCommitter orderGroupCommitter;
+
+    private OrderStatusCache orderStatusCache;
+
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    @BeforeEach
+    void setUp() {
+        proxy = mock(IVoucherOrderService.class);
+        orderGroupCommitter = mock(OrderGroupCommitter.class);
+        orderStatusCache = mock(OrderStatusCache.class);
+
+        voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(voucherOrderService, "batchSize", 50);
+        ReflectionTestUtils.setField(voucherOrderService, "groupCommit", false);
+        ReflectionTestUtils.setField(voucherOrderService, "proxy", proxy);
+        ReflectionTestUtils.setField(voucherOrderService, "orderGroupCommitter", orderGroupCommitter);
+        ReflectionTestUtils.setField(voucherOrderService, "orderStatusCache", orderStatusCache);
+    }
+
+    @AfterEach
+    void tearDown() {
+        // 清除中断标记，避免影响其他测试
+        Thread.interrupted();
+    }
+
+    /**
+     * 单条消息或batch-size为1时逐条下单，未创建的订单标记为FAILED
+     */
+    @Test
+    void TestOrdersCreatedOneByOne() {
+        VoucherOrder first = order(1L, 7L);
+        VoucherOrder second = order(2L, 8L);
+        when(proxy.createVoucherOrder(first)).thenReturn(true);
+        when(proxy.createVoucherOrder(second)).thenReturn(false);
+
+        handleOrders(Collections.singletonList(first));
+        verify(orderStatusCache).update(Collections.singletonList(first), OrderStatusCache.CREATED);
+        verify(orderStatusCache, never()).update(anyList(), eq(OrderStatusCache.FAILED));
+
+        ReflectionTestUtils.setField(voucherOrderService, "batchSize", 1);
+        handleOrders(Arrays.asList(first, second));
+        verify(orderStatusCache, times(2)).update(Collections.singletonList(first), OrderStatusCache.CREATED);
+        verify(orderStatusCache).update(Collections.singletonList(second), OrderStatusCache.FAILED);
+        verify(proxy, never()).createVoucherOrderBatch(anyList());
+    }
+
+    /**
+     * 多条消息在一个事务内批量落库，只有返回的已落库订单标记为CREATED
+     */
+    @Test
+    void TestBatchMarksOnlyPersistedCreated() throws InterruptedException {
+        VoucherOrder first = order(1L, 7L);
+        VoucherOrder duplicate = order(2L, 7L);
+        VoucherOrder third = order(3L, 8L);
+        when(proxy.createVoucherOrderBatch(anyList())).thenReturn(new HashSet<>(Arrays.asList(1L, 3L)));
+
+        handleOrders(Arrays.asList(first, duplicate, third));
+
+        verify(proxy).createVoucherOrderBatch(Arrays.asList(first, duplicate, third));
+        verify(proxy, never()).createVoucherOrder(any(VoucherOrder.class));
+        verify(orderGroupCommitter, never()).commit(anyList());
+        verify(orderStatusCache).update(Arrays.asList(first, third), OrderStatusCache.CREATED);
+        verify(orderStatusCache).update(Collections.singletonList(duplicate), OrderStatusCache.FAILED);
+    }
+
+    /**
+     * 开启组提交时交给提交线程与其他消费者的订单合并落库，提交完成后才更新状态
+     */
+    @Test
+    void TestGroupCommitPath() throws InterruptedException {
+        ReflectionTestUtils.setField(voucherOrderService, "groupCommit", true);
+        List<VoucherOrder> orders = Arrays.asList(order(1L, 7L), order(2L, 8L));
+        when(orderGroupCommitter.commit(orders)).thenReturn(new HashSet<>(Arrays.asList(1L, 2L)));
+
+        handleOrders(orders);
+
+        verify(proxy, never()).createVoucherOrderBatch(anyList());
+        verify(orderStatusCache).update(orders, OrderStatusCache.CREATED);
+        verify(orderStatusCache, never()).update(anyList(), eq(OrderStatusCache.FAILED));
+    }
+
+    /**
+     * 等待组提交被中断时抛出异常且不更新状态，消息不确认，由pending-list恢复线程重试
+     */
+    @Test
+    void TestGroupCommitInterrupted() throws InterruptedException {
+        ReflectionTestUtils.setField(voucherOrderService, "groupCommit", true);
+        when(orderGroupCommitter.commit(anyList())).thenThrow(new InterruptedException());
+
+        assertThrows(IllegalStateException.class, () -> handleOrders(Arrays.asList(order(1L, 7L), order(2L, 8L))));
+
+        assertTrue(Thread.currentThread().isInterrupted());
+        verifyNoInteractions(orderStatusCache);
+    }
+
+    private void handleOrders(List<VoucherOrder> orders) {
+        ReflectionTestUtils.invokeMethod(voucherOrderService, "handleOrders", orders);
+    }
+
+    private static VoucherOrder order(Long orderId, Long userId) {
+        return new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(1001L);
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmdp;
+
+import cn.hutool.core.util.RandomUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Description: 订单落库的幂等：同一订单重复投递只扣一次库存且视为成功，同一用户的其他订单被唯一索引忽略，
+ * 批量落库只返回实际落库的订单id
+ * 每个用例新建一个测试用的秒杀券，结束后删除秒杀券和订单
+ * 需要redis和mysql，使用 -Dhmdp.it=true 运行
+ */
+@SpringBootTest
+@EnabledIfSystemProperty(named = "hmdp.it", matches = "true")
+public class VoucherOrderPersistTest {
+
+    private static final int STOCK = 10;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    private Long voucherId;
+
+    @BeforeEach
+    void setUp() {
+        voucherId = 9_000_000_000L + RandomUtil.randomInt(1_000_000);
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(voucherId);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusDays(1));
+        voucher.setEndTime(LocalDateTime.now().plusDays(1));
+        seckillVoucherService.save(voucher);
+    }
+
+    @AfterEach
+    void tearDown() {
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+        seckillVoucherService.removeById(voucherId);
+    }
+
+    /**
+     * 同一订单重复投递时返回true，订单只有一条，库存只扣一次
+     */
+    @Test
+    void TestRedeliveryIdempotent() {
+        long userId = RandomUtil.randomLong(1_000_000L, 2_000_000L);
+        VoucherOrder order = order(RandomUtil.randomLong(1L << 40, 1L << 50), userId);
+        assertTrue(voucherOrderService.createVoucherOrder(order));
+        assertTrue(voucherOrderService.createVoucherOrder(order));
+
+        assertEquals(1, orderCount());
+        assertEquals(STOCK - 1, stock());
+    }
+
+    /**
+     * 同一用户同一优惠券的另一个订单id被唯一索引忽略，返回false，不扣库存
+     */
+    @Test
+    void TestOtherOrderOfSameUserRejected() {
+        long userId = RandomUtil.randomLong(1_000_000L, 2_000_000L);
+        long orderId = RandomUtil.randomLong(1L << 40, 1L << 50);
+        assertTrue(voucherOrderService.createVoucherOrder(order(orderId, userId)));
+        assertFalse(voucherOrderService.createVoucherOrder(order(orderId + 1, userId)));
+
+        assertEquals(1, orderCount());
+        assertEquals(STOCK - 1, stock());
+    }
+
+    /**
+     * 批量落库：批内同一用户的重复订单、已有其他订单的用户不在返回结果中，重复投递的订单在返回结果中，
+     * 库存按实际插入的行数扣减
+     */
+    @Test
+    void TestBatchReturnsPersistedIds() {
+        long base = RandomUtil.randomLong(1L << 40, 1L << 50);
+        long userA = RandomUtil.randomLong(1_000_000L, 2_000_000L);
+        long userB = userA + 1;
+        long userC = userA + 2;
+        // 用户C已经有订单
+        assertTrue(voucherOrderService.createVoucherOrder(order(base, userC)));
+
+        VoucherOrder a = order(base + 1, userA);
+        VoucherOrder aDuplicate = order(base + 2, userA);
+        VoucherOrder b = order(base + 3, userB);
+        VoucherOrder cOther = order(base + 4, userC);
+        Set<Long> persisted = voucherOrderService.createVoucherOrderBatch(Arrays.asList(a, aDuplicate, b, cOther));
+        assertEquals(new HashSet<>(Arrays.asList(a.getId(), b.getId())), persisted);
+        assertEquals(STOCK - 3, stock());
+
+        // 整批重复投递：已落库的订单仍然返回，不再扣库存
+        persisted = voucherOrderService.createVoucherOrderBatch(Arrays.asList(a, b));
+        assertEquals(new HashSet<>(Arrays.asList(a.getId(), b.getId())), persisted);
+        assertEquals(Collections.singleton(base), voucherOrderService.createVoucherOrderBatch(Collections.singletonList(order(base, userC))));
+        assertEquals(3, orderCount());
+        assertEquals(STOCK - 3, stock());
+    }
+
+    private VoucherOrder order(long id, long userId) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        order.setBucket(0);
+        return order;
+    }
+
+    private long orderCount() {
+        return voucherOrderService.count(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+    }
+
+    private int stock() {
+        return seckillVoucherService.getById(voucherId).getStock();
+    }
+}
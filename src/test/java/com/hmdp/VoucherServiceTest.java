@@ -0,0 +1,110 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.impl.VoucherServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Description: 店铺优惠券列表中秒杀券的库存以redis中各桶的库存之和为准，写入副本，不修改缓存返回的共享对象
+ * 缓存和redis中的库存用内存中的实现代替
+ */
+public class VoucherServiceTest {
+
+    // 缓存返回的同一个列表
+    private final List<Voucher> cached = new ArrayList<>();
+
+    // redis中的库存
+    private final Map<String, String> stock = new ConcurrentHashMap<>();
+
+    private VoucherServiceImpl voucherService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        cached.add(new Voucher().setId(1L).setTitle("普通券"));
+        cached.add(new Voucher().setId(2L).setTitle("秒杀券").setStock(100));
+        cached.add(new Voucher().setId(3L).setTitle("未预热的秒杀券").setStock(50));
+
+        CacheClient cacheClient = mock(CacheClient.class);
+        when(cacheClient.queryList(eq(RedisConstants.CACHE_VOUCHER_LIST_KEY), eq(1L), eq(Voucher.class), any(),
+                anyLong(), any(TimeUnit.class))).thenReturn(cached);
+        SeckillKeys seckillKeys = mock(SeckillKeys.class);
+        when(seckillKeys.bucketsOf(anyLong())).thenAnswer(invocation -> invocation.<Long>getArgument(0) == 2L ? 2 : 1);
+        when(seckillKeys.stockKeys(2L)).thenReturn(Arrays.asList("stock:2", "stock:2:1"));
+        when(seckillKeys.stockKeys(3L)).thenReturn(Collections.singletonList("stock:3"));
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.multiGet(anyList())).thenAnswer(invocation -> {
+            List<String> values = new ArrayList<>();
+            for (String key : invocation.<List<String>>getArgument(0)) {
+                values.add(stock.get(key));
+            }
+            return values;
+        });
+
+        voucherService = new VoucherServiceImpl();
+        ReflectionTestUtils.setField(voucherService, "baseMapper", mock(VoucherMapper.class));
+        ReflectionTestUtils.setField(voucherService, "cacheClient", cacheClient);
+        ReflectionTestUtils.setField(voucherService, "seckillKeys", seckillKeys);
+        ReflectionTestUtils.setField(voucherService, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    /**
+     * 秒杀券的库存为redis中各桶之和，未预热的保留数据库库存；缓存中的对象不被修改
+     */
+    @Test
+    void TestStockOverlaidOnCopies() {
+        stock.put("stock:2", "30");
+        stock.put("stock:2:1", "-1");
+        List<Voucher> vouchers = query();
+
+        assertEquals(3, vouchers.size());
+        assertNull(vouchers.get(0).getStock());
+        // 负数按0计算
+        assertEquals(30, vouchers.get(1).getStock());
+        assertEquals(50, vouchers.get(2).getStock());
+        assertEquals("秒杀券", vouchers.get(1).getTitle());
+        assertNotSame(cached.get(1), vouchers.get(1));
+        assertEquals(100, cached.get(1).getStock());
+    }
+
+    /**
+     * 并发的请求各自读取redis中的库存，不会读到其他请求写入共享对象的库存
+     */
+    @Test
+    void TestRequestsDoNotShareStock() {
+        stock.put("stock:2", "30");
+        List<Voucher> first = query();
+        stock.put("stock:2", "10");
+        List<Voucher> second = query();
+
+        assertEquals(30, first.get(1).getStock());
+        assertEquals(10, second.get(1).getStock());
+        assertEquals(100, cached.get(1).getStock());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Voucher> query() {
+        Result result = voucherService.queryVoucherOfShop(1L);
+        assertTrue(result.getSuccess());
+        return (List<Voucher>) result.getData();
+    }
+}